@@ -12,7 +12,6 @@ import java.util.Map;
 import javax.imageio.ImageIO;
 
 import nl.tno.stormcv.model.CVParticle;
-import nl.tno.stormcv.model.Descriptor;
 import nl.tno.stormcv.model.Feature;
 import nl.tno.stormcv.model.Frame;
 import nl.tno.stormcv.model.serializer.CVParticleSerializer;
@@ -20,6 +19,7 @@ import nl.tno.stormcv.model.serializer.FrameSerializer;
 import nl.tno.stormcv.operation.ISingleInputOperation;
 import nl.tno.stormcv.operation.OpenCVOp;
 import nl.tno.stormcv.util.ImageUtils;
+import nl.tno.stormcv.util.MatUtils;
 import nl.tno.stormcv.util.connector.ConnectorHolder;
 import nl.tno.stormcv.util.connector.FileConnector;
 import nl.tno.stormcv.util.connector.LocalFileConnector;
@@ -250,16 +250,7 @@ public class PartialMatcher extends OpenCVOp<Frame> implements ISingleInputOpera
 	}
 
 	private Mat feature2Mat(Feature feature){
-		List<Descriptor> features = feature.getSparseDescriptors();
-		Mat m = new Mat(features.size(), features.get(0).getValues().length, 5);
-		for(int r=0; r<features.size(); r++){
-			float[] v = features.get(r).getValues();
-			for(int c=0; c<v.length; c++){
-				m.put(r, c, v[c]);
-			}
-		}
-		return m;
-		
+		return MatUtils.toMat(feature.getSparseDescriptors());
 	}
 	
 	class MutableInt {
@@ -48,6 +48,28 @@ public class StormCVConfig extends Config{
 	 */
 	public static final String STORMCV_CACHES_MAX_SIZE = "stormcv.caches.maxsize";
 	
+	/**
+	 * <b>String (default = NONE)</b> configuration parameter setting the local directory used by fault tolerant spouts to journal emitted tuples. 
+	 * If set emitted tuples are stored in memory mapped files instead of an on-heap cache
+	 */
+	public static final String STORMCV_SPOUT_JOURNAL_DIR = "stormcv.spout.journal.dir";
+	
+	/**
+	 * <b>Integer (default = 64)</b> configuration parameter setting the size in MB of the segment files used by the spout journal
+	 */
+	public static final String STORMCV_SPOUT_JOURNAL_SEGMENT_MB = "stormcv.spout.journal.segmentmb";
+	
+	/**
+	 * <b>Integer (default = 100000)</b> configuration parameter setting the maximum number of tuples kept in the spout journal 
+	 */
+	public static final String STORMCV_SPOUT_JOURNAL_MAX_ENTRIES = "stormcv.spout.journal.maxentries";
+	
+	/**
+	 * <b>Boolean (default = false)</b> configuration parameter indicating if file based fetchers may take over files assigned to other tasks
+	 * of the same spout when they are done with their own files. Claims are registered in ZooKeeper (or the local tmp directory in local mode)
+	 */
+	public static final String STORMCV_SPOUT_WORK_STEALING = "stormcv.spout.workstealing";
+	
 	/**
 	 * <b>List<Class) (default = NONE) </b> configuration parameter the available {@link FileConnector} in the topology
 	 */
@@ -58,6 +80,12 @@ public class StormCVConfig extends Config{
 	 */
 	public static final String STORMCV_MAXIDLE_SEC = "stormcv.streamwriter.maxidlesecs";
 	
+	/**
+	 * <b>String (default = NONE)</b> configuration parameter setting the local directory operations use to store snapshots of their state
+	 * (i.e. background models) so a restarted worker does not have to start from scratch
+	 */
+	public static final String STORMCV_OPERATION_STATE_DIR = "stormcv.operation.state.dir";
+	
 	/**
 	 * <b>String</b> configuration parameter setting the library name of the OpenCV lib to be used
 	 */
@@ -0,0 +1,139 @@
+package nl.tno.stormcv.batcher;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import nl.tno.stormcv.bolt.BatchInputBolt.History;
+import nl.tno.stormcv.model.CVParticle;
+
+/**
+ * Keeps track of the contiguous run of items at the head of a group in the {@link History}, i.e. the item with the lowest sequenceNr
+ * and all items following it with exactly sequenceDelta between them. The run is extended when the item following the run 
+ * is inserted and rebuilt only when the head of the group changes unexpectedly (an item was inserted before the head or was
+ * removed from the history by expiration). This allows window batchers to detect complete windows without scanning the group.
+ * Items can be skipped using skip(sequenceNr) in which case the run starts at the first item at or above that sequenceNr. Skipped 
+ * items are left in the history. 
+ * 
+ * @author Corne Versloot
+ *
+ */
+class ContiguousRun {
+
+	private long head;
+	private long end;
+	private long floor = Long.MIN_VALUE;
+	private boolean valid = false;
+	
+	/**
+	 * Synchronizes the run with the history after the provided particle was inserted
+	 * @param history
+	 * @param group
+	 * @param inserted the particle just inserted (may be null)
+	 * @param delta the sequenceNr difference between subsequent items
+	 * @return the number of items in the run (0 if the group is empty)
+	 */
+	int update(History history, Object group, CVParticle inserted, int delta){
+		CVParticle first = floor == Long.MIN_VALUE ? history.getFirst(group) : history.getCeiling(group, floor);
+		if(first == null){
+			valid = false;
+			return 0;
+		}
+		if(!valid || first.getSequenceNr() != head){
+			head = first.getSequenceNr();
+			end = head;
+			valid = true;
+			extend(history, group, delta);
+		}else if(inserted != null && inserted.getSequenceNr() == end + delta){
+			extend(history, group, delta);
+		}
+		return length(delta);
+	}
+	
+	/**
+	 * Returns the first size items of the run
+	 * @param history
+	 * @param group
+	 * @param size
+	 * @param delta
+	 * @return the window or null if one of the items is no longer present in the history
+	 */
+	List<CVParticle> window(History history, Object group, int size, int delta){
+		List<CVParticle> window = new ArrayList<CVParticle>(size);
+		for(int i=0; i<size; i++){
+			CVParticle particle = history.get(group, head + i * delta);
+			if(particle == null) return null;
+			window.add(particle);
+		}
+		return window;
+	}
+	
+	/**
+	 * Moves the head of the run after the first n items have been removed from the history
+	 * @param n
+	 * @param delta
+	 */
+	void advance(int n, int delta){
+		head += n * delta;
+		if(head > end) valid = false;
+	}
+	
+	/**
+	 * Ignores all items with a sequenceNr lower than the provided one, the run will be rebuilt on the next update 
+	 * @param sequenceNr
+	 */
+	void skip(long sequenceNr){
+		floor = Math.max(floor, sequenceNr);
+		valid = false;
+	}
+	
+	/**
+	 * Looks for the first run of at least size items after the head of the current run and skips all items before it
+	 * (see skip(sequenceNr)). Nothing is skipped if there is no such run. Each item after the head is visited at most once.
+	 * @param history
+	 * @param group
+	 * @param size
+	 * @param delta
+	 * @return true if a run of at least size items was found
+	 */
+	boolean skipToComplete(History history, Object group, int size, int delta){
+		if(!valid || delta <= 0) return false;
+		CVParticle next = history.getCeiling(group, head + 1);
+		while(next != null){
+			long start = next.getSequenceNr();
+			long last = start;
+			int length = 1;
+			while(length < size && history.get(group, last + delta) != null){
+				last += delta;
+				length++;
+			}
+			if(length >= size){
+				skip(start);
+				return true;
+			}
+			next = history.getCeiling(group, last + 1);
+		}
+		return false;
+	}
+	
+	/**
+	 * Marks the run as invalid which will rebuild it on the next update
+	 */
+	void invalidate(){
+		valid = false;
+	}
+	
+	long getHead(){
+		return head;
+	}
+	
+	int length(int delta){
+		if(!valid) return 0;
+		if(delta <= 0) return 1;
+		return (int)((end - head) / delta) + 1;
+	}
+	
+	private void extend(History history, Object group, int delta){
+		if(delta <= 0) return;
+		while(history.get(group, end + delta) != null) end += delta;
+	}
+}
@@ -1,6 +1,7 @@
 package nl.tno.stormcv.batcher;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -20,6 +21,13 @@ import nl.tno.stormcv.model.CVParticle;
  * containing [20, 30] (matches the criteria but skips the first element). This method avoid a bottleneck in the topology in case an expected item
  * never appears (might have been lost in preceding bolts).
  * 
+ * When used by the {@link nl.tno.stormcv.bolt.BatchInputBolt} this Batcher works incrementally: it tracks the contiguous run of items at the head
+ * of each group and emits a batch as soon as the run reaches windowSize, without rescanning the group for every tuple received. In this mode the 
+ * greedy behavior (based on the number of items not skipped yet) jumps to the first complete run following the items blocking the 
+ * head of the group; if there is no complete run nothing is skipped and later items are batched as they arrive. Just like the items 
+ * skipped using the offset above they are left in the history where they will expire and fail (and hence be replayed if the topology 
+ * is fault tolerant).
+ * 
  * @author Corne Versloot
  *
  */
@@ -29,6 +37,7 @@ public class DiscreteWindowBatcher implements IBatcher {
 
 	private int windowSize;
 	private int sequenceDelta;
+	private transient HashMap<Object, ContiguousRun> runs;
 	
 	public DiscreteWindowBatcher(int windowSize, int sequenceDelta){
 		this.windowSize = windowSize;
@@ -69,6 +78,44 @@ public class DiscreteWindowBatcher implements IBatcher {
 		return result;
 	}
 
+	@Override
+	public List<List<CVParticle>> partition(History history, Object group, CVParticle inserted) {
+		List<List<CVParticle>> result = new ArrayList<List<CVParticle>>();
+		if(runs == null) runs = new HashMap<Object, ContiguousRun>();
+		ContiguousRun run = runs.get(group);
+		if(run == null){
+			run = new ContiguousRun();
+			runs.put(group, run);
+		}
+		
+		int length = run.update(history, group, inserted, sequenceDelta);
+		// be greedy if the part of the group not skipped yet is large enough: jump to the first complete run after the gap.
+		// Skipped items are not removed so they will expire instead of being acked. Nothing is skipped if there is no complete run
+		if(length > 0 && length < windowSize && history.size(group, run.getHead()) > 5*windowSize
+				&& run.skipToComplete(history, group, windowSize, sequenceDelta)){
+			length = run.update(history, group, null, sequenceDelta);
+		}
+		
+		while(length >= windowSize){
+			List<CVParticle> window = run.window(history, group, windowSize, sequenceDelta);
+			if(window == null){
+				// some item in the run has been removed from the history, rebuild the run
+				run.invalidate();
+				length = run.update(history, group, null, sequenceDelta);
+				continue;
+			}
+			result.add(window);
+			for(CVParticle particle : window){
+				history.removeFromHistory(particle);
+			}
+			run.advance(windowSize, sequenceDelta);
+			length = run.update(history, group, null, sequenceDelta);
+		}
+		
+		if(history.size(group) == 0) runs.remove(group);
+		return result;
+	}
+
 	/**
 	 * Checks if the provided window fits the required windowSize and sequenceDelta criteria
 	 * @param window
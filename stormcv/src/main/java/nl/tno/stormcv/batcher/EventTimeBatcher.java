@@ -0,0 +1,290 @@
+package nl.tno.stormcv.batcher;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import nl.tno.stormcv.bolt.BatchInputBolt;
+import nl.tno.stormcv.bolt.BatchInputBolt.History;
+import nl.tno.stormcv.model.CVParticle;
+import nl.tno.stormcv.model.Frame;
+import nl.tno.stormcv.model.GroupOfFrames;
+
+/**
+ * A {@link IBatcher} that creates windows based on the timestamp of the {@link Frame}s received (event time) instead of their sequenceNr.
+ * Three types of windows are supported:
+ * <ul>
+ * <li>tumbling: non overlapping windows of a fixed duration, for example [0, 1000), [1000, 2000) ...</li>
+ * <li>sliding: windows of a fixed duration that start every slide ms, for example [0, 1000), [500, 1500) ...</li>
+ * <li>session: all subsequent items that are less than gap ms apart</li>
+ * </ul>
+ * Each group (typically a stream) has its own watermark which is the highest timestamp received minus the allowed lateness. A window is
+ * emitted as soon as the watermark passes its end, hence items may arrive out of order as long as they are no more than allowedLateness
+ * behind. Items that arrive after all windows they belong to have been emitted are late and are rejected using
+ * {@link History#rejectLate(CVParticle)} which emits them on the {@link BatchInputBolt#LATE_STREAM} instead of having them fail due to
+ * expiration. Items are removed (and acked) from the history as soon as no open window can contain them any more which bounds the
+ * memory used by the {@link BatchInputBolt} to the window size plus the allowed lateness. The bolt's ttl must be larger than that 
+ * period to avoid items from expiring before their window is complete.
+ * 
+ * The timestamp of a {@link GroupOfFrames} is the timestamp of its first frame, other types of input have no timestamp and are rejected
+ * as being late. Windows are emitted only when items of the group arrive, the last window of a stream that stops is not emitted.
+ * The list based {@link #partition(History, List)} keys its state on the streamId of the items and only processes items it has not
+ * seen before, hence it gives the same results as the incremental {@link #partition(History, Object, CVParticle)} used by the BatchInputBolt.
+ * 
+ * The watermark and window bounds of a group are kept after all its items have been removed from the history (otherwise items arriving
+ * later would be accepted as on time) and are dropped when no items were received for the group during the state timeout (default = 
+ * 60 seconds). 
+ *  
+ * @author Corne Versloot
+ *
+ */
+public class EventTimeBatcher implements IBatcher {
+
+	private static final long serialVersionUID = -1749027592356034985L;
+	
+	private enum Type {TUMBLING, SLIDING, SESSION};
+	
+	private Type type;
+	private long size;
+	private long slide;
+	private long gap;
+	private long allowedLateness = 0;
+	private long stateTimeout = 60000;
+	private transient HashMap<Object, WindowState> states;
+	private transient long lastPurge = 0;
+	
+	private EventTimeBatcher(Type type, long size, long slide, long gap){
+		this.type = type;
+		this.size = size;
+		this.slide = slide;
+		this.gap = gap;
+	}
+	
+	/**
+	 * Creates a batcher that emits non overlapping windows of the specified duration
+	 * @param sizeMs
+	 * @return
+	 */
+	public static EventTimeBatcher tumbling(long sizeMs){
+		return new EventTimeBatcher(Type.TUMBLING, Math.max(1, sizeMs), Math.max(1, sizeMs), 0);
+	}
+	
+	/**
+	 * Creates a batcher that emits a window of the specified duration every slideMs 
+	 * @param sizeMs
+	 * @param slideMs
+	 * @return
+	 */
+	public static EventTimeBatcher sliding(long sizeMs, long slideMs){
+		return new EventTimeBatcher(Type.SLIDING, Math.max(1, sizeMs), Math.max(1, slideMs), 0);
+	}
+	
+	/**
+	 * Creates a batcher that emits sessions of items which are less than gapMs apart
+	 * @param gapMs
+	 * @return
+	 */
+	public static EventTimeBatcher session(long gapMs){
+		return new EventTimeBatcher(Type.SESSION, 0, 0, Math.max(1, gapMs));
+	}
+	
+	/**
+	 * Sets the time in ms items may arrive behind the highest timestamp received for their group (default = 0)
+	 * @param ms
+	 * @return itself
+	 */
+	public EventTimeBatcher allowedLateness(long ms){
+		this.allowedLateness = Math.max(0, ms);
+		return this;
+	}
+	
+	/**
+	 * Sets the time after which the state (watermark etc) of a group that did not receive any items is dropped (default = 60000)
+	 * @param ms
+	 * @return itself
+	 */
+	public EventTimeBatcher stateTimeout(long ms){
+		this.stateTimeout = ms;
+		return this;
+	}
+	
+	@SuppressWarnings("rawtypes")
+	@Override
+	public void prepare(Map stormConf) throws Exception {
+		states = new HashMap<Object, WindowState>();
+	}
+
+	@Override
+	public List<List<CVParticle>> partition(History history, List<CVParticle> currentSet) {
+		List<List<CVParticle>> result = new ArrayList<List<CVParticle>>();
+		if(currentSet.size() == 0) return result;
+		WindowState state = getState(currentSet.get(0).getStreamId());
+		// replay the items not seen before through the incremental path
+		for(CVParticle particle : currentSet){
+			Long timestamp = getTimestamp(particle);
+			if(timestamp != null && isPending(state, timestamp, particle)) continue;
+			process(history, state, particle, result);
+		}
+		return result;
+	}
+
+	@Override
+	public List<List<CVParticle>> partition(History history, Object group, CVParticle inserted) {
+		List<List<CVParticle>> result = new ArrayList<List<CVParticle>>();
+		process(history, getState(group), inserted, result);
+		return result;
+	}
+	
+	/**
+	 * Adds the particle to the state of its group and emits the windows that are complete
+	 */
+	private void process(History history, WindowState state, CVParticle particle, List<List<CVParticle>> result){
+		Long timestamp = getTimestamp(particle);
+		if(timestamp == null || isLate(state, timestamp)){
+			history.rejectLate(particle);
+			return;
+		}
+		add(state.pending, timestamp, particle);
+		state.watermark = Math.max(state.watermark, timestamp - allowedLateness);
+		if(type == Type.SESSION) fireSessions(history, state, result);
+		else fireWindows(history, state, result);
+	}
+	
+	/**
+	 * Returns the state of the group, creating it if needed. States of groups that did not receive items within 
+	 * the state timeout are dropped
+	 * @param group
+	 * @return
+	 */
+	private WindowState getState(Object group){
+		if(states == null) states = new HashMap<Object, WindowState>();
+		long now = System.currentTimeMillis();
+		if(now - lastPurge > Math.min(1000, stateTimeout)){
+			Iterator<WindowState> iterator = states.values().iterator();
+			while(iterator.hasNext()){
+				if(now - iterator.next().lastUsed > stateTimeout) iterator.remove();
+			}
+			lastPurge = now;
+		}
+		WindowState state = states.get(group);
+		if(state == null){
+			state = new WindowState();
+			states.put(group, state);
+		}
+		state.lastUsed = now;
+		return state;
+	}
+	
+	private boolean isPending(WindowState state, long timestamp, CVParticle particle){
+		List<CVParticle> items = state.pending.get(timestamp);
+		if(items == null) return false;
+		for(CVParticle item : items){
+			if(item == particle) return true;
+		}
+		return false;
+	}
+	
+	private boolean isLate(WindowState state, long timestamp){
+		if(type == Type.SESSION) return timestamp < state.closedUntil;
+		return timestamp < state.nextStart;
+	}
+	
+	/**
+	 * Emits all tumbling or sliding windows that end before the watermark and removes the items that will not be part of any 
+	 * open window from the history
+	 */
+	private void fireWindows(History history, WindowState state, List<List<CVParticle>> result){
+		while(!state.pending.isEmpty()){
+			// skip windows that cannot contain any items 
+			long first = state.pending.firstKey();
+			long start = floorDiv(first - size, slide) * slide + slide;
+			if(state.nextStart < start) state.nextStart = start;
+			if(state.nextStart + size > state.watermark) break;
+			
+			List<CVParticle> window = new ArrayList<CVParticle>();
+			for(List<CVParticle> items : state.pending.subMap(state.nextStart, state.nextStart + size).values()){
+				for(CVParticle particle : items){
+					if(history.contains(particle)) window.add(particle);
+				}
+			}
+			if(window.size() > 0) result.add(window);
+			state.nextStart += slide;
+			
+			// items before the next window start are no longer needed
+			Iterator<List<CVParticle>> done = state.pending.headMap(state.nextStart).values().iterator();
+			while(done.hasNext()){
+				for(CVParticle particle : done.next()) history.removeFromHistory(particle);
+				done.remove();
+			}
+		}
+	}
+	
+	/**
+	 * Emits all sessions that were followed by a period of at least gap ms before the watermark 
+	 */
+	private void fireSessions(History history, WindowState state, List<List<CVParticle>> result){
+		while(!state.pending.isEmpty() && state.pending.firstKey() + gap <= state.watermark){
+			// find the end of the first session
+			long last = state.pending.firstKey();
+			for(long timestamp : state.pending.keySet()){
+				if(timestamp - last >= gap) break;
+				last = timestamp;
+			}
+			if(last + gap > state.watermark) break;
+			
+			List<CVParticle> session = new ArrayList<CVParticle>();
+			Iterator<List<CVParticle>> items = state.pending.headMap(last, true).values().iterator();
+			while(items.hasNext()){
+				for(CVParticle particle : items.next()){
+					if(history.contains(particle)){
+						session.add(particle);
+						history.removeFromHistory(particle);
+					}
+				}
+				items.remove();
+			}
+			if(session.size() > 0) result.add(session);
+			state.closedUntil = last + gap;
+		}
+	}
+	
+	private void add(TreeMap<Long, List<CVParticle>> pending, long timestamp, CVParticle particle){
+		List<CVParticle> items = pending.get(timestamp);
+		if(items == null){
+			items = new ArrayList<CVParticle>(1);
+			pending.put(timestamp, items);
+		}
+		items.add(particle);
+	}
+	
+	private long floorDiv(long value, long divisor){
+		long result = value / divisor;
+		if(value % divisor != 0 && (value < 0) != (divisor < 0)) result--;
+		return result;
+	}
+	
+	private Long getTimestamp(CVParticle particle){
+		if(particle instanceof Frame) return ((Frame)particle).getTimestamp();
+		if(particle instanceof GroupOfFrames && ((GroupOfFrames)particle).nrOfFrames() > 0){
+			return ((GroupOfFrames)particle).getFrames().get(0).getTimestamp();
+		}
+		return null;
+	}
+	
+	/**
+	 * Event time state of a single group
+	 */
+	private static class WindowState {
+		
+		private TreeMap<Long, List<CVParticle>> pending = new TreeMap<Long, List<CVParticle>>();
+		private long watermark = Long.MIN_VALUE;
+		private long nextStart = Long.MIN_VALUE;
+		private long closedUntil = Long.MIN_VALUE;
+		private long lastUsed;
+		
+	}
+
+}
@@ -17,7 +17,7 @@ import nl.tno.stormcv.operation.IBatchOperation;
  * <ul>
  * <li> {@link BatchInputBolt} receives a CVParticle and selects the right 'group' to add it to (for example streamId)</li>
  * <li>The group is sorted based on sequence number</li>
- * <li>The sorted group and History are provided to the Batcher implementation</li>
+ * <li>The group, the newly inserted particle and the History are provided to the Batcher implementation</li>
  * <li>The batcher creates zero or more batches, removing particles from the History when they are no longer needed</li>
  * <li>Each batch is provided to the {@link IBatchOperation} implementation which results in zero or more CVParticles to be emitted</li>
  * <li>Each CVParticle is anchored on the received Particle and emitted</li>
@@ -26,6 +26,10 @@ import nl.tno.stormcv.operation.IBatchOperation;
  * Implementations typically base their results on the items received (size of the set, some particular ordering etc) but it is also possible to 
  * partition the input based on external criteria like a clock (all items received within one minute) or a specific 'marker' item received. 
  * 
+ * The {@link BatchInputBolt} uses {@link #partition(History, Object, CVParticle)} which only gets the inserted item. Implementations 
+ * are expected to maintain their own state per group and use the lookups provided by the History instead of scanning the 
+ * complete group for each tuple received. 
+ * 
  * @author Corne Versloot
  *
  */
@@ -34,6 +38,21 @@ public interface IBatcher extends Serializable{
 	@SuppressWarnings("rawtypes")
 	public void prepare(Map stormConf) throws Exception;
 	
+	/**
+	 * Partitions the complete set of items of a group into batches. 
+	 * @param history
+	 * @param currentSet all items within the group ordered on sequenceNr
+	 * @return zero or more batches
+	 */
 	public List<List<CVParticle>> partition(History history, List<CVParticle> currentSet);
 	
+	/**
+	 * Creates batches for the group the provided particle was just inserted in. 
+	 * @param history
+	 * @param group the key of the group the particle was added to
+	 * @param inserted the particle that was just added to the history
+	 * @return zero or more batches
+	 */
+	public List<List<CVParticle>> partition(History history, Object group, CVParticle inserted);
+	
 }
@@ -40,4 +40,11 @@ public class SequenceNrBatcher implements IBatcher{
 		return result;
 	}
 
+	@Override
+	public List<List<CVParticle>> partition(History history, Object group, CVParticle inserted) {
+		// only copy the group when it has the required size
+		if(history.size(group) != size) return new ArrayList<List<CVParticle>>();
+		return partition(history, history.getGroupedItems(group));
+	}
+
 }
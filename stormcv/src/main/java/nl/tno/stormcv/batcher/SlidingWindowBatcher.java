@@ -1,6 +1,7 @@
 package nl.tno.stormcv.batcher;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -18,6 +19,9 @@ import nl.tno.stormcv.model.CVParticle;
  * If a specific element is missing this Batcher will never provide any results. To avoid this situation it is possible to set the maximum
  * number of elements in the queue. If this maximum is reached this Batcher will generate results even if they do not match the criteria specified.  
  * 
+ * When used by the {@link nl.tno.stormcv.bolt.BatchInputBolt} this Batcher works incrementally: it tracks the contiguous run of items at the head
+ * of each group and emits a window as soon as the run reaches windowSize, without rescanning the group for every tuple received.
+ * 
  * @author Corne Versloot
  *
  */
@@ -27,6 +31,7 @@ public class SlidingWindowBatcher implements IBatcher{
 	private int windowSize;
 	private int sequenceDelta;
 	private int maxSize = Integer.MAX_VALUE;
+	private transient HashMap<Object, ContiguousRun> runs;
 
 	public SlidingWindowBatcher(int windowSize, int sequenceDelta){
 		this.windowSize = windowSize;
@@ -56,6 +61,43 @@ public class SlidingWindowBatcher implements IBatcher{
 		return result;
 	}
 
+	@Override
+	public List<List<CVParticle>> partition(History history, Object group, CVParticle inserted) {
+		List<List<CVParticle>> result = new ArrayList<List<CVParticle>>();
+		if(runs == null) runs = new HashMap<Object, ContiguousRun>();
+		ContiguousRun run = runs.get(group);
+		if(run == null){
+			run = new ContiguousRun();
+			runs.put(group, run);
+		}
+		
+		int length = run.update(history, group, inserted, sequenceDelta);
+		while(length >= windowSize){
+			List<CVParticle> window = run.window(history, group, windowSize, sequenceDelta);
+			if(window == null){
+				// some item in the run has been removed from the history, rebuild the run
+				run.invalidate();
+				length = run.update(history, group, null, sequenceDelta);
+				continue;
+			}
+			result.add(window);
+			history.removeFromHistory(window.get(0));
+			run.advance(1, sequenceDelta);
+			length = run.update(history, group, null, sequenceDelta);
+		}
+		
+		// force windows from the head of the group if it grows beyond the maximum size
+		while(history.size(group) > maxSize && history.size(group) >= windowSize){
+			List<CVParticle> window = history.getFirst(group, windowSize);
+			result.add(window);
+			history.removeFromHistory(window.get(0));
+			run.invalidate();
+		}
+		
+		if(history.size(group) == 0) runs.remove(group);
+		return result;
+	}
+
 	/**
 	 * Checks if the provided window fits the required windowSize and sequenceDelta criteria
 	 * @param window
@@ -6,19 +6,21 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.TimeUnit;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import nl.tno.stormcv.StormCVConfig;
 import nl.tno.stormcv.batcher.IBatcher;
 import nl.tno.stormcv.model.CVParticle;
+import nl.tno.stormcv.model.serializer.CVParticleSerializer;
+import nl.tno.stormcv.model.serializer.FrameSerializer;
 import nl.tno.stormcv.operation.IBatchOperation;
+import nl.tno.stormcv.operation.ILaneOperation;
+import nl.tno.stormcv.util.LaneExecutor;
+import nl.tno.stormcv.util.TimerWheel;
 
-import com.google.common.cache.Cache;
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.RemovalCause;
-import com.google.common.cache.RemovalListener;
-import com.google.common.cache.RemovalNotification;
-
+import backtype.storm.Config;
+import backtype.storm.Constants;
 import backtype.storm.generated.GlobalStreamId;
 import backtype.storm.generated.Grouping;
 import backtype.storm.task.TopologyContext;
@@ -35,7 +37,7 @@ import backtype.storm.tuple.Tuple;
  * <li>This object is added to the History based on the specified Group (i.e. set of fields, similar to fieldsGrouping used within storm).
  * Items in a group are ordered ASC based on their sequenceNr. If refreshExpirationOfOlderItems is true any existing items in the group with 
  * higher sequenceNr than the new one will have their expiration timer reset.</li>
- * <li>The provided {@link IBatcher} is called on the grouped items the new item was added to. The Batcher is responsible for the
+ * <li>The provided {@link IBatcher} is called with the group and the new item that was added to it. The Batcher is responsible for the
  * creation of appropriate batches which typically depend on the {@link IBatchOperation} implementation provided on construction. The Batcher may return
  * zero or more batches and is responsible for the removal of items from the History that are no longer needed which will result in an 
  * ACK on that tuple. Not doing so will result in expiration of items from the cache which in turn will cause failures of tuples.</li>
@@ -52,6 +54,17 @@ import backtype.storm.tuple.Tuple;
  * item with lower sequenceNr is received. This will however use more memory and does not solve the underlying problem of having a 'Bolt that is to slow' 
  * somewhere in the preceding topology. Using higher parallelism hints or setting setMaxSpoutPending() for the topology can solve the problem. 
  * 
+ * <p>Internally the History keeps the items of each group in a map sorted on sequenceNr and uses a {@link TimerWheel} to expire items.
+ * The bolt requests a tick tuple each second which is used to advance the wheel and fail expired items.
+ * 
+ * <p>Batchers can reject items that arrive too late to be part of any batch using {@link History#rejectLate(CVParticle)}. Such items
+ * are emitted on the {@link #LATE_STREAM} and acked instead of being failed by expiration. The fields of this stream are defined 
+ * by the serializer set using {@link #lateSerializer(CVParticleSerializer)} (FrameSerializer by default).
+ * 
+ * <p>Batches of an {@link ILaneOperation} are executed by a {@link LaneExecutor} instead of the thread of the bolt. Acks of items 
+ * removed from the History while they are part of a batch being executed are held until the batch is done. Results of such batches are 
+ * emitted by the thread of the bolt when it receives the next tuple (at least once a second due to the tick tuples).
+ * 
  * <p><b><Configuration:</b><br/>
  * Parameters set through storm configuration:
  * <ul>
@@ -62,9 +75,10 @@ import backtype.storm.tuple.Tuple;
  * @author Corne Versloot
  *
  */
-public class BatchInputBolt extends CVParticleBolt implements RemovalListener<CVParticle, String>{
+public class BatchInputBolt extends CVParticleBolt {
 
 	private static final long serialVersionUID = -2394218774274388493L;
+	public static final String LATE_STREAM = "late";
 
 	private IBatchOperation<? extends CVParticle> operation;
 	private IBatcher batcher;
@@ -73,6 +87,12 @@ public class BatchInputBolt extends CVParticleBolt implements RemovalListener<CV
 	private Fields groupBy;
 	private History history;
 	private boolean refreshExperation = true;
+	private HashMap<GlobalStreamId, int[]> groupIndexes;
+	@SuppressWarnings("rawtypes")
+	private CVParticleSerializer lateSerializer = new FrameSerializer();
+	private LaneExecutor lanes;
+	private ConcurrentLinkedQueue<LaneBatch> executed;
+	private HashMap<CVParticle, LaneBatch> inLane; // items and the last batch being executed they are part of
 	
 	/**
 	 * Creates a BatchInputBolt with given Batcher and BatchOperation.
@@ -128,13 +148,25 @@ public class BatchInputBolt extends CVParticleBolt implements RemovalListener<CV
 	}
 	
 	
+	/**
+	 * Sets the serializer used to declare the fields of the {@link #LATE_STREAM}, this must match the type of input
+	 * received by this bolt (default is {@link FrameSerializer}) 
+	 * @param serializer
+	 * @return
+	 */
+	@SuppressWarnings("rawtypes")
+	public BatchInputBolt lateSerializer(CVParticleSerializer serializer){
+		this.lateSerializer = serializer;
+		return this;
+	}
+	
 	@SuppressWarnings("rawtypes")
 	@Override
 	void prepare(Map conf, TopologyContext context) {
 		// use TTL and maxSize from config if they were not set explicitly using the constructor (implicit way of doing this...)
 		if(TTL == 29) TTL = conf.get(StormCVConfig.STORMCV_CACHES_TIMEOUT_SEC) == null ? TTL : ((Long)conf.get(StormCVConfig.STORMCV_CACHES_TIMEOUT_SEC)).intValue();
 		if(maxSize == 256) maxSize = conf.get(StormCVConfig.STORMCV_CACHES_MAX_SIZE) == null ? maxSize : ((Long)conf.get(StormCVConfig.STORMCV_CACHES_MAX_SIZE)).intValue();
-		history = new History(this);
+		history = new History();
 		
 		// IF NO grouping was set THEN select the first grouping registered for the spout as the grouping used within the Spout (usually a good guess)
 		if(groupBy == null){
@@ -146,6 +178,12 @@ public class BatchInputBolt extends CVParticleBolt implements RemovalListener<CV
 			}
 		}
 		
+		// resolve the positions of the groupBy fields for all input streams once instead of doing it for every tuple
+		groupIndexes = new HashMap<GlobalStreamId, int[]>();
+		for(GlobalStreamId id : context.getThisSources().keySet()){
+			groupIndexes.put(id, getGroupIndexes(context.getComponentOutputFields(id)));
+		}
+		
 		// prepare the selector and operation
 		try {
 			batcher.prepare(conf);
@@ -153,11 +191,34 @@ public class BatchInputBolt extends CVParticleBolt implements RemovalListener<CV
 		} catch (Exception e) {
 			logger.error("Unable to preapre the Selector or Operation", e);
 		}
+		
+		if(operation instanceof ILaneOperation && ((ILaneOperation<?>)operation).getLaneThreads() > 0){
+			ILaneOperation<?> laneOp = (ILaneOperation<?>)operation;
+			lanes = new LaneExecutor(laneOp.getLaneThreads(), laneOp.getLaneCapacity());
+			executed = new ConcurrentLinkedQueue<LaneBatch>();
+			inLane = new HashMap<CVParticle, LaneBatch>();
+		}
+	}
+	
+	@Override
+	public void cleanup() {
+		if(lanes != null) lanes.shutdown();
 	}
 
 	@Override
 	public void declareOutputFields(OutputFieldsDeclarer declarer) {
 		declarer.declare(operation.getSerializer().getFields());
+		declarer.declareStream(LATE_STREAM, lateSerializer.getFields());
+	}
+	
+	/**
+	 * Requests a tick tuple each second which is used to expire items from the History
+	 */
+	@Override
+	public Map<String, Object> getComponentConfiguration() {
+		Config conf = new Config();
+		conf.put(Config.TOPOLOGY_TICK_TUPLE_FREQ_SECS, 1);
+		return conf;
 	}
 
 	/**
@@ -167,7 +228,12 @@ public class BatchInputBolt extends CVParticleBolt implements RemovalListener<CV
 	 */
 	@Override
 	public void execute(Tuple input) {
-		String group = generateKey(input);
+		if(isTickTuple(input)){
+			history.expire();
+			emitExecuted();
+			return;
+		}
+		List<Object> group = generateKey(input);
 		if(group == null){
 			collector.fail(input);
 			return;
@@ -176,8 +242,14 @@ public class BatchInputBolt extends CVParticleBolt implements RemovalListener<CV
 		try {
 			particle = deserialize(input);
 			history.add(group, particle);
-			List<List<CVParticle>> batches = batcher.partition(history, history.getGroupedItems(group));
+			if(lanes != null) history.heldAcks = new ArrayList<CVParticle>();
+			List<List<CVParticle>> batches = batcher.partition(history, group, particle);
 			for(List<CVParticle> batch : batches){
+				Object lane = lanes == null ? null : ((ILaneOperation<?>)operation).getLane(batch);
+				if(lane != null){
+					submit(lane, batch, input, particle.getRequestId());
+					continue;
+				}
 				try{
 					List<? extends CVParticle> results = operation.execute(batch);
 					for(CVParticle result : results){
@@ -191,49 +263,116 @@ public class BatchInputBolt extends CVParticleBolt implements RemovalListener<CV
 		} catch (IOException e1) {
 			logger.warn("Unable to deserialize Tuple", e1);
 		}
+		releaseAcks();
+		history.expire();
+		if(lanes != null) emitExecuted();
 		idleTimestamp = System.currentTimeMillis();
 	}
 	
+	/**
+	 * Hands the batch to the lane executor, blocks while the lane is full. If the bolt is interrupted while waiting the batch
+	 * is executed by the thread of the bolt so the acks held for it are only released after it was processed.
+	 */
+	private void submit(Object lane, List<CVParticle> batch, Tuple anchor, long requestId){
+		LaneBatch task = new LaneBatch(batch, anchor, requestId);
+		for(CVParticle item : batch) inLane.put(item, task);
+		try{
+			while(!lanes.offer(lane, batch.size(), task, 100)){
+				emitExecuted();
+			}
+		}catch(InterruptedException e){
+			logger.warn("Interrupted while submitting batch for lane "+lane+", executing it on the bolt thread");
+			task.run();
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	/**
+	 * Acks the items removed from the history during partitioning, items part of a batch being executed
+	 * are acked once the batch is done
+	 */
+	private void releaseAcks(){
+		if(history.heldAcks == null) return;
+		for(CVParticle item : history.heldAcks){
+			LaneBatch batch = inLane.get(item);
+			if(batch != null) batch.acks.add(item);
+			else collector.ack(item.getTuple());
+		}
+		history.heldAcks = null;
+	}
+	
+	/**
+	 * Emits the results of batches executed by the lanes and acks the items held for them
+	 */
+	private void emitExecuted(){
+		LaneBatch done;
+		while((done = executed.poll()) != null){
+			for(CVParticle result : done.results){
+				result.setRequestId(done.requestId);
+				try {
+					collector.emit(done.anchor, serializers.get(result.getClass().getName()).toTuple(result));
+				} catch (IOException e) {
+					logger.warn("Unable to emit result of batch", e);
+				}
+			}
+			for(CVParticle item : done.batch){
+				if(inLane.get(item) == done) inLane.remove(item);
+			}
+			for(CVParticle item : done.acks) collector.ack(item.getTuple());
+		}
+	}
+	
 	@Override
 	List<? extends CVParticle> execute(CVParticle input) {
 		// TODO Auto-generated method stub
 		return null;
 	}
 	
+	private boolean isTickTuple(Tuple tuple){
+		return Constants.SYSTEM_COMPONENT_ID.equals(tuple.getSourceComponent()) 
+				&& Constants.SYSTEM_TICK_STREAM_ID.equals(tuple.getSourceStreamId());
+	}
+	
 	/**
-	 * Generates the key for the provided tuple using the fields provided at construction time
-	 * @param tuple
-	 * @return key created for this tuple or NULL if no key could be created (i.e. tuple does not contain any of groupBy Fields)
+	 * Returns the positions of the groupBy fields within the provided fields (fields not present are ignored)
+	 * @param fields
+	 * @return
 	 */
-	private String generateKey(Tuple tuple){
-		String key = new String();
+	private int[] getGroupIndexes(Fields fields){
+		List<Integer> indexes = new ArrayList<Integer>();
 		for(String field : groupBy){
-			key += tuple.getValueByField(field)+"_";
+			if(fields.contains(field)) indexes.add(fields.fieldIndex(field));
 		}
-		if(key.length() == 0) return null;
-		return key;
+		int[] result = new int[indexes.size()];
+		for(int i=0; i<result.length; i++) result[i] = indexes.get(i);
+		return result;
 	}
 	
 	/**
-	 * Callback method for removal of items from the histories cache. Items removed from the cache need to be acked or failed
-	 * according to the reason they were removed
+	 * Generates the key for the provided tuple using the fields provided at construction time
+	 * @param tuple
+	 * @return key created for this tuple or NULL if no key could be created (i.e. tuple does not contain any of groupBy Fields)
 	 */
-	@Override
-	public void onRemoval(RemovalNotification<CVParticle, String> notification) {
-		// make sure the CVParticle object is removed from the history (even if removal was automatic!)
-		history.clear(notification.getKey(), notification.getValue());
-		if(notification.getCause() == RemovalCause.EXPIRED || notification.getCause() == RemovalCause.SIZE){
-			// item removed automatically --> fail the tuple
-			collector.fail(notification.getKey().getTuple());
-		}else{
-			// item removed explicitly --> ack the tuple
-			collector.ack(notification.getKey().getTuple());
+	private List<Object> generateKey(Tuple tuple){
+		int[] indexes = groupIndexes.get(tuple.getSourceGlobalStreamid());
+		if(indexes == null){
+			indexes = getGroupIndexes(tuple.getFields());
+			groupIndexes.put(tuple.getSourceGlobalStreamid(), indexes);
+		}
+		if(indexes.length == 0) return null;
+		List<Object> key = new ArrayList<Object>(indexes.length);
+		for(int index : indexes){
+			key.add(tuple.getValue(index));
 		}
+		return key;
 	}
 	
 	// ----------------------------- HISTORY CONTAINER ---------------------------
 	/**
 	 * Container that manages the history of tuples received and allows others to clean up the history retained.
+	 * Items within a group are indexed on sequenceNr which makes insertion and removal O(log n) in the size of the group. 
+	 * Expiration is handled by a {@link TimerWheel} which is advanced by the bolt. Items that expire or are evicted because the
+	 * maximum size is reached are failed, items removed explicitly are acked.
 	 *  
 	 * @author Corne Versloot
 	 *
@@ -242,20 +381,18 @@ public class BatchInputBolt extends CVParticleBolt implements RemovalListener<CV
 		
 		private static final long serialVersionUID = 5353548571380002710L;
 		
-		private Cache<CVParticle, String> inputCache;
-		private HashMap<String, List<CVParticle>> groups;
+		private HashMap<Object, Group> groups;
+		private HashMap<CVParticle, Object> particleGroups; // CVParticle does not override equals so this map works on identity
+		private TimerWheel<CVParticle> timers;
+		private List<CVParticle> heldAcks; // if set items removed from the history are acked later by the bolt
 		
 		/**
-		 * Creates a History object for the specified Bolt (which is used to ack or fail items removed from the history).
-		 * @param bolt
+		 * Creates a History object which uses the ttl, maxSize and collector of the enclosing bolt (package private for benchmarks)
 		 */
-		private History(BatchInputBolt bolt){
-			groups = new HashMap<String, List<CVParticle>>();
-			inputCache = CacheBuilder.newBuilder()
-					.maximumSize(maxSize)
-					.expireAfterAccess(TTL, TimeUnit.SECONDS) // resets also on get(...)!
-					.removalListener(bolt)
-					.build();
+		History(){
+			groups = new HashMap<Object, Group>();
+			particleGroups = new HashMap<CVParticle, Object>();
+			timers = new TimerWheel<CVParticle>(1000, Math.min(TTL + 2, 512));
 		}
 		
 		/**
@@ -263,23 +400,35 @@ public class BatchInputBolt extends CVParticleBolt implements RemovalListener<CV
 		 * @param group the name of the group the CVParticle belongs to
 		 * @param particle the CVParticle object that needs to be added to the history.
 		 */
-		private void add(String group, CVParticle particle){
-			if(!groups.containsKey(group)){
-				groups.put(group, new ArrayList<CVParticle>());
+		void add(Object group, CVParticle particle){
+			Group items = groups.get(group);
+			if(items == null){
+				items = new Group();
+				groups.put(group, items);
 			}
-			List<CVParticle> list = groups.get(group);
-			int i;
-			for(i = list.size()-1; i>=0; i--){
-				if( particle.getSequenceNr() > list.get(i).getSequenceNr()){
-					list.add(i+1, particle);
-					break;
-				}
-				if(refreshExperation){
-					inputCache.getIfPresent(list.get(i)); // touch the item passed in the cache to reset its expiration timer
+			if(refreshExperation){
+				// reset the expiration timer of all items passed
+				for(List<CVParticle> passed : items.tailMap(particle.getSequenceNr(), false).values()){
+					for(CVParticle p : passed) timers.schedule(p, TTL * 1000L);
 				}
 			}
-			if(i < 0) list.add(0, particle);
-			inputCache.put(particle, group);
+			List<CVParticle> bucket = items.get(particle.getSequenceNr());
+			if(bucket == null){
+				bucket = new ArrayList<CVParticle>(1);
+				items.put(particle.getSequenceNr(), bucket);
+			}
+			bucket.add(particle);
+			items.count++;
+			particleGroups.put(particle, group);
+			timers.schedule(particle, TTL * 1000L);
+			
+			// evict the oldest items when the maximum size has been exceeded
+			while(particleGroups.size() > maxSize){
+				CVParticle oldest = timers.oldest();
+				if(oldest == null) break;
+				clear(oldest);
+				collector.fail(oldest.getTuple());
+			}
 		}
 		
 		/**
@@ -287,40 +436,212 @@ public class BatchInputBolt extends CVParticleBolt implements RemovalListener<CV
 		 * @param particle
 		 */
 		public void removeFromHistory(CVParticle particle){
-			inputCache.invalidate(particle);
+			if(clear(particle)){
+				if(heldAcks != null) heldAcks.add(particle);
+				else collector.ack(particle.getTuple());
+			}
+		}
+		
+		/**
+		 * Removes the object from the history and emits it on the {@link BatchInputBolt#LATE_STREAM}. This is used by batchers 
+		 * for items that arrived too late to be part of a batch. The item will be acked.
+		 * @param particle
+		 */
+		@SuppressWarnings("unchecked")
+		public void rejectLate(CVParticle particle){
+			if(!contains(particle)) return;
+			try {
+				CVParticleSerializer<? extends CVParticle> serializer = serializers.get(particle.getClass().getName());
+				if(serializer == null) serializer = lateSerializer;
+				collector.emit(LATE_STREAM, particle.getTuple(), serializer.toTuple(particle));
+			} catch (IOException e) {
+				logger.warn("Unable to emit late item on stream "+LATE_STREAM, e);
+			}
+			removeFromHistory(particle);
+		}
+		
+		/**
+		 * Fails and removes all items which have not been accessed within the ttl
+		 */
+		void expire(){
+			for(CVParticle particle : timers.advance()){
+				clear(particle);
+				collector.fail(particle.getTuple());
+			}
+		}
+		
+		/**
+		 * Removes the object from its group and the expiration timers
+		 * @param particle
+		 * @return true if the particle was present in the history
+		 */
+		private boolean clear(CVParticle particle){
+			Object group = particleGroups.remove(particle);
+			if(group == null) return false;
+			timers.cancel(particle);
+			Group items = groups.get(group);
+			List<CVParticle> bucket = items.get(particle.getSequenceNr());
+			if(bucket != null){
+				for(int i=0; i<bucket.size(); i++){
+					if(bucket.get(i) == particle){
+						bucket.remove(i);
+						items.count--;
+						break;
+					}
+				}
+				if(bucket.size() == 0) items.remove(particle.getSequenceNr());
+			}
+			if(items.size() == 0) groups.remove(group);
+			return true;
+		}
+		
+		/**
+		 * Returns all the items in this history that belong to the specified group ordered on sequenceNr. The returned
+		 * list is a copy and can be used while items are removed from the history.
+		 * @param group
+		 * @return
+		 */
+		public List<CVParticle> getGroupedItems(Object group){
+			return getFirst(group, Integer.MAX_VALUE);
+		}
+		
+		/**
+		 * Returns (a copy of) the first n items of the specified group ordered on sequenceNr
+		 * @param group
+		 * @param n
+		 * @return list with at most n items
+		 */
+		public List<CVParticle> getFirst(Object group, int n){
+			List<CVParticle> result = new ArrayList<CVParticle>();
+			Group items = groups.get(group);
+			if(items == null) return result;
+			for(List<CVParticle> bucket : items.values()){
+				for(CVParticle particle : bucket){
+					if(result.size() >= n) return result;
+					result.add(particle);
+				}
+			}
+			return result;
+		}
+		
+		/**
+		 * Returns the item with the lowest sequenceNr within the group
+		 * @param group
+		 * @return the first item or null if the group is empty
+		 */
+		public CVParticle getFirst(Object group){
+			Group items = groups.get(group);
+			if(items == null || items.size() == 0) return null;
+			return items.firstEntry().getValue().get(0);
+		}
+		
+		/**
+		 * Returns the item with the lowest sequenceNr equal to or higher than the provided sequenceNr within the group
+		 * @param group
+		 * @param sequenceNr
+		 * @return the item or null if there is no such item
+		 */
+		public CVParticle getCeiling(Object group, long sequenceNr){
+			Group items = groups.get(group);
+			if(items == null) return null;
+			Map.Entry<Long, List<CVParticle>> entry = items.ceilingEntry(sequenceNr);
+			return entry == null ? null : entry.getValue().get(0);
+		}
+		
+		/**
+		 * Returns the item with the specified sequenceNr within the group
+		 * @param group
+		 * @param sequenceNr
+		 * @return the (first) item with the sequenceNr or null if it is not present
+		 */
+		public CVParticle get(Object group, long sequenceNr){
+			Group items = groups.get(group);
+			if(items == null) return null;
+			List<CVParticle> bucket = items.get(sequenceNr);
+			return bucket == null ? null : bucket.get(0);
 		}
 		
 		/**
-		 * Removes the object from the group
 		 * @param particle
+		 * @return true if the particle is still present in the history
+		 */
+		public boolean contains(CVParticle particle){
+			return particleGroups.containsKey(particle);
+		}
+		
+		/**
+		 * Returns the number of items within the specified group
 		 * @param group
+		 * @return
 		 */
-		private void clear(CVParticle particle, String group){
-			if(!groups.containsKey(group)) return;
-			groups.get(group).remove(particle);
-			if(groups.get(group).size() == 0) groups.remove(group);
+		public int size(Object group){
+			Group items = groups.get(group);
+			return items == null ? 0 : items.count;
 		}
 		
 		/**
-		 * Returns all the items in this history that belong to the specified group
+		 * Returns the number of items within the specified group with a sequenceNr equal to or higher than the provided one
 		 * @param group
+		 * @param sequenceNr
 		 * @return
 		 */
-		public List<CVParticle> getGroupedItems(String group){
-			return groups.get(group); 
+		public int size(Object group, long sequenceNr){
+			Group items = groups.get(group);
+			if(items == null) return 0;
+			int count = 0;
+			for(List<CVParticle> bucket : items.tailMap(sequenceNr, true).values()) count += bucket.size();
+			return count;
 		}
 		
 		public long size(){
-			return inputCache.size();
+			return particleGroups.size();
 		}
 		
 		public String toString(){
 			String result = "";
-			for(String group : groups.keySet()){
-				result += "  "+group+" : "+groups.get(group).size()+"\r\n";
+			for(Object group : groups.keySet()){
+				result += "  "+group+" : "+groups.get(group).count+"\r\n";
 			}
 			return result;
 		}
 	}// end of History class
+	
+	/**
+	 * A batch executed by a lane, the results are emitted by the thread of the bolt
+	 */
+	private class LaneBatch implements Runnable{
+		
+		private List<CVParticle> batch;
+		private Tuple anchor;
+		private long requestId;
+		private List<CVParticle> acks = new ArrayList<CVParticle>();
+		private volatile List<? extends CVParticle> results = new ArrayList<CVParticle>();
+		
+		private LaneBatch(List<CVParticle> batch, Tuple anchor, long requestId){
+			this.batch = batch;
+			this.anchor = anchor;
+			this.requestId = requestId;
+		}
+
+		@Override
+		public void run() {
+			try{
+				results = operation.execute(batch);
+			}catch(Exception e){
+				logger.warn("Unable to to process batch due to ", e);
+			}
+			executed.add(this);
+		}
+	}
+	
+	/**
+	 * The items of a single group indexed on sequenceNr, the count includes items sharing a sequenceNr
+	 */
+	private static class Group extends TreeMap<Long, List<CVParticle>>{
+		
+		private static final long serialVersionUID = -3496420916581409236L;
+		private int count = 0;
+		
+	}
 
 }
@@ -0,0 +1,212 @@
+package nl.tno.stormcv.fetcher;
+
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import backtype.storm.task.TopologyContext;
+import nl.tno.stormcv.StormCVConfig;
+import nl.tno.stormcv.model.CVParticle;
+import nl.tno.stormcv.model.Frame;
+import nl.tno.stormcv.model.GroupOfFrames;
+import nl.tno.stormcv.model.serializer.CVParticleSerializer;
+import nl.tno.stormcv.spout.CVParticleSpout;
+import nl.tno.stormcv.util.ImageUtils;
+
+/**
+ * A meta {@link IFetcher} that suppresses frames which are (nearly) identical to the previous frame emitted for the same stream,
+ * typically produced by static cameras. A perceptual hash (see {@link ImageUtils#dHash(BufferedImage)}) is calculated for each 
+ * {@link Frame} fetched by the wrapped fetcher and the frame is only emitted if the Hamming distance between its hash and the hash
+ * of the last emitted frame of the stream exceeds the threshold. A frame is always emitted if the previous emitted frame of the stream
+ * is older than the keep alive time (based on frame timestamps) so downstream operations know the stream is still active.
+ * 
+ * Emitted frames get the number of frames suppressed before them in their metadata ("suppressed") together with the sequenceNr 
+ * of the previous frame emitted for the stream ("previousSequenceNr") which allows downstream windows to account for the gaps.
+ * Other particles (like {@link GroupOfFrames}) are passed through unchanged.
+ * 
+ * If the wrapped fetcher replays failed particles itself (see {@link IReplayFetcher}) suppressed frames are acked immediately and
+ * replayed frames are never suppressed. Failed frames are remembered until they are fetched again or acked, for at most 
+ * {@link StormCVConfig}.STORMCV_CACHES_TIMEOUT_SEC seconds (default 30) and up to STORMCV_CACHES_MAX_SIZE frames (default 500) 
+ * like the tuple cache of the {@link CVParticleSpout}.
+ * 
+ * The state of at most maxStreams streams is kept (default = 1000), the state of a stream that did not fetch any frames for a
+ * minute (or the keep alive time if that is longer) is dropped.
+ * 
+ * @author Corne Versloot
+ *
+ */
+@SuppressWarnings("rawtypes")
+public class DuplicateFilterFetcher implements IReplayFetcher<CVParticle>, Closeable {
+
+	private static final long serialVersionUID = 2893310962731532880L;
+	private static final int MAX_SUPPRESSED_PER_CALL = 100;
+	private Logger logger = LoggerFactory.getLogger(DuplicateFilterFetcher.class);
+	private IFetcher fetcher;
+	private int threshold;
+	private long keepAlive = 5000;
+	private int maxStreams = 1000;
+	private Cache<String, StreamState> streams;
+	private Cache<Object, Boolean> replaying;
+
+	/**
+	 * Creates a filter around the provided fetcher
+	 * @param fetcher
+	 * @param threshold the maximum number of bits (out of 64) in which the hashes of duplicate frames may differ 
+	 */
+	public DuplicateFilterFetcher(IFetcher fetcher, int threshold){
+		this.fetcher = fetcher;
+		this.threshold = threshold;
+	}
+	
+	/**
+	 * Sets the maximum time in ms between two emitted frames of the same stream (default = 5000). 
+	 * @param ms
+	 * @return itself
+	 */
+	public DuplicateFilterFetcher keepAlive(long ms){
+		this.keepAlive = ms;
+		return this;
+	}
+	
+	/**
+	 * Sets the maximum number of streams to keep the last emitted frame for (default = 1000)
+	 * @param max
+	 * @return itself
+	 */
+	public DuplicateFilterFetcher maxStreams(int max){
+		this.maxStreams = max;
+		return this;
+	}
+	
+	@Override
+	public void prepare(Map stormConf, TopologyContext context) throws Exception {
+		fetcher.prepare(stormConf, context);
+		streams = CacheBuilder.newBuilder()
+				.maximumSize(Math.max(1, maxStreams))
+				.expireAfterAccess(Math.max(keepAlive, 60000), TimeUnit.MILLISECONDS)
+				.build();
+		long timeout = stormConf.get(StormCVConfig.STORMCV_CACHES_TIMEOUT_SEC) == null ? 30 : (Long)stormConf.get(StormCVConfig.STORMCV_CACHES_TIMEOUT_SEC);
+		int maxSize = stormConf.get(StormCVConfig.STORMCV_CACHES_MAX_SIZE) == null ? 500 : ((Long)stormConf.get(StormCVConfig.STORMCV_CACHES_MAX_SIZE)).intValue();
+		replaying = CacheBuilder.newBuilder()
+				.maximumSize(maxSize)
+				.expireAfterWrite(timeout, TimeUnit.SECONDS)
+				.build();
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public CVParticleSerializer<CVParticle> getSerializer() {
+		return fetcher.getSerializer();
+	}
+
+	@Override
+	public void activate() {
+		fetcher.activate();
+	}
+
+	@Override
+	public void deactivate() {
+		fetcher.deactivate();
+	}
+	
+	/**
+	 * Closes the wrapped fetcher if it is {@link Closeable}, called by the {@link CVParticleSpout} when it is closed
+	 */
+	@Override
+	public void close() throws IOException {
+		if(streams != null) streams.invalidateAll();
+		if(replaying != null) replaying.invalidateAll();
+		if(fetcher instanceof Closeable) ((Closeable)fetcher).close();
+	}
+
+	@Override
+	public CVParticle fetchData() {
+		// continue with the next particle if a frame is suppressed (limited to avoid blocking the spout)
+		for(int i=0; i<MAX_SUPPRESSED_PER_CALL; i++){
+			CVParticle particle = fetcher.fetchData();
+			if(particle == null) return null;
+			particle = filter(particle);
+			if(particle != null) return particle;
+		}
+		return null;
+	}
+	
+	/**
+	 * Checks if the provided particle must be emitted
+	 * @param particle
+	 * @return the particle or null if it is suppressed
+	 */
+	private CVParticle filter(CVParticle particle){
+		if(!(particle instanceof Frame)) return particle;
+		Frame frame = (Frame)particle;
+		String msgId = CVParticleSpout.getMessageId(frame);
+		if(replaying.asMap().remove(msgId) != null) return frame;
+		
+		long hash;
+		try{
+			BufferedImage image = frame.getImage();
+			if(image == null) return frame;
+			hash = ImageUtils.dHash(image);
+		}catch(Exception e){
+			logger.warn("Unable to hash frame "+msgId+": "+e.getMessage());
+			return frame;
+		}
+		
+		StreamState state = streams.getIfPresent(frame.getStreamId());
+		if(state != null && Long.bitCount(state.hash ^ hash) <= threshold 
+				&& frame.getTimestamp() - state.timestamp < keepAlive && frame.getSequenceNr() > state.sequenceNr){
+			state.suppressed++;
+			if(replayEnabled()) ((IReplayFetcher)fetcher).ack(msgId);
+			return null;
+		}
+		if(state == null){
+			state = new StreamState();
+			streams.put(frame.getStreamId(), state);
+		}else{
+			frame.getMetadata().put("suppressed", state.suppressed);
+			frame.getMetadata().put("previousSequenceNr", state.sequenceNr);
+		}
+		state.hash = hash;
+		state.timestamp = frame.getTimestamp();
+		state.sequenceNr = frame.getSequenceNr();
+		state.suppressed = 0;
+		return frame;
+	}
+	
+	@Override
+	public boolean replayEnabled() {
+		return fetcher instanceof IReplayFetcher && ((IReplayFetcher)fetcher).replayEnabled();
+	}
+
+	@Override
+	public void ack(Object msgId) {
+		if(!(fetcher instanceof IReplayFetcher)) return;
+		replaying.invalidate(msgId);
+		((IReplayFetcher)fetcher).ack(msgId);
+	}
+
+	@Override
+	public void fail(Object msgId) {
+		if(!(fetcher instanceof IReplayFetcher)) return;
+		replaying.put(msgId, Boolean.TRUE);
+		((IReplayFetcher)fetcher).fail(msgId);
+	}
+	
+	/**
+	 * The last frame emitted for a stream
+	 */
+	private static class StreamState {
+		private long hash;
+		private long timestamp;
+		private long sequenceNr;
+		private int suppressed = 0;
+	}
+}
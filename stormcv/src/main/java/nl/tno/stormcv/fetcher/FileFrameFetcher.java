@@ -1,15 +1,24 @@
 package nl.tno.stormcv.fetcher;
 
-import java.io.File;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import backtype.storm.metric.api.IMetric;
 import backtype.storm.task.TopologyContext;
 import nl.tno.stormcv.StormCVConfig;
 import nl.tno.stormcv.model.GroupOfFrames;
@@ -19,10 +28,19 @@ import nl.tno.stormcv.model.serializer.GroupOfFramesSerializer;
 import nl.tno.stormcv.model.serializer.FrameSerializer;
 import nl.tno.stormcv.model.serializer.CVParticleSerializer;
 import nl.tno.stormcv.operation.GroupOfFramesOp;
+import nl.tno.stormcv.spout.CVParticleSpout;
+import nl.tno.stormcv.util.FilePrefetcher;
+import nl.tno.stormcv.util.ImageUtils;
+import nl.tno.stormcv.util.SourceAssigner;
 import nl.tno.stormcv.util.StreamReader;
+import nl.tno.stormcv.util.StreamReader.DecodeMode;
+import nl.tno.stormcv.util.VideoDecoder;
+import nl.tno.stormcv.util.VideoSegment;
 import nl.tno.stormcv.util.connector.ConnectorHolder;
 import nl.tno.stormcv.util.connector.FileConnector;
 
+import com.xuggle.xuggler.IVideoPicture;
+
 /**
  * FileFrameFetcher is responsible for extracting frames from video files. These files can reside on any location as long
  * as a {@link FileConnector} was registered for it at the {@link StormCVConfig}. StromCV has some connectors that can be used
@@ -30,8 +48,21 @@ import nl.tno.stormcv.util.connector.FileConnector;
  * 
  * If FileFrameFetcher is initialized with a directory instead of a file the directory will be expanded and all files with video extensions 
  * will be listed instead (recursively!). The expanded list will be divided among all FileFrameFetchers operating in the
- * topology. Each FileFrameFetcher will process its own list sequentially until it is done. Each file is downloaded to the 
- * local tmp directory of the Spout executing the fetcher and deleted afterwards.
+ * topology based on the size of the files (see {@link SourceAssigner}). Each FileFrameFetcher will process its own list sequentially, 
+ * largest files first, until it is done. Each file is downloaded to the local tmp directory of the Spout executing the fetcher and 
+ * deleted afterwards. Files are downloaded ahead of the reader by a {@link FilePrefetcher} using a configurable number of parallel 
+ * downloads and a budget for the disk space used by downloaded files. If replay is enabled downloaded files are deleted once all frames 
+ * read from them have been acked, otherwise they are deleted once they have been read. If work stealing is enabled a fetcher that is done with its own files takes over files of other fetchers 
+ * that have not been started yet.
+ * 
+ * If streaming is enabled remote files in containers that can be read sequentially (i.e. ts, flv, mkv) are not downloaded but decoded 
+ * directly from the stream of their {@link FileConnector}. Other files, segments and all files when replay is enabled are still 
+ * downloaded because reading them requires seeking.
+ * 
+ * Large files can be split into segments (see {@link VideoSegment}) which are assigned to tasks like normal files. This allows 
+ * multiple tasks to decode different parts of the same file concurrently. Segments are aligned on keyframes and frames read from a 
+ * segment get the streamId, sequence number and timestamp they would have had if the entire file was read by a single task. Each task
+ * reading a segment of a remote file downloads its own copy of the file. Splitting files is not supported in combination with singleId.
  * 
  * The frameSkip and groupSize parameters define which frames will be extracted using: frameNr % frameSkip < groupSize-1
  * With a frameSkip of 10 and groupSize of 2 the following framenumbers will be extracted: 0,1,10,11,20,21,.. Both frameskip and
@@ -44,11 +75,17 @@ import nl.tno.stormcv.util.connector.FileConnector;
  * This fetcher can be configured to emit {@link GroupOfFrames} objects instead of {@link Frame} by using the groupOfFramesOutput method. Emitting
  * a {@link GroupOfFrames} can be useful when the subsequent Operation requires multiple frames of the same stream in which case the
  * {@link GroupOfFramesOp} can be used without a batcher. 
+ * 
+ * If replay is enabled this fetcher regenerates failed frames by seeking in the video file instead of having the {@link CVParticleSpout}
+ * cache all emitted tuples. Only the file and frame number of particles in flight are kept. Failures are collected by a separate thread
+ * which decodes the required frames from the nearest preceding keyframe, failures close to each other (i.e. within the same GOP) are
+ * handled with a single seek. Downloaded files are kept until all frames read from them have been acked. Replayed frames get their
+ * frame number from the timestamp within the video which matches the original numbering for videos with a constant frame rate.
  *   
  * @author Corne Versloot
  *
  */
-public class FileFrameFetcher implements IFetcher<CVParticle> {
+public class FileFrameFetcher implements IReplayFetcher<CVParticle>, Closeable {
 
 	private static final long serialVersionUID = 2851573165386120721L;
 	private Logger logger = LoggerFactory.getLogger(FileFrameFetcher.class);
@@ -56,6 +93,14 @@ public class FileFrameFetcher implements IFetcher<CVParticle> {
 	private int frameSkip = 1;
 	private int groupSize = 1;
 	private List<String> locations;
+	private SourceAssigner assigner;
+	private boolean workStealing = false;
+	private int segments = 1;
+	private int downloadThreads = 1;
+	private long diskBudget = Long.MAX_VALUE;
+	private boolean streaming = false;
+	private FilePrefetcher prefetcher;
+	private LinkedBlockingQueue<String> videoList;
 	private StreamReader streamReader;
 	private LinkedBlockingQueue<Frame> frameQueue = new LinkedBlockingQueue<Frame>(100);
 	private int sleepTime = 0;
@@ -63,6 +108,16 @@ public class FileFrameFetcher implements IFetcher<CVParticle> {
 	private boolean useSingleId = false;
 	private int batchSize = 1;
 	private String imageType;
+	private int encoderThreads = 0;
+	private DecodeMode decodeMode = DecodeMode.ALL;
+	private boolean replay = false;
+	private int seekDistance = 250;
+	private HashMap<Object, Replay> inFlight;
+	private HashMap<String, Integer> fileRefs;
+	private Set<String> completedFiles;
+	private ConcurrentLinkedQueue<String> readFiles;
+	private LinkedBlockingQueue<CVParticle> replayQueue;
+	private FrameReplayer replayer;
 	
 	/**
 	 * Sets the locations this fetcher will read video from. The list is split evenly
@@ -113,6 +168,62 @@ public class FileFrameFetcher implements IFetcher<CVParticle> {
 		return this;
 	}
 	
+	/**
+	 * Splits each file into the provided number of segments which can be read by different tasks. If set to 0 the number 
+	 * of segments is equal to the number of tasks. The default value is 1 which means that files are not split.
+	 * @param count
+	 * @return
+	 */
+	public FileFrameFetcher segments(int count){
+		this.segments = count;
+		return this;
+	}
+	
+	/**
+	 * Configures the download of files ahead of reading them
+	 * @param threads the number of files downloaded in parallel (default = 1)
+	 * @param diskBudget the maximum number of bytes used by downloaded files which have not been deleted yet (default is unlimited).
+	 * A file is always downloaded if no other files are present, even if it is larger than the budget.
+	 * @return
+	 */
+	public FileFrameFetcher prefetch(int threads, long diskBudget){
+		this.downloadThreads = threads;
+		this.diskBudget = diskBudget;
+		return this;
+	}
+	
+	/**
+	 * Enables decoding of remote files directly from their connector instead of downloading them first (default = false).
+	 * This only applies to files in containers that do not require seeking and is ignored if replay is enabled. 
+	 * @param streaming
+	 * @return
+	 */
+	public FileFrameFetcher streaming(boolean streaming){
+		this.streaming = streaming;
+		return this;
+	}
+	
+	/**
+	 * Sets the number of threads used to encode frames in parallel with decoding. If set to 0 (default) frames are
+	 * encoded by the thread decoding the video. 
+	 * @param threads
+	 * @return
+	 */
+	public FileFrameFetcher encoderThreads(int threads){
+		this.encoderThreads = threads;
+		return this;
+	}
+	
+	/**
+	 * Sets the {@link DecodeMode} used to skip decoding of frames that are not needed (default is ALL). 
+	 * @param mode
+	 * @return
+	 */
+	public FileFrameFetcher decodeMode(DecodeMode mode){
+		this.decodeMode = mode;
+		return this;
+	}
+	
 	/**
 	 * Specifies the number of frames to be send at once. If set to 1 (default value) this Fetcher will emit
 	 * {@link Frame} objects. If set to 2 or more it will emit {@link GroupOfFrames} objects.
@@ -124,6 +235,38 @@ public class FileFrameFetcher implements IFetcher<CVParticle> {
 		return this;
 	}
 	
+	/**
+	 * Enables replay of failed frames by seeking in the source file (default is false). 
+	 * @param replay
+	 * @return
+	 */
+	public FileFrameFetcher replay(boolean replay){
+		this.replay = replay;
+		return this;
+	}
+	
+	/**
+	 * Sets the number of frames the replayer will decode through to get from one failed frame to the next instead of seeking
+	 * (default = 250). 
+	 * @param frames
+	 * @return
+	 */
+	public FileFrameFetcher replaySeekDistance(int frames){
+		this.seekDistance = frames;
+		return this;
+	}
+	
+	/**
+	 * Allows this fetcher to take over files assigned to other fetchers that have not been started yet once
+	 * it has processed its own files (default = false). Can also be set using {@link StormCVConfig}.STORMCV_SPOUT_WORK_STEALING 
+	 * @param steal
+	 * @return
+	 */
+	public FileFrameFetcher workStealing(boolean steal){
+		this.workStealing = steal;
+		return this;
+	}
+	
 	@SuppressWarnings({ "rawtypes"})
 	@Override
 	public void prepare(Map conf, TopologyContext context) throws Exception {
@@ -141,15 +284,41 @@ public class FileFrameFetcher implements IFetcher<CVParticle> {
 		}
 		
 		int nrTasks = context.getComponentTasks(context.getThisComponentId()).size();
+		if(conf.containsKey(StormCVConfig.STORMCV_SPOUT_WORK_STEALING)){
+			workStealing = (Boolean)conf.get(StormCVConfig.STORMCV_SPOUT_WORK_STEALING);
+		}
 		
-		// change the list based on the number of tasks working on it
-		List<String> filesToFetch = new ArrayList<String>();
-		int i = context.getThisTaskIndex();
-		while(i < locations.size()){
-			filesToFetch.add(locations.get(i));
-			i += nrTasks;
+		// change the list based on the number of tasks working on it and the size of the files
+		Map<String, Long> sizes = nrTasks > 1 ? SourceAssigner.getFileSizes(locations, connectorHolder) : null;
+		int count = segments > 0 ? segments : nrTasks;
+		if(count > 1 && !useSingleId){
+			List<String> files = new ArrayList<String>(locations);
+			locations.clear();
+			for(String file : files){
+				List<String> fileSegments = VideoSegment.split(file, count);
+				locations.addAll(fileSegments);
+				if(sizes != null && sizes.containsKey(file)){
+					for(String segment : fileSegments) sizes.put(segment, sizes.get(file) / count);
+				}
+			}
+		}
+		assigner = new SourceAssigner(locations, sizes, nrTasks, context.getThisTaskIndex());
+		if(workStealing && nrTasks > 1) try{
+			assigner.claims(SourceAssigner.createClaimRegistry(conf, context));
+		}catch(Exception e){
+			logger.warn("Unable to create claim registry, work stealing disabled: "+e.getMessage(), e);
 		}
-		this.locations = filesToFetch;
+		this.locations = assigner.getAssigned();
+		
+		context.registerMetric("reader_stats", new IMetric(){
+			@Override
+			public Object getValueAndReset() {
+				if(streamReader == null) return null;
+				Map<String, Long> stats = streamReader.getStats();
+				if(prefetcher != null) stats.putAll(prefetcher.getStats());
+				return stats;
+			}
+		}, 60);
 	}
 	
 	@SuppressWarnings({ "unchecked", "rawtypes" })
@@ -165,11 +334,28 @@ public class FileFrameFetcher implements IFetcher<CVParticle> {
 			this.deactivate();
 		}
 		
-		LinkedBlockingQueue<String> videoList = new LinkedBlockingQueue<String>(10);
-		DownloadThread dt = new DownloadThread(locations, videoList, connectorHolder);
-		new Thread(dt).start();
+		// the prefetcher continues where it stopped if the fetcher is activated again
+		if(prefetcher == null){
+			videoList = new LinkedBlockingQueue<String>(10);
+			// the replayer seeks in the files read so they must be available locally
+			prefetcher = new FilePrefetcher(assigner, videoList, connectorHolder, downloadThreads, diskBudget)
+				.streaming(streaming && !replay);
+		}
+		prefetcher.start();
 		
-		streamReader = new StreamReader(videoList, imageType, frameSkip, groupSize, sleepTime, useSingleId,  frameQueue);
+		streamReader = new StreamReader(videoList, imageType, frameSkip, groupSize, sleepTime, useSingleId,  frameQueue)
+			.encoderThreads(encoderThreads).decodeMode(decodeMode).connectors(connectorHolder);
+		// files are deleted by the prefetcher once they are no longer needed
+		readFiles = new ConcurrentLinkedQueue<String>();
+		streamReader.completedFiles(readFiles);
+		if(replay){
+			inFlight = new HashMap<Object, Replay>();
+			fileRefs = new HashMap<String, Integer>();
+			completedFiles = new HashSet<String>();
+			replayQueue = new LinkedBlockingQueue<CVParticle>();
+			replayer = new FrameReplayer();
+			new Thread(replayer).start();
+		}
 		new Thread(streamReader).start();
 	}
 	
@@ -177,19 +363,48 @@ public class FileFrameFetcher implements IFetcher<CVParticle> {
 	public void deactivate() {
 		if(streamReader != null) streamReader.stop();
 		streamReader = null;
+		if(replayer != null) replayer.stop();
+		replayer = null;
+		if(prefetcher != null) prefetcher.stop();
+	}
+
+	/**
+	 * Releases the sources claimed by this task, called by the {@link CVParticleSpout} when it is closed
+	 */
+	@Override
+	public void close() {
+		if(assigner != null) assigner.close();
 	}
 
 	@Override
 	public CVParticle fetchData() {
+		if(replay){
+			// replayed particles are already registered as in flight 
+			CVParticle replayed = replayQueue.poll();
+			if(replayed != null) return replayed;
+			while(!readFiles.isEmpty()){
+				String file = readFiles.poll();
+				completedFiles.add(file);
+				deleteIfDone(file);
+			}
+		}else if(readFiles != null){
+			while(!readFiles.isEmpty()){
+				prefetcher.release(readFiles.poll());
+			}
+		}
+		
 		Frame frame = frameQueue.poll();
 		if(frame != null) {
 			if(batchSize <= 1){
+				register(frame);
 				return frame;
 			}else{
 				if(frameGroup == null || frameGroup.size() >= batchSize) frameGroup = new ArrayList<Frame>();
 				frameGroup.add(frame);
 				if(frameGroup.size() == batchSize){
-					return new GroupOfFrames(frameGroup.get(0).getStreamId(), frameGroup.get(0).getSequenceNr(), frameGroup);
+					GroupOfFrames gof = new GroupOfFrames(frameGroup.get(0).getStreamId(), frameGroup.get(0).getSequenceNr(), frameGroup);
+					register(gof);
+					return gof;
 				}
 			}
 		}
@@ -197,6 +412,81 @@ public class FileFrameFetcher implements IFetcher<CVParticle> {
 		return null;
 	}
 	
+	@Override
+	public boolean replayEnabled() {
+		return replay;
+	}
+
+	@Override
+	public void ack(Object msgId) {
+		if(!replay) return;
+		Replay request = inFlight.remove(msgId);
+		if(request != null) release(request.file);
+	}
+
+	@Override
+	public void fail(Object msgId) {
+		if(!replay) return;
+		Replay request = inFlight.get(msgId);
+		if(request == null || replayer == null){
+			logger.warn("Unable to replay "+msgId+", it is not in flight");
+			return;
+		}
+		replayer.request(request);
+	}
+	
+	/**
+	 * Registers the particle as being in flight so it can be replayed on failure
+	 * @param particle
+	 */
+	private void register(CVParticle particle){
+		if(!replay) return;
+		List<Frame> frames = new ArrayList<Frame>();
+		if(particle instanceof Frame) frames.add((Frame)particle);
+		else frames.addAll(((GroupOfFrames)particle).getFrames());
+		
+		String file = (String)frames.get(0).getMetadata().get("uri");
+		if(file == null) return;
+		Replay request = new Replay(particle.getStreamId(), file, streamReader.getFileOffset(file), particle instanceof GroupOfFrames);
+		for(Frame frame : frames){
+			request.sequenceNrs.add(frame.getSequenceNr());
+		}
+		// only count a reference if the id was not in flight yet
+		if(inFlight.put(CVParticleSpout.getMessageId(particle), request) == null){
+			Integer refs = fileRefs.get(file);
+			fileRefs.put(file, refs == null ? 1 : refs + 1);
+		}
+	}
+	
+	/**
+	 * Releases one reference to the file and deletes it if it is no longer needed
+	 * @param file
+	 */
+	private void release(String file){
+		Integer refs = fileRefs.get(file);
+		if(refs == null) return;
+		if(refs <= 1) fileRefs.remove(file);
+		else fileRefs.put(file, refs - 1);
+		deleteIfDone(file);
+	}
+	
+	/**
+	 * Deletes the local file if it has been read completely and all frames read from it have been acked
+	 * @param file
+	 */
+	private void deleteIfDone(String file){
+		if(!completedFiles.contains(file) || fileRefs.containsKey(file)) return;
+		for(Frame frame : frameQueue){
+			if(file.equals(frame.getMetadata().get("uri"))) return;
+		}
+		if(frameGroup != null) for(Frame frame : frameGroup){
+			if(file.equals(frame.getMetadata().get("uri"))) return;
+		}
+		completedFiles.remove(file);
+		if(streamReader != null) streamReader.forgetFile(file);
+		if(prefetcher != null) prefetcher.release(file);
+	}
+	
 	/**
 	 * Lists all files in the specified location. If the location itself is a file the location will be the only
 	 * object in the result. If the location is a directory (or AWS S3 prefix) the result will contain all files
@@ -218,35 +508,128 @@ public class FileFrameFetcher implements IFetcher<CVParticle> {
 		}else return new ArrayList<String>();
 	}
 
-	private class DownloadThread implements Runnable{
-
-		private List<String> locations;
-		private ConnectorHolder connectorHolder;
-		private LinkedBlockingQueue<String> videoList;
+	/**
+	 * Information required to regenerate a particle
+	 */
+	private static class Replay {
+		
+		private String streamId;
+		private String file;
+		private long offset;
+		private boolean group;
+		private List<Long> sequenceNrs = new ArrayList<Long>();
+		private TreeMap<Long, Frame> frames = new TreeMap<Long, Frame>();
 		
-		public DownloadThread(List<String> locations, LinkedBlockingQueue<String> videoList, ConnectorHolder connectorHolder){
-			this.locations = locations;
-			this.videoList = videoList;
-			this.connectorHolder = connectorHolder;
+		private Replay(String streamId, String file, long offset, boolean group){
+			this.streamId = streamId;
+			this.file = file;
+			this.offset = offset;
+			this.group = group;
+		}
+	}
+	
+	/**
+	 * Regenerates failed frames by seeking in the video file they were read from. All requests available are handled at once
+	 * which allows the replayer to decode frames from the same part of a file using a single seek.
+	 */
+	private class FrameReplayer implements Runnable{
+		
+		private LinkedBlockingQueue<Replay> requests = new LinkedBlockingQueue<Replay>();
+		private boolean running = true;
+		
+		private void request(Replay replay){
+			requests.add(replay);
+		}
+		
+		private void stop(){
+			running = false;
 		}
 		
 		@Override
 		public void run() {
-			while(locations.size() > 0) try{
-				String location = locations.remove(0);
-				FileConnector connector = connectorHolder.getConnector(location);
-				if(connector != null){
-					connector.moveTo(location);
-					File localFile = connector.getAsFile();
-					videoList.put(localFile.getAbsolutePath());
+			while(running) try{
+				Replay first = requests.poll(100, TimeUnit.MILLISECONDS);
+				if(first == null) continue;
+				List<Replay> batch = new ArrayList<Replay>();
+				batch.add(first);
+				requests.drainTo(batch);
+				
+				// group the frames required by file and frame number within the file
+				HashMap<String, TreeMap<Long, List<Replay>>> files = new HashMap<String, TreeMap<Long, List<Replay>>>();
+				for(Replay replay : batch){
+					replay.frames.clear();
+					TreeMap<Long, List<Replay>> wanted = files.get(replay.file);
+					if(wanted == null){
+						wanted = new TreeMap<Long, List<Replay>>();
+						files.put(replay.file, wanted);
+					}
+					for(long sequenceNr : replay.sequenceNrs){
+						long frameNr = sequenceNr - replay.offset;
+						if(!wanted.containsKey(frameNr)) wanted.put(frameNr, new ArrayList<Replay>());
+						wanted.get(frameNr).add(replay);
+					}
+				}
+				for(String file : files.keySet()){
+					decode(file, files.get(file));
 				}
 			}catch(Exception e){
-				logger.warn("Unable to download file due to: "+e.getMessage(), e);
+				logger.warn("Unable to replay frames due to: "+e.getMessage(), e);
 			}
 		}
 		
+		/**
+		 * Decodes the wanted frames from the file and puts the particles which are complete in the replay queue
+		 * @param file
+		 * @param wanted
+		 * @throws IOException
+		 * @throws InterruptedException 
+		 */
+		private void decode(String file, TreeMap<Long, List<Replay>> wanted) throws IOException, InterruptedException{
+			VideoDecoder decoder = new VideoDecoder(file);
+			try{
+				long target = wanted.firstKey();
+				decoder.seek(target);
+				IVideoPicture picture;
+				while(!wanted.isEmpty() && (picture = decoder.next()) != null){
+					long frameNr = decoder.getFrameNr(picture);
+					long next = wanted.firstKey();
+					if(frameNr < next){
+						// seek if the next frame is far away, but only once for each target to avoid seeking back and forth 
+						if(next - frameNr > seekDistance && next != target){
+							target = next;
+							decoder.seek(target);
+						}
+						continue;
+					}
+					// frames before the current one cannot be generated any more
+					while(!wanted.isEmpty() && wanted.firstKey() < frameNr){
+						logger.warn("Unable to replay frame "+wanted.firstKey()+" of "+file);
+						wanted.remove(wanted.firstKey());
+					}
+					List<Replay> replays = wanted.remove(frameNr);
+					if(replays == null) continue;
+					BufferedImage image = decoder.toImage(picture);
+					byte[] bytes = ImageUtils.imageToBytes(image, imageType);
+					for(Replay replay : replays){
+						long sequenceNr = frameNr + replay.offset;
+						long timestamp = decoder.getFrameMs() > 0 ? sequenceNr * decoder.getFrameMs() : picture.getTimeStamp() / 1000;
+						Frame frame = new Frame(replay.streamId, sequenceNr, imageType, bytes, timestamp, new Rectangle(0, 0, image.getWidth(), image.getHeight()));
+						frame.getMetadata().put("uri", file);
+						replay.frames.put(sequenceNr, frame);
+						if(replay.frames.size() == replay.sequenceNrs.size()) replayQueue.put(toParticle(replay));
+					}
+				}
+				if(!wanted.isEmpty()) logger.warn("Unable to replay "+wanted.size()+" frames of "+file);
+			}finally{
+				decoder.close();
+			}
+		}
+		
+		private CVParticle toParticle(Replay replay){
+			List<Frame> frames = new ArrayList<Frame>(replay.frames.values());
+			if(!replay.group) return frames.get(0);
+			return new GroupOfFrames(replay.streamId, frames.get(0).getSequenceNr(), frames);
+		}
 	}
 	
 }
-
-
@@ -0,0 +1,35 @@
+package nl.tno.stormcv.fetcher;
+
+import nl.tno.stormcv.model.CVParticle;
+import nl.tno.stormcv.spout.CVParticleSpout;
+
+/**
+ * Fetchers implementing this interface are able to regenerate the data they emitted themselves, for example by reading it again from
+ * the source. If replay is enabled the {@link CVParticleSpout} does not cache emitted tuples but passes acks and failures to the fetcher
+ * instead. A fetcher must provide replayed particles through its normal fetchData method using the same streamId and sequenceNr
+ * as the original which results in the same message id used by the spout.
+ *
+ * @author Corne Versloot
+ *
+ * @param <Output>
+ */
+public interface IReplayFetcher<Output extends CVParticle> extends IFetcher<Output> {
+
+	/**
+	 * @return true if this fetcher handles failures itself
+	 */
+	public boolean replayEnabled();
+
+	/**
+	 * Called by the spout when the particle with the provided message id has been processed completely
+	 * @param msgId
+	 */
+	public void ack(Object msgId);
+
+	/**
+	 * Called by the spout when the particle with the provided message id failed and must be replayed
+	 * @param msgId
+	 */
+	public void fail(Object msgId);
+
+}
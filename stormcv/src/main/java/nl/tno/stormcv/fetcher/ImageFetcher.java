@@ -2,12 +2,17 @@ package nl.tno.stormcv.fetcher;
 
 import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import javax.imageio.ImageIO;
 
@@ -20,7 +25,9 @@ import nl.tno.stormcv.StormCVConfig;
 import nl.tno.stormcv.model.Frame;
 import nl.tno.stormcv.model.serializer.FrameSerializer;
 import nl.tno.stormcv.model.serializer.CVParticleSerializer;
+import nl.tno.stormcv.spout.CVParticleSpout;
 import nl.tno.stormcv.util.ImageUtils;
+import nl.tno.stormcv.util.SourceAssigner;
 import nl.tno.stormcv.util.connector.ConnectorHolder;
 import nl.tno.stormcv.util.connector.FileConnector;
 import nl.tno.stormcv.util.connector.LocalFileConnector;
@@ -28,21 +35,35 @@ import nl.tno.stormcv.util.connector.LocalFileConnector;
 /**
  * A {@link IFetcher} implementation that reads images and emits them into the topology as {@link Frame} objects. The ImageFetcher
  * works in the same way as the {@link FileFrameFetcher}; it expands locations it gets looking for image files, spreads all images
- * among all ImageFetcher instances within the topology and starts processing them. 
+ * among all ImageFetcher instances within the topology based on their size and starts processing them. Work stealing can be enabled
+ * in which case fetchers that are done take over images assigned to other fetchers.
+ * 
+ * Images are read and encoded ahead of consumption by a pool of loader threads which put the frames in a bounded queue. The number
+ * of loaders and the size of the queue can be set using loaders(threads, queueSize). Reading an image never blocks the spout.
+ * Loaders stop when the fetcher is deactivated, also when the queue is full. An image loaded by a stopped loader is kept and
+ * fetched first once the fetcher is activated again.
  * 
  * @author Corne Versloot
  *
  */
 
-public class ImageFetcher implements IFetcher<Frame> {
+public class ImageFetcher implements IFetcher<Frame>, Closeable {
 
 	private static final long serialVersionUID = -7649344867160068896L;
 	private Logger logger = LoggerFactory.getLogger(getClass());
 	private FrameSerializer serializer = new FrameSerializer();
 	private List<String> locations;
+	private SourceAssigner assigner;
+	private boolean workStealing = false;
 	private int sleepTime = 0;
 	private ConnectorHolder connectorHolder;
 	private String imageType = Frame.JPG_IMAGE;
+	private int loaderThreads = 1;
+	private int queueSize = 20;
+	private LinkedBlockingQueue<Frame> frameQueue;
+	private ConcurrentLinkedQueue<Frame> held; // frames loaded by loaders that stopped before they could queue them
+	private volatile boolean running = false;
+	private volatile int generation = 0; // incremented on each activate so loaders of a previous activation stop
 
 	/**
 	 * Sets the locations this fetcher will read images from. The list is split evenly
@@ -54,7 +75,20 @@ public class ImageFetcher implements IFetcher<Frame> {
 	}
 	
 	/**
-	 * Sets the time to sleep after each image read. The fetcher can be throttled
+	 * Sets the number of threads reading images in parallel (default = 1) and the maximum number of images read 
+	 * ahead of consumption (default = 20)
+	 * @param threads
+	 * @param queueSize
+	 * @return itself
+	 */
+	public ImageFetcher loaders(int threads, int queueSize){
+		this.loaderThreads = threads;
+		this.queueSize = queueSize;
+		return this;
+	}
+	
+	/**
+	 * Sets the time each loader sleeps after each image read. The fetcher can be throttled
 	 * in this way.
 	 * @param sleep
 	 * @return
@@ -64,6 +98,17 @@ public class ImageFetcher implements IFetcher<Frame> {
 		return this;
 	}
 	
+	/**
+	 * Allows this fetcher to take over images assigned to other fetchers once it has processed its own images 
+	 * (default = false). Can also be set using {@link StormCVConfig}.STORMCV_SPOUT_WORK_STEALING 
+	 * @param steal
+	 * @return
+	 */
+	public ImageFetcher workStealing(boolean steal){
+		this.workStealing = steal;
+		return this;
+	}
+	
 	@SuppressWarnings({ "rawtypes" })
 	@Override
 	public void prepare(Map stormConf, TopologyContext context)	throws Exception {
@@ -81,14 +126,19 @@ public class ImageFetcher implements IFetcher<Frame> {
 			locations.addAll(expand(dir));
 		}
 		
-		// change the list based on the number of tasks working on it
-		List<String> filesToFetch = new ArrayList<String>();
-		int i = context.getThisTaskIndex();
-		while(i < locations.size()){
-			filesToFetch.add(locations.get(i));
-			i += nrTasks;
+		if(stormConf.containsKey(StormCVConfig.STORMCV_SPOUT_WORK_STEALING)){
+			workStealing = (Boolean)stormConf.get(StormCVConfig.STORMCV_SPOUT_WORK_STEALING);
 		}
-		this.locations = filesToFetch;
+		
+		// change the list based on the number of tasks working on it and the size of the images
+		Map<String, Long> sizes = nrTasks > 1 ? SourceAssigner.getFileSizes(locations, connectorHolder) : null;
+		assigner = new SourceAssigner(locations, sizes, nrTasks, context.getThisTaskIndex());
+		if(workStealing && nrTasks > 1) try{
+			assigner.claims(SourceAssigner.createClaimRegistry(stormConf, context));
+		}catch(Exception e){
+			logger.warn("Unable to create claim registry, work stealing disabled: "+e.getMessage(), e);
+		}
+		this.locations = assigner.getAssigned();
 		
 	}
 
@@ -99,54 +149,130 @@ public class ImageFetcher implements IFetcher<Frame> {
 
 	@Override
 	public void activate() {
-		// TODO Auto-generated method stub
+		if(running) return;
+		// frames loaded before a deactivate remain in the queue
+		if(frameQueue == null){
+			frameQueue = new LinkedBlockingQueue<Frame>(Math.max(1, queueSize));
+			held = new ConcurrentLinkedQueue<Frame>();
+		}
+		running = true;
+		generation++;
+		for(int i=0; i<Math.max(1, loaderThreads); i++){
+			new Thread(new ImageLoader(generation)).start();
+		}
 	}
 
 	@Override
 	public void deactivate() {
-		// TODO Auto-generated method stub
+		running = false;
+	}
+
+	/**
+	 * Releases the sources claimed by this task, called by the {@link CVParticleSpout} when it is closed
+	 */
+	@Override
+	public void close() {
+		if(assigner != null) assigner.close();
 	}
 
 	@Override
 	public Frame fetchData() {
+		if(frameQueue == null) return null;
+		Frame frame = held.poll();
+		return frame != null ? frame : frameQueue.poll();
+	}
+	
+	/**
+	 * Reads the provided image and creates a frame for it
+	 * @param imgFile
+	 * @param fl the connector to use, must not be shared with other threads
+	 * @return the frame or null if the image could not be read
+	 */
+	private Frame load(String imgFile, FileConnector fl){
 		Frame frame = null;
-		if(locations.size() > 0){
-			String imgFile = locations.remove(0);
-			if(imgFile.startsWith("http://")) try{
-				BufferedImage image = ImageIO.read(new URL(imgFile));
-				byte[] buffer = ImageUtils.imageToBytes(image, imageType);
-				frame = new Frame(imgFile.substring(imgFile.lastIndexOf('/'))+"_"+imgFile.hashCode(), 0, imageType, buffer, 0, new Rectangle(0, 0, image.getWidth(), image.getHeight()));
-				frame.getMetadata().put("uri", imgFile);
-			} catch(Exception e){
-				logger.warn("Unable to get image from "+imgFile+" due to : "+e.getMessage(), e);	
-			}
-			else try{
-				FileConnector fl = connectorHolder.getConnector(imgFile);
-				if(fl != null){
-					fl.moveTo(imgFile);
-					File file = fl.getAsFile();
-					try{
-						BufferedImage image = ImageIO.read(file);
-						byte[] buffer = ImageUtils.imageToBytes(image, imageType);
-						frame = new Frame(file.getName()+"_"+file.hashCode(), 0, imageType, buffer, 0, new Rectangle(0, 0, image.getWidth(), image.getHeight()));
-						frame.getMetadata().put("uri", imgFile);
-						if(!(fl instanceof LocalFileConnector)){
-							file.delete();
-						}
-					}catch(Exception e){
-						if(!(fl instanceof LocalFileConnector)){
-							file.delete();
-						}
-						throw e;
+		if(imgFile.startsWith("http://")) try{
+			BufferedImage image = ImageIO.read(new URL(imgFile));
+			byte[] buffer = ImageUtils.imageToBytes(image, imageType);
+			frame = new Frame(imgFile.substring(imgFile.lastIndexOf('/'))+"_"+imgFile.hashCode(), 0, imageType, buffer, 0, new Rectangle(0, 0, image.getWidth(), image.getHeight()));
+			frame.getMetadata().put("uri", imgFile);
+		} catch(Exception e){
+			logger.warn("Unable to get image from "+imgFile+" due to : "+e.getMessage(), e);	
+		}
+		else try{
+			if(fl != null){
+				fl.moveTo(imgFile);
+				File file = fl.getAsFile();
+				try{
+					BufferedImage image = ImageIO.read(file);
+					byte[] buffer = ImageUtils.imageToBytes(image, imageType);
+					frame = new Frame(file.getName()+"_"+file.hashCode(), 0, imageType, buffer, 0, new Rectangle(0, 0, image.getWidth(), image.getHeight()));
+					frame.getMetadata().put("uri", imgFile);
+					if(!(fl instanceof LocalFileConnector)){
+						file.delete();
+					}
+				}catch(Exception e){
+					if(!(fl instanceof LocalFileConnector)){
+						file.delete();
 					}
+					throw e;
 				}
-			}catch(Exception e){
-				logger.warn("Unable to read image from "+imgFile+" due to "+e.getMessage());
 			}
+		}catch(Exception e){
+			logger.warn("Unable to read image from "+imgFile+" due to "+e.getMessage());
 		}
-		Utils.sleep(sleepTime);
 		return frame;
 	}
+	
+	/**
+	 * Reads the images assigned to this fetcher and puts them in the frame queue
+	 */
+	private class ImageLoader implements Runnable {
+		
+		private HashMap<String, FileConnector> connectors = new HashMap<String, FileConnector>();
+		private int gen;
+		
+		private ImageLoader(int gen){
+			this.gen = gen;
+		}
+		
+		@Override
+		public void run() {
+			String imgFile;
+			while(isActive() && (imgFile = assigner.next()) != null) try{
+				Frame frame = load(imgFile, getConnector(imgFile));
+				if(frame != null) while(!frameQueue.offer(frame, 100, TimeUnit.MILLISECONDS)){
+					if(!isActive()){
+						held.add(frame);
+						return;
+					}
+				}
+				if(sleepTime > 0) Utils.sleep(sleepTime);
+			}catch(InterruptedException e){
+				return;
+			}
+		}
+		
+		/**
+		 * @return true if the fetcher is active and this loader was started by the current activation
+		 */
+		private boolean isActive(){
+			return running && gen == generation;
+		}
+		
+		/**
+		 * Returns this loader's own copy of the connector for the provided location because connectors are not thread safe
+		 */
+		private FileConnector getConnector(String location){
+			FileConnector shared = connectorHolder.getConnector(location);
+			if(shared == null) return null;
+			FileConnector connector = connectors.get(shared.getProtocol());
+			if(connector == null){
+				connector = shared.deepCopy();
+				connectors.put(shared.getProtocol(), connector);
+			}
+			return connector;
+		}
+	}
 
 	/**
 	 * Lists all files in the specified location. If the location itself is a file the location will be the only
@@ -2,18 +2,25 @@ package nl.tno.stormcv.fetcher;
 
 import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.net.URLConnection;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.LinkedBlockingQueue;
-
-import javax.imageio.ImageIO;
+import java.util.concurrent.BlockingQueue;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+
 import backtype.storm.task.TopologyContext;
 import backtype.storm.utils.Utils;
 import nl.tno.stormcv.StormCVConfig;
@@ -21,12 +28,25 @@ import nl.tno.stormcv.model.Frame;
 import nl.tno.stormcv.model.serializer.FrameSerializer;
 import nl.tno.stormcv.model.serializer.CVParticleSerializer;
 import nl.tno.stormcv.util.ImageUtils;
+import nl.tno.stormcv.util.MultiStreamQueue;
+import nl.tno.stormcv.util.MultiStreamQueue.DropPolicy;
+import nl.tno.stormcv.util.SourceAssigner;
 
 /**
  * This {@link IFetcher} implementation reads images that refresh constantly. Each url provided will be read
  * each SLEEP milliseconds. Each image will be emitted into the topology as a {@link Frame} object. How often
  * the image is read can be controlled by setting the sleep time (default = 40 ms) 
  * 
+ * Each url gets its own bounded queue (see {@link MultiStreamQueue}) which are read in a round robin fashion, optionally 
+ * weighted by the priority of the url. A {@link DropPolicy} can be set to drop images when the queue of a url is full 
+ * instead of blocking its reader.
+ * 
+ * Images that did not change since the previous read are not emitted. Http(s) urls are requested conditionally using the ETag and
+ * Last-Modified headers returned by the server, for other urls (and servers that do not support this) a hash of the raw bytes is 
+ * compared with the previous image before it is decoded. If a maximum sleep is set using adaptive(maxSleep) the interval of each url 
+ * adapts to its change rate: it is halved each time the image changed (but not below sleep) and increased by a quarter each time it 
+ * did not (but not above maxSleep).
+ * 
  * @author Corne Versloot
  *
  */
@@ -34,11 +54,15 @@ public class RefreshingImageFetcher implements IFetcher<Frame> {
 
 	private static final long serialVersionUID = 7578821428365233524L;
 	private Logger logger = LoggerFactory.getLogger(getClass());
-	private LinkedBlockingQueue<Frame> frameQueue; // queue used to store frames
+	private MultiStreamQueue<Frame> frameQueue; // queues used to store frames
+	private int queueSize = 100;
+	private DropPolicy dropPolicy = DropPolicy.BLOCK;
+	private Map<String, Integer> priorities = new HashMap<String, Integer>();
 	private int sleep = 40;
+	private int maxSleep = -1;
 	private List<String> locations;
 	private List<ImageReader> readers;
-	private String imageType;
+	private String imageType = Frame.JPG_IMAGE;
 
 	public RefreshingImageFetcher(List<String> locations){
 		this.locations = locations;
@@ -55,10 +79,52 @@ public class RefreshingImageFetcher implements IFetcher<Frame> {
 		return this;
 	}
 	
+	/**
+	 * Enables adaptive reading of images: the time between reads of a url increases while the image does not change
+	 * up to the provided maximum and decreases (down to the sleep time) when it does.
+	 * @param maxSleep the maximum time in ms between two reads of the same url
+	 * @return
+	 */
+	public RefreshingImageFetcher adaptive(int maxSleep){
+		this.maxSleep = maxSleep;
+		return this;
+	}
+	
+	/**
+	 * Sets the maximum number of images queued for each url (default = 100)
+	 * @param size
+	 * @return
+	 */
+	public RefreshingImageFetcher queueSize(int size){
+		this.queueSize = size;
+		return this;
+	}
+	
+	/**
+	 * Sets the {@link DropPolicy} used when the queue of a url is full (default is BLOCK)
+	 * @param policy
+	 * @return
+	 */
+	public RefreshingImageFetcher dropPolicy(DropPolicy policy){
+		this.dropPolicy = policy;
+		return this;
+	}
+	
+	/**
+	 * Sets the priority of the provided url which is the number of images taken from it each round (default = 1)
+	 * @param location
+	 * @param priority
+	 * @return
+	 */
+	public RefreshingImageFetcher priority(String location, int priority){
+		this.priorities.put(location, priority);
+		return this;
+	}
+	
 	@SuppressWarnings("rawtypes")
 	@Override
 	public void prepare(Map stormConf, TopologyContext context) throws Exception {
-		frameQueue = new LinkedBlockingQueue<Frame>();
+		frameQueue = new MultiStreamQueue<Frame>();
 		
 		if(stormConf.containsKey(StormCVConfig.STORMCV_FRAME_ENCODING)){
 			imageType = (String)stormConf.get(StormCVConfig.STORMCV_FRAME_ENCODING);
@@ -69,9 +135,7 @@ public class RefreshingImageFetcher implements IFetcher<Frame> {
 		
 		// change the list based on the number of tasks working on it
 		if(this.locations != null && this.locations.size() > 0){
-			int batchSize = (int)Math.floor(locations.size() / nrTasks) + 1;
-			int start = batchSize * taskIndex;
-			locations = locations.subList(start, Math.min(start + batchSize, locations.size()));
+			locations = new SourceAssigner(locations, null, nrTasks, taskIndex).getAssigned();
 		}
 		readers = new ArrayList<ImageReader>();
 	}
@@ -85,7 +149,9 @@ public class RefreshingImageFetcher implements IFetcher<Frame> {
 	public void activate() {
 		for(String location : locations){
 			try {
-				ImageReader ir = new ImageReader(new URL(location), sleep, frameQueue);
+				URL url = new URL(location);
+				int priority = priorities.containsKey(location) ? priorities.get(location) : 1;
+				ImageReader ir = new ImageReader(url, sleep, Math.max(sleep, maxSleep), frameQueue.addStream(location, queueSize, priority, dropPolicy));
 				new Thread(ir).start();
 				readers.add(ir);
 			} catch (MalformedURLException e) {
@@ -108,39 +174,91 @@ public class RefreshingImageFetcher implements IFetcher<Frame> {
 		return frameQueue.poll();
 	}
 	
-	private class ImageReader implements Runnable{
+	/**
+	 * Reads a single url (package private for tests)
+	 */
+	class ImageReader implements Runnable{
 
 		private Logger logger = LoggerFactory.getLogger(getClass());
-		private LinkedBlockingQueue<Frame> frameQueue;
+		private BlockingQueue<Frame> frameQueue;
 		private URL url;
+		private int minSleep;
+		private int maxSleep;
 		private int sleep;
 		private int sequenceNr;
 		private boolean running = true;
+		private String etag;
+		private String lastModified;
+		private HashCode lastHash;
 		
-		public ImageReader(URL url, int sleep, LinkedBlockingQueue<Frame> frameQueue){
+		public ImageReader(URL url, int minSleep, int maxSleep, BlockingQueue<Frame> frameQueue){
 			this.url = url;
-			this.sleep = sleep;
+			this.minSleep = minSleep;
+			this.maxSleep = maxSleep;
+			this.sleep = minSleep;
 			this.frameQueue = frameQueue;
 		}
 		
 		@Override
 		public void run() {
 			while(running){
+				boolean changed = false;
 				try{
-					BufferedImage image = ImageIO.read(url);
-					byte[] buffer = ImageUtils.imageToBytes(image, imageType);
-					Frame frame = new Frame( url.getFile().substring(1), sequenceNr, imageType, buffer, System.currentTimeMillis(), new Rectangle(image.getWidth(), image.getHeight()));
-					frame.getMetadata().put("uri", url);
-					frameQueue.put(frame);
-					sequenceNr++;
-					if(frameQueue.size() > 20) Utils.sleep(frameQueue.size());
+					changed = poll();
 				}catch(Exception e){
 					logger.warn("Exception while reading "+url+" : "+e.getMessage());
 				}
+				if(changed) sleep = Math.max(minSleep, sleep / 2);
+				else sleep = Math.min(maxSleep, sleep + Math.max(1, sleep / 4));
 				Utils.sleep(sleep);
 			}
 		}
 		
+		/**
+		 * Reads the image once and puts it in the queue if it changed since the previous read
+		 * @return true if the image changed
+		 * @throws Exception
+		 */
+		boolean poll() throws Exception{
+			byte[] bytes = read();
+			HashCode hash = bytes == null ? null : Hashing.murmur3_128().hashBytes(bytes);
+			if(hash == null || hash.equals(lastHash)) return false;
+			lastHash = hash;
+			BufferedImage image = ImageUtils.bytesToImage(bytes);
+			byte[] buffer = ImageUtils.imageToBytes(image, imageType);
+			Frame frame = new Frame( url.getFile().substring(1), sequenceNr, imageType, buffer, System.currentTimeMillis(), new Rectangle(image.getWidth(), image.getHeight()));
+			frame.getMetadata().put("uri", url);
+			frameQueue.put(frame);
+			sequenceNr++;
+			return true;
+		}
+		
+		/**
+		 * Reads the raw bytes of the image, http(s) urls are requested conditionally
+		 * @return the bytes or null if the server indicated the image was not modified
+		 * @throws IOException
+		 */
+		private byte[] read() throws IOException{
+			URLConnection connection = url.openConnection();
+			if(connection instanceof HttpURLConnection){
+				if(etag != null) connection.setRequestProperty("If-None-Match", etag);
+				if(lastModified != null) connection.setRequestProperty("If-Modified-Since", lastModified);
+				HttpURLConnection http = (HttpURLConnection)connection;
+				if(http.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED){
+					http.disconnect();
+					return null;
+				}
+				etag = http.getHeaderField("ETag");
+				lastModified = http.getHeaderField("Last-Modified");
+			}
+			InputStream in = connection.getInputStream();
+			try{
+				return ByteStreams.toByteArray(in);
+			}finally{
+				in.close();
+			}
+		}
+		
 		public void stop(){
 			this.running = false;
 		}
@@ -4,8 +4,9 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
+import backtype.storm.metric.api.IMetric;
 import backtype.storm.task.TopologyContext;
 import nl.tno.stormcv.StormCVConfig;
 import nl.tno.stormcv.model.CVParticle;
@@ -15,13 +16,28 @@ import nl.tno.stormcv.model.serializer.FrameSerializer;
 import nl.tno.stormcv.model.serializer.CVParticleSerializer;
 import nl.tno.stormcv.model.serializer.GroupOfFramesSerializer;
 import nl.tno.stormcv.operation.GroupOfFramesOp;
+import nl.tno.stormcv.util.DecoderScheduler;
+import nl.tno.stormcv.util.MultiStreamQueue;
+import nl.tno.stormcv.util.MultiStreamQueue.DropPolicy;
+import nl.tno.stormcv.util.SourceAssigner;
 import nl.tno.stormcv.util.StreamReader;
+import nl.tno.stormcv.util.StreamReader.DecodeMode;
 
 /**
  * A {@link IFetcher} implementation that reads video streams (either live or not). The StreamFrameFetcher is initialized
- * with a set of url's it must read. These url's are divided among all StreamFrameFetchers in the topology. So if the number of
+ * with a set of url's it must read. These url's are divided among all StreamFrameFetchers in the topology using a {@link SourceAssigner}
+ * which balances the estimated cost of the streams (for example resolution x fps, see the cost method). So if the number of
  * urls is larger than then number of Fetchers some of them will read and decode multiple streams in parallel. Note that this can become
  * a problem if the number of streams read by the single spout consumes to many resources (network and/or cpu).
+ * By default each stream is read by its own thread. When many streams are read by a single spout the decoderThreads option
+ * can be used to share a fixed number of threads among all streams using a {@link DecoderScheduler}. Each stream is read in
+ * slices of sliceSize packets in turn which keeps the decoding of streams fair. The time each stream spent decoding (decodeMs, 
+ * see {@link DecoderScheduler#getStats()}) and its decode lag are reported in the 'reader_stats' metric.
+ * 
+ * Each stream puts its frames in its own bounded queue (see {@link MultiStreamQueue}) and fetchData takes frames from these queues
+ * in a round robin fashion. Streams can be given a priority which is the number of frames taken from that stream in each round.
+ * For live sources a {@link DropPolicy} can be set to drop frames when the queue of a stream is full instead of blocking its reader.
+ * The number of dropped frames is reported in the 'reader_stats' metric.
  * 
  * The frameSkip and groupSize parameters define which frames will be extracted using: frameNr % frameSkip < groupSize-1
  * With a frameSkip of 10 and groupSize of 2 the following framenumbers will be extracted: 0,1,10,11,20,21,.. Both frameskip and
@@ -35,6 +51,8 @@ import nl.tno.stormcv.util.StreamReader;
  * a {@link GroupOfFrames} can be useful when the subsequent Operation requires multiple frames of the same stream in which case the
  * {@link GroupOfFramesOp} can be used without a batcher. 
  * 
+ * The statistics of all stream readers (see {@link StreamReader#getStats()}) are registered as the 'reader_stats' metric.
+ * 
  * @author Corne Versloot
  *
  */
@@ -44,13 +62,23 @@ public class StreamFrameFetcher implements IFetcher<CVParticle>{
 	protected List<String> locations;
 	protected int frameSkip = 1;
 	private int groupSize = 1;
-	protected LinkedBlockingQueue<Frame> frameQueue = new LinkedBlockingQueue<Frame>(20);
+	protected MultiStreamQueue<Frame> frameQueue;
+	private int queueSize = 20;
+	private DropPolicy dropPolicy = DropPolicy.BLOCK;
+	private Map<String, DropPolicy> dropPolicies = new HashMap<String, DropPolicy>();
+	private Map<String, Integer> priorities = new HashMap<String, Integer>();
+	private Map<String, Long> costs = new HashMap<String, Long>();
 	protected Map<String, StreamReader> streamReaders;
 	private int sleepTime = 0;
 	private String imageType;
 	private int batchSize = 1;
-	private List<Frame> frameGroup;
+	private Map<String, List<Frame>> frameGroups = new HashMap<String, List<Frame>>();
 	private String id;
+	private int encoderThreads = 0;
+	private DecodeMode decodeMode = DecodeMode.ALL;
+	private int decoderThreads = 0;
+	private int sliceSize = 10;
+	private DecoderScheduler scheduler;
 	
 	public StreamFrameFetcher (List<String> locations){
 		this.locations = locations;
@@ -76,6 +104,104 @@ public class StreamFrameFetcher implements IFetcher<CVParticle>{
 		return this;
 	}
 	
+	/**
+	 * Sets the number of threads used to encode frames in parallel with decoding. If set to 0 (default) frames are
+	 * encoded by the thread decoding the video. 
+	 * @param threads
+	 * @return
+	 */
+	public StreamFrameFetcher encoderThreads(int threads){
+		this.encoderThreads = threads;
+		return this;
+	}
+	
+	/**
+	 * Sets the {@link DecodeMode} used to skip decoding of frames that are not needed (default is ALL). 
+	 * @param mode
+	 * @return
+	 */
+	public StreamFrameFetcher decodeMode(DecodeMode mode){
+		this.decodeMode = mode;
+		return this;
+	}
+	
+	/**
+	 * Sets the maximum number of frames queued for each stream (default = 20)
+	 * @param size
+	 * @return
+	 */
+	public StreamFrameFetcher queueSize(int size){
+		this.queueSize = size;
+		return this;
+	}
+	
+	/**
+	 * Sets the {@link DropPolicy} used for all streams when their queue is full (default is BLOCK)
+	 * @param policy
+	 * @return
+	 */
+	public StreamFrameFetcher dropPolicy(DropPolicy policy){
+		this.dropPolicy = policy;
+		return this;
+	}
+	
+	/**
+	 * Sets the {@link DropPolicy} for the stream with the provided location, overriding the default policy
+	 * @param location
+	 * @param policy
+	 * @return
+	 */
+	public StreamFrameFetcher dropPolicy(String location, DropPolicy policy){
+		this.dropPolicies.put(location, policy);
+		return this;
+	}
+	
+	/**
+	 * Sets the priority of the stream with the provided location which is the number of frames taken from the stream 
+	 * each round (default = 1) 
+	 * @param location
+	 * @param priority
+	 * @return
+	 */
+	public StreamFrameFetcher priority(String location, int priority){
+		this.priorities.put(location, priority);
+		return this;
+	}
+	
+	/**
+	 * Sets the estimated cost of reading the stream with the provided location, for example width x height x fps. The cost
+	 * is used to balance the streams among the tasks of the spout. Streams without cost get the average cost. 
+	 * @param location
+	 * @param cost
+	 * @return
+	 */
+	public StreamFrameFetcher cost(String location, long cost){
+		this.costs.put(location, cost);
+		return this;
+	}
+	
+	/**
+	 * Sets the number of threads shared by all streams read by this fetcher. If set to 0 (default) each stream 
+	 * is read by its own thread. 
+	 * @param threads
+	 * @return
+	 */
+	public StreamFrameFetcher decoderThreads(int threads){
+		this.decoderThreads = threads;
+		return this;
+	}
+	
+	/**
+	 * Sets the number of packets a stream may read before the next stream gets its turn (default = 10). 
+	 * Only used when decoderThreads is larger than 0.
+	 * @param packets
+	 * @return
+	 */
+	public StreamFrameFetcher sliceSize(int packets){
+		this.sliceSize = packets;
+		return this;
+	}
+	
 	/**
 	 * Specifies the number of frames to be send at once. If set to 1 (default value) this Fetcher will emit
 	 * {@link Frame} objects. If set to 2 or more it will emit {@link GroupOfFrames} objects.
@@ -91,6 +217,7 @@ public class StreamFrameFetcher implements IFetcher<CVParticle>{
 	@Override
 	public void prepare(Map conf, TopologyContext context) throws Exception {
 		this.id = context.getThisComponentId();
+		frameQueue = new MultiStreamQueue<Frame>();
 		int nrTasks = context.getComponentTasks(id).size();
 		int taskIndex = context.getThisTaskIndex();
 		
@@ -100,10 +227,29 @@ public class StreamFrameFetcher implements IFetcher<CVParticle>{
 		
 		// change the list based on the number of tasks working on it
 		if(this.locations != null && this.locations.size() > 0){
-			int batchSize = (int) Math.floor(locations.size() / nrTasks);
-			int start = batchSize * taskIndex;
-			locations = locations.subList(start, Math.min(start + batchSize, locations.size()));
+			locations = new SourceAssigner(locations, costs, nrTasks, taskIndex).getAssigned();
 		}
+		
+		context.registerMetric("reader_stats", new IMetric(){
+			@Override
+			public Object getValueAndReset() {
+				Map<String, Object> stats = new HashMap<String, Object>();
+				Map<String, Long> dropped = frameQueue.getDropped();
+				DecoderScheduler decoders = scheduler;
+				Map<String, Map<String, Long>> decodeStats = decoders == null ? null : decoders.getStats();
+				Map<String, StreamReader> readers = streamReaders;
+				if(readers != null) for(String location : readers.keySet()){
+					StreamReader reader = readers.get(location);
+					Map<String, Long> readerStats = reader.getStats();
+					readerStats.put("dropped", dropped.containsKey(location) ? dropped.get(location) : 0L);
+					if(decodeStats != null && decodeStats.containsKey(reader.getStreamId())){
+						readerStats.put("decodeMs", decodeStats.get(reader.getStreamId()).get("decodeMs"));
+					}
+					stats.put(location, readerStats);
+				}
+				return stats;
+			}
+		}, 60);
 	}
 
 	@SuppressWarnings({ "unchecked", "rawtypes" })
@@ -119,16 +265,25 @@ public class StreamFrameFetcher implements IFetcher<CVParticle>{
 			this.deactivate();
 		}
 		streamReaders = new HashMap<String, StreamReader>();
+		if(decoderThreads > 0){
+			scheduler = new DecoderScheduler(decoderThreads, sliceSize);
+		}
 		for(String location : locations){
 			
 			String streamId = ""+location.hashCode();
 			if(location.contains("/")){
 				streamId = id+"_"+location.substring(location.lastIndexOf("/")+1) + "_" + streamId;
 			}
-			StreamReader reader = new StreamReader(streamId, location, imageType, frameSkip, groupSize, sleepTime, frameQueue);
+			DropPolicy policy = dropPolicies.containsKey(location) ? dropPolicies.get(location) : dropPolicy;
+			int priority = priorities.containsKey(location) ? priorities.get(location) : 1;
+			BlockingQueue<Frame> queue = frameQueue.addStream(location, queueSize, priority, policy);
+			StreamReader reader = new StreamReader(streamId, location, imageType, frameSkip, groupSize, sleepTime, queue)
+				.encoderThreads(encoderThreads).decodeMode(decodeMode);
 			streamReaders.put(location, reader);
-			new Thread(reader).start();
+			if(scheduler != null) scheduler.add(reader);
+			else new Thread(reader).start();
 		}
+		if(scheduler != null) scheduler.start();
 	}
 
 	@Override
@@ -137,6 +292,8 @@ public class StreamFrameFetcher implements IFetcher<CVParticle>{
 			streamReaders.get(location).stop();
 		}
 		streamReaders = null;
+		if(scheduler != null) scheduler.stop();
+		scheduler = null;
 	}
 
 	@Override
@@ -147,9 +304,15 @@ public class StreamFrameFetcher implements IFetcher<CVParticle>{
 			if(batchSize <= 1){
 				return frame;
 			}else{
-				if(frameGroup == null || frameGroup.size() >= batchSize) frameGroup = new ArrayList<Frame>();
+				// frames are grouped per stream because frames of different streams are interleaved
+				List<Frame> frameGroup = frameGroups.get(frame.getStreamId());
+				if(frameGroup == null){
+					frameGroup = new ArrayList<Frame>();
+					frameGroups.put(frame.getStreamId(), frameGroup);
+				}
 				frameGroup.add(frame);
 				if(frameGroup.size() == batchSize){
+					frameGroups.remove(frame.getStreamId());
 					return new GroupOfFrames(frameGroup.get(0).getStreamId(), frameGroup.get(0).getSequenceNr(), frameGroup);
 				}
 			}
@@ -0,0 +1,232 @@
+package nl.tno.stormcv.fetcher;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import backtype.storm.task.TopologyContext;
+import nl.tno.stormcv.StormCVConfig;
+import nl.tno.stormcv.model.Frame;
+import nl.tno.stormcv.model.VideoChunk;
+import nl.tno.stormcv.model.serializer.CVParticleSerializer;
+import nl.tno.stormcv.model.serializer.VideoChunkSerializer;
+import nl.tno.stormcv.operation.FramesToVideoOp;
+import nl.tno.stormcv.operation.VideoToFramesOp;
+import nl.tno.stormcv.spout.CVParticleSpout;
+import nl.tno.stormcv.util.FilePrefetcher;
+import nl.tno.stormcv.util.SourceAssigner;
+import nl.tno.stormcv.util.VideoChunker;
+import nl.tno.stormcv.util.VideoDecoder;
+import nl.tno.stormcv.util.connector.ConnectorHolder;
+import nl.tno.stormcv.util.connector.FileConnector;
+
+/**
+ * Reads video files and emits them as {@link VideoChunk}s containing one or more complete GOP's of the original video. The compressed
+ * packets are remuxed into a small container (mkv by default) without decoding or encoding any pixels (see {@link VideoChunker}). This
+ * is much cheaper than reading {@link Frame}'s and encoding them again using the {@link FramesToVideoOp} and moves all decoding to the
+ * bolts, which can decode chunks in parallel using the {@link VideoToFramesOp} (use a frameSkip of 1). The sequenceNr of each chunk
+ * is the frame number of its first frame so the frames get the numbers they would get from the {@link FileFrameFetcher}.
+ *
+ * Files are listed, assigned to tasks and downloaded just like the {@link FileFrameFetcher} does (see {@link SourceAssigner} and
+ * {@link FilePrefetcher}). All files get a unique streamId.
+ *
+ * @author Corne Versloot
+ *
+ */
+public class VideoChunkFetcher implements IFetcher<VideoChunk>, Closeable {
+
+	private static final long serialVersionUID = -2296523964402339287L;
+	private Logger logger = LoggerFactory.getLogger(VideoChunkFetcher.class);
+	private List<String> locations;
+	private SourceAssigner assigner;
+	private boolean workStealing = false;
+	private int downloadThreads = 1;
+	private long diskBudget = Long.MAX_VALUE;
+	private String container = "mkv";
+	private int gopsPerChunk = 1;
+	private ConnectorHolder connectorHolder;
+	private FilePrefetcher prefetcher;
+	private LinkedBlockingQueue<String> videoList;
+	private String currentFile;
+	private String streamId;
+	private VideoDecoder decoder;
+	private VideoChunker chunker;
+
+	/**
+	 * Sets the locations this fetcher will read video from. The list is divided between all fetchers
+	 * active in the topology
+	 * @param locations
+	 */
+	public VideoChunkFetcher(List<String> locations){
+		this.locations = locations;
+	}
+
+	/**
+	 * Sets the number of GOP's put in each chunk (default = 1)
+	 * @param gops
+	 * @return itself
+	 */
+	public VideoChunkFetcher gopsPerChunk(int gops){
+		this.gopsPerChunk = gops;
+		return this;
+	}
+
+	/**
+	 * Sets the container the packets are remuxed into (default = mkv). The container must be able to hold the
+	 * codec of the source files.
+	 * @param container
+	 * @return itself
+	 */
+	public VideoChunkFetcher container(String container){
+		this.container = container.startsWith(".") ? container.substring(1) : container;
+		return this;
+	}
+
+	/**
+	 * Configures the download of files ahead of reading them
+	 * @param threads the number of files downloaded in parallel (default = 1)
+	 * @param diskBudget the maximum number of bytes used by downloaded files (default is unlimited)
+	 * @return itself
+	 */
+	public VideoChunkFetcher prefetch(int threads, long diskBudget){
+		this.downloadThreads = threads;
+		this.diskBudget = diskBudget;
+		return this;
+	}
+
+	/**
+	 * Allows this fetcher to take over files assigned to other fetchers that have not been started yet once
+	 * it has processed its own files (default = false). Can also be set using {@link StormCVConfig}.STORMCV_SPOUT_WORK_STEALING
+	 * @param steal
+	 * @return itself
+	 */
+	public VideoChunkFetcher workStealing(boolean steal){
+		this.workStealing = steal;
+		return this;
+	}
+
+	@SuppressWarnings("rawtypes")
+	@Override
+	public void prepare(Map conf, TopologyContext context) throws Exception {
+		this.connectorHolder = new ConnectorHolder(conf);
+
+		List<String> original = new ArrayList<String>();
+		original.addAll(locations);
+		locations.clear();
+		for(String dir : original){
+			locations.addAll(expand(dir));
+		}
+
+		int nrTasks = context.getComponentTasks(context.getThisComponentId()).size();
+		if(conf.containsKey(StormCVConfig.STORMCV_SPOUT_WORK_STEALING)){
+			workStealing = (Boolean)conf.get(StormCVConfig.STORMCV_SPOUT_WORK_STEALING);
+		}
+		Map<String, Long> sizes = nrTasks > 1 ? SourceAssigner.getFileSizes(locations, connectorHolder) : null;
+		assigner = new SourceAssigner(locations, sizes, nrTasks, context.getThisTaskIndex());
+		if(workStealing && nrTasks > 1) try{
+			assigner.claims(SourceAssigner.createClaimRegistry(conf, context));
+		}catch(Exception e){
+			logger.warn("Unable to create claim registry, work stealing disabled: "+e.getMessage(), e);
+		}
+		this.locations = assigner.getAssigned();
+	}
+
+	@Override
+	public CVParticleSerializer<VideoChunk> getSerializer() {
+		return new VideoChunkSerializer();
+	}
+
+	@Override
+	public void activate() {
+		// the prefetcher continues where it stopped if the fetcher is activated again
+		if(prefetcher == null){
+			videoList = new LinkedBlockingQueue<String>(10);
+			prefetcher = new FilePrefetcher(assigner, videoList, connectorHolder, downloadThreads, diskBudget);
+		}
+		prefetcher.start();
+	}
+
+	@Override
+	public void deactivate() {
+		if(prefetcher != null) prefetcher.stop();
+	}
+
+	/**
+	 * Releases the sources claimed by this task, called by the {@link CVParticleSpout} when it is closed
+	 */
+	@Override
+	public void close() {
+		if(assigner != null) assigner.close();
+	}
+
+	@Override
+	public VideoChunk fetchData() {
+		try{
+			if(chunker == null && !openNext()) return null;
+			VideoChunk chunk = chunker.next(streamId);
+			if(chunk == null){
+				closeCurrent();
+				return null;
+			}
+			chunk.getMetadata().put("uri", currentFile);
+			return chunk;
+		}catch(Exception e){
+			logger.warn("Unable to read chunk from "+currentFile+" due to: "+e.getMessage(), e);
+			closeCurrent();
+			return null;
+		}
+	}
+
+	/**
+	 * Opens the next downloaded file if one is available
+	 * @return false if no file is available (yet)
+	 * @throws IOException
+	 */
+	private boolean openNext() throws IOException{
+		String file = videoList == null ? null : videoList.poll();
+		if(file == null) return false;
+		currentFile = file;
+		streamId = ""+file.hashCode();
+		if(file.contains("/")) streamId = file.substring(file.lastIndexOf('/')+1)+"_"+streamId;
+		logger.info("Start reading chunks from: "+file);
+		decoder = new VideoDecoder(file);
+		chunker = new VideoChunker(decoder, container, gopsPerChunk);
+		return true;
+	}
+
+	/**
+	 * Closes the current file and releases it so the prefetcher can delete it
+	 */
+	private void closeCurrent(){
+		if(decoder != null) decoder.close();
+		decoder = null;
+		chunker = null;
+		if(currentFile != null && prefetcher != null) prefetcher.release(currentFile);
+		currentFile = null;
+	}
+
+	/**
+	 * Lists all files in the specified location (see {@link FileFrameFetcher})
+	 * @param location
+	 * @return
+	 */
+	private List<String> expand(String location){
+		FileConnector fl = connectorHolder.getConnector(location);
+		if(fl != null){
+			fl.setExtensions(new String[]{".m2v", ".mp4", ".mkv", ".ts", ".flv", ".avi", ".mov", ".wmv", ".mpg", ".mpeg"});
+			try {
+				fl.moveTo(location);
+			} catch (IOException e) {
+				logger.warn("Unable to move to "+location+" due to: "+e.getMessage());
+				return new ArrayList<String>();
+			}
+			return fl.list();
+		}else return new ArrayList<String>();
+	}
+}
@@ -0,0 +1,117 @@
+package nl.tno.stormcv.grouping;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import nl.tno.stormcv.model.Frame;
+import nl.tno.stormcv.model.serializer.CVParticleSerializer;
+import nl.tno.stormcv.model.serializer.FrameSerializer;
+import nl.tno.stormcv.operation.LoadSheddingOp;
+import nl.tno.stormcv.util.LoadShedder;
+import backtype.storm.generated.GlobalStreamId;
+import backtype.storm.grouping.CustomStreamGrouping;
+import backtype.storm.task.WorkerTopologyContext;
+import backtype.storm.tuple.Fields;
+
+/**
+ * A custom grouping that functions as a load shedding <b>filter</b> as well as (optionally) a FieldGrouping. The provided {@link LoadShedder}
+ * decides, based on the lag of the {@link Frame}s passing this grouping, which frames are dropped before they are even transferred to the
+ * next bolt. Accepted tuples are routed using the hashmod of the provided fields or randomly if no fields are provided.
+ * Tuples that do not contain a timestamp (i.e. are not Frames) are always accepted.
+ *
+ * Dropped tuples are not failed, the number of dropped tuples is logged each minute. Use the {@link LoadSheddingOp} if shedding must be
+ * reported through Storm's metrics.
+ *
+ * @author Corne Versloot
+ *
+ */
+public class LoadSheddingGrouping implements CustomStreamGrouping {
+
+	private static final long serialVersionUID = -2216043624178651939L;
+	private Logger logger = LoggerFactory.getLogger(getClass());
+	private LoadShedder shedder;
+	private Fields grouping;
+	private List<Integer> targetTasks;
+	private List<Integer> indexes;
+	private int streamIdIndex = -1;
+	private int timestampIndex = -1;
+	private int metadataIndex = -1;
+	private long dropped = 0;
+	private long lastReport = 0;
+
+	/**
+	 * Constructs a shedding grouping that routes accepted tuples randomly
+	 * @param shedder
+	 */
+	public LoadSheddingGrouping(LoadShedder shedder){
+		this.shedder = shedder;
+	}
+
+	/**
+	 * Constructs a shedding grouping that routes accepted tuples based on the provided fields
+	 * @param shedder
+	 * @param grouping
+	 */
+	public LoadSheddingGrouping(LoadShedder shedder, Fields grouping){
+		this.shedder = shedder;
+		this.grouping = grouping;
+	}
+
+	@Override
+	public void prepare(WorkerTopologyContext context, GlobalStreamId stream, List<Integer> targetTasks) {
+		this.targetTasks = targetTasks;
+		Fields fields = context.getComponentOutputFields(stream);
+		indexes = new ArrayList<Integer>();
+		for(int i=0; i<fields.size(); i++){
+			if(fields.get(i).equals(CVParticleSerializer.STREAMID)){
+				streamIdIndex = i;
+			}else if(fields.get(i).equals(FrameSerializer.TIMESTAMP)){
+				timestampIndex = i;
+			}else if(fields.get(i).equals(CVParticleSerializer.METADATA)){
+				metadataIndex = i;
+			}
+			if(grouping != null && grouping.contains(fields.get(i))){
+				indexes.add(i);
+			}
+		}
+		lastReport = System.currentTimeMillis();
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public List<Integer> chooseTasks(int taskId, List<Object> values) {
+		List<Integer> targets = new ArrayList<Integer>();
+		if(timestampIndex >= 0 && streamIdIndex >= 0){
+			Map<String, Object> metadata = metadataIndex >= 0 ? (Map<String, Object>)values.get(metadataIndex) : null;
+			if(!shedder.accept((String)values.get(streamIdIndex), (Long)values.get(timestampIndex), metadata)){
+				dropped++;
+				report();
+				return targets;
+			}
+		}
+
+		if(indexes.size() > 0){
+			int hash = 0;
+			for(int i : indexes){
+				hash += values.get(i).hashCode();
+			}
+			targets.add(targetTasks.get(Math.abs(hash) % targetTasks.size()));
+		}else{
+			int randI = (int)Math.floor(Math.random() * targetTasks.size());
+			targets.add(targetTasks.get(randI));
+		}
+		report();
+		return targets;
+	}
+
+	private void report(){
+		if(System.currentTimeMillis() - lastReport < 60000) return;
+		logger.info("Dropped "+dropped+" tuples during the last minute (lag: "+shedder.getLag()+" ms, level: "+shedder.getLevel()+")");
+		dropped = 0;
+		lastReport = System.currentTimeMillis();
+	}
+}
@@ -1,5 +1,6 @@
 package nl.tno.stormcv.model;
 
+import nl.tno.stormcv.fetcher.VideoChunkFetcher;
 import nl.tno.stormcv.operation.FramesToVideoOp;
 import nl.tno.stormcv.operation.VideoToFramesOp;
 import backtype.storm.tuple.Tuple;
@@ -7,7 +8,8 @@ import backtype.storm.tuple.Tuple;
 /**
  * Represents a piece of video containing a number of encoded frames. The {@link FramesToVideoOp} and {@link VideoToFramesOp} operations can be
  * used to convert a bunch of {@link Frame}'s into a {@link VideoChunk} and the other way around. Videochunks can be used to minimize bandwidth usage
- * compared to sending raw frames. Encoding and decoding of the video however uses more computational power. 
+ * compared to sending raw frames. Encoding and decoding of the video however uses more computational power. The {@link VideoChunkFetcher}
+ * creates chunks directly from the compressed video in a file which avoids the encoding step.
  *  
  * @author Corne Versloot
  *
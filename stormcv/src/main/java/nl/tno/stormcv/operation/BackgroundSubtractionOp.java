@@ -1,8 +1,16 @@
 package nl.tno.stormcv.operation;
 
 import java.awt.Rectangle;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 
@@ -11,8 +19,11 @@ import org.opencv.core.MatOfPoint;
 import org.opencv.core.Rect;
 import org.opencv.imgproc.Imgproc;
 import org.opencv.video.BackgroundSubtractorMOG;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import backtype.storm.task.TopologyContext;
+import nl.tno.stormcv.StormCVConfig;
 import nl.tno.stormcv.model.CVParticle;
 import nl.tno.stormcv.model.Descriptor;
 import nl.tno.stormcv.model.Feature;
@@ -21,6 +32,8 @@ import nl.tno.stormcv.model.serializer.CVParticleSerializer;
 import nl.tno.stormcv.model.serializer.FeatureSerializer;
 import nl.tno.stormcv.model.serializer.FrameSerializer;
 import nl.tno.stormcv.util.ImageUtils;
+import nl.tno.stormcv.util.MatUtils;
+import nl.tno.stormcv.util.StreamStateCache;
 
 /**
  * Subtracts the background (a history of frames) from a newly provided frame using OpenCV's BackgroundSubtractorMOG.
@@ -32,6 +45,13 @@ import nl.tno.stormcv.util.ImageUtils;
  * <li>The original frame with the Feature added (outputFrame = true, asBinaryFrame = false)</li>
  * <li>A binary frame containing the original output of the BackgroundSubtractorMOG with the Feature added (outputFrame = true, asBinaryFrame = true)</li>
  * </ul>
+ * 
+ * The background models are kept for at most maxStreams streams (default = 100), the least recently used model is dropped when
+ * this number is exceeded and models of streams that did not receive frames for the idle time (default = 300 seconds) are dropped as well.
+ * Different streams can be processed concurrently. If a state directory is set (see snapshots(...) or {@link StormCVConfig}.STORMCV_OPERATION_STATE_DIR)
+ * the last frames of each stream are periodically written to disk. When the model of a stream is created these frames are used to train
+ * it first so a restarted worker (or a stream that was dropped) does not need framesHistory frames to warm up.
+ * 
  * @author cversloot
  *
  */
@@ -39,7 +59,13 @@ public class BackgroundSubtractionOp extends OpenCVOp<CVParticle> implements ISi
 
 	private static final long serialVersionUID = 4901648542417417874L;
 	
-	private HashMap<String, BackgroundSubtractorMOG> mogs;
+	private Logger logger = LoggerFactory.getLogger(getClass());
+	private StreamStateCache<Model> models;
+	private int maxStreams = 100;
+	private int idleSec = 300;
+	private String stateDir;
+	private int snapshotFrames = 25;
+	private int snapshotSec = 60;
 	private boolean outputFrame = false;
 	private boolean binaryFrame = false;
 	private int framesHistory;
@@ -64,9 +90,37 @@ public class BackgroundSubtractionOp extends OpenCVOp<CVParticle> implements ISi
 		return this;
 	}
 	
+	/**
+	 * Sets the maximum number of streams to keep a background model for and the time after which the model of a stream
+	 * that did not receive any frames is dropped
+	 * @param maxStreams (default = 100)
+	 * @param idleSec (default = 300)
+	 * @return itself
+	 */
+	public BackgroundSubtractionOp stateLimits(int maxStreams, int idleSec){
+		this.maxStreams = maxStreams;
+		this.idleSec = idleSec;
+		return this;
+	}
+	
+	/**
+	 * Enables snapshots of the last frames of each stream, used to train the model of a stream when it is created
+	 * @param directory local directory to store the snapshots in
+	 * @param frames the number of frames to keep (default = 25)
+	 * @param intervalSec the minimum time between two snapshots of the same stream (default = 60)
+	 * @return itself
+	 */
+	public BackgroundSubtractionOp snapshots(String directory, int frames, int intervalSec){
+		this.stateDir = directory;
+		this.snapshotFrames = frames;
+		this.snapshotSec = intervalSec;
+		return this;
+	}
+	
 	@Override
 	public void deactivate() {
-		this.mogs = null;
+		// writes a final snapshot of all models
+		if(models != null) models.clear();
 	}
 
 	@SuppressWarnings("unchecked")
@@ -94,24 +148,23 @@ public class BackgroundSubtractionOp extends OpenCVOp<CVParticle> implements ISi
 		// decode input image to OpenCV Mat
 		Mat inputImage = ImageUtils.bytes2Mat(frame.getImageBytes());
 		
-		if(!mogs.containsKey(streamId) ){
-			mogs.put(streamId, new BackgroundSubtractorMOG());
-		}
 		// update the background model
 		Mat mogMask = new Mat();
-	    mogs.get(streamId).apply(inputImage, mogMask, 1f/framesHistory);
+		Model model = models.get(streamId);
+		synchronized(model){
+			model.mog.apply(inputImage, mogMask, 1f/framesHistory);
+			if(stateDir != null){
+				model.add(frame.getImageBytes(), snapshotFrames);
+				if(System.currentTimeMillis() - model.lastSnapshot > snapshotSec * 1000L) snapshot(streamId, model);
+			}
+		}
 	    
     	// find contours for the blobs
     	List<MatOfPoint> contours = new ArrayList<MatOfPoint>();
     	Imgproc.findContours(mogMask.clone(), contours, new Mat(), 0 /*CV_RETR_EXTERNAL*/, 2 /*CV_CHAIN_APPROX_SIMPLE*/);
     	ArrayList<Descriptor> descriptors = new ArrayList<Descriptor>();
     	for(MatOfPoint contour : contours){
-    		float[] polygon = new float[contour.rows()*2];
-    		for(int row=0; row<contour.rows(); row++){
-    			double[] point = contour.get(row, 0);
-    			polygon[row*2] = (float)point[0];
-    			polygon[row*2+1] = (float)point[1];
-    		}
+    		float[] polygon = MatUtils.toFloats(contour);
     		Rect rect = Imgproc.boundingRect(contour);
     		if(rect.width < 5 || rect.height < 5 ) continue;
     		descriptors.add(new Descriptor(streamId, input.getSequenceNr(), new Rectangle(rect.x, rect.y, rect.width, rect.height), 0, polygon));
@@ -132,7 +185,109 @@ public class BackgroundSubtractionOp extends OpenCVOp<CVParticle> implements ISi
 
 	@Override
 	protected void prepareOpenCVOp(@SuppressWarnings("rawtypes") Map stormConf, TopologyContext context) throws Exception {
-		this.mogs = new HashMap<String, BackgroundSubtractorMOG>();		
+		if(stateDir == null && stormConf.containsKey(StormCVConfig.STORMCV_OPERATION_STATE_DIR)){
+			stateDir = (String)stormConf.get(StormCVConfig.STORMCV_OPERATION_STATE_DIR);
+		}
+		if(stateDir != null){
+			File dir = new File(stateDir);
+			if(!dir.exists() && !dir.mkdirs()){
+				logger.warn("Unable to create state directory "+stateDir+", snapshots disabled");
+				stateDir = null;
+			}
+		}
+		if(models != null) models.clear();
+		this.models = new StreamStateCache<Model>(maxStreams, idleSec * 1000L){
+			@Override
+			protected Model create(String streamId) throws Exception {
+				Model model = new Model();
+				if(stateDir != null) restore(streamId, model);
+				return model;
+			}
+
+			@Override
+			protected void evicted(String streamId, Model model) throws Exception {
+				if(stateDir != null && model.changed) snapshot(streamId, model);
+			}
+		};
+	}
+	
+	private File getSnapshotFile(String streamId){
+		return new File(stateDir, streamId.replaceAll("[^a-zA-Z0-9._-]", "_")+"_"+Integer.toHexString(streamId.hashCode())+".bgs");
+	}
+	
+	/**
+	 * Writes the frames kept for the stream to disk, the caller must hold the lock on the model
+	 * @param streamId
+	 * @param model
+	 */
+	private void snapshot(String streamId, Model model){
+		model.lastSnapshot = System.currentTimeMillis();
+		File file = getSnapshotFile(streamId);
+		File tmp = new File(file.getPath()+".tmp");
+		try{
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+			try{
+				out.writeInt(model.frames.size());
+				for(byte[] bytes : model.frames){
+					out.writeInt(bytes.length);
+					out.write(bytes);
+				}
+			}finally{
+				out.close();
+			}
+			if(!tmp.renameTo(file) && (!file.delete() || !tmp.renameTo(file))){
+				throw new IOException("unable to replace "+file);
+			}
+			model.changed = false;
+		}catch(IOException e){
+			logger.warn("Unable to write snapshot for "+streamId+": "+e.getMessage());
+			tmp.delete();
+		}
+	}
+	
+	/**
+	 * Trains the model with the frames from the snapshot of the stream, if there is one
+	 * @param streamId
+	 * @param model
+	 */
+	private void restore(String streamId, Model model){
+		File file = getSnapshotFile(streamId);
+		if(!file.exists()) return;
+		try{
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try{
+				int count = in.readInt();
+				for(int i=0; i<count; i++){
+					byte[] bytes = new byte[in.readInt()];
+					in.readFully(bytes);
+					// learn fast at first, like the model does when it sees its first frames
+					model.mog.apply(ImageUtils.bytes2Mat(bytes), new Mat(), 1f/Math.min(i+1, framesHistory));
+					model.add(bytes, snapshotFrames);
+				}
+			}finally{
+				in.close();
+			}
+			model.changed = false;
+			logger.info("Restored background model for "+streamId+" from "+model.frames.size()+" frames");
+		}catch(Exception e){
+			logger.warn("Unable to restore background model for "+streamId+": "+e.getMessage());
+		}
+	}
+	
+	/**
+	 * The background model of a single stream and its most recent frames
+	 */
+	private static class Model {
+		private BackgroundSubtractorMOG mog = new BackgroundSubtractorMOG();
+		private LinkedList<byte[]> frames = new LinkedList<byte[]>();
+		private long lastSnapshot = System.currentTimeMillis();
+		private boolean changed = false;
+		
+		private void add(byte[] bytes, int max){
+			frames.add(bytes);
+			while(frames.size() > max) frames.removeFirst();
+			changed = true;
+		}
 	}
 
 }
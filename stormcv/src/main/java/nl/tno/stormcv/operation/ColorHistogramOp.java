@@ -19,6 +19,7 @@ import nl.tno.stormcv.model.Frame;
 import nl.tno.stormcv.model.CVParticle;
 import nl.tno.stormcv.model.serializer.FeatureSerializer;
 import nl.tno.stormcv.model.serializer.CVParticleSerializer;
+import nl.tno.stormcv.util.MatUtils;
 
 /**
  * Operation to calculate the color histogram of a {@link Frame} and returns a {@link Feature} 
@@ -84,17 +85,7 @@ public class ColorHistogramOp extends OpenCVOp<Feature> implements ISingleInputO
             ranges = new MatOfFloat(rangesj[i*2],rangesj[i*2+1]);
             Imgproc.calcHist(images, chans, new Mat(), hist, histsize, ranges);
 
-            float[] tmp = new float[1];
-
-            int rows = (int) hist.size().height;
-            
-            float[] values = new float[rows];
-            int c = 0;
-            for (int r = 0; r < rows; r++) // loop over rows/columns
-            {
-                hist.get(r, c, tmp);
-                values[r] = tmp[0];
-            }
+            float[] values = MatUtils.toFloats(hist); // one value for each bin
             hist_descriptors.add(new Descriptor(input.getStreamId(), input.getSequenceNr(), box, 0, values));
         }
 		
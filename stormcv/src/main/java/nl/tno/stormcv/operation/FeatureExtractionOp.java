@@ -18,6 +18,7 @@ import org.slf4j.LoggerFactory;
 import backtype.storm.task.TopologyContext;
 import nl.tno.stormcv.model.*;
 import nl.tno.stormcv.model.serializer.*;
+import nl.tno.stormcv.util.MatUtils;
 
 /**
  * An operation used to detect and describe a wide variety of features using the OpenCV FeatureExtraction and 
@@ -105,14 +106,9 @@ public class FeatureExtractionOp extends OpenCVOp<CVParticle> implements ISingle
 			DescriptorExtractor extractor = DescriptorExtractor.create(descriptorType);
 			extractor.compute(image, mokp, descriptors);
 			List<Descriptor> descrList = new ArrayList<Descriptor>();
-			float[] tmp = new float[1];
-			for(int r=0; r<descriptors.rows(); r++){
-				float[] values = new float[descriptors.cols()];
-				for(int c=0; c<descriptors.cols(); c++){
-					descriptors.get(r, c, tmp);
-					values[c] = tmp[0];
-				}
-				descrList.add(new Descriptor(frame.getStreamId(), frame.getSequenceNr(), new Rectangle((int)keypoints.get(r).pt.x, (int)keypoints.get(r).pt.y, 0, 0), 0, values));
+			List<float[]> rows = MatUtils.toRows(descriptors);
+			for(int r=0; r<rows.size(); r++){
+				descrList.add(new Descriptor(frame.getStreamId(), frame.getSequenceNr(), new Rectangle((int)keypoints.get(r).pt.x, (int)keypoints.get(r).pt.y, 0, 0), 0, rows.get(r)));
 			}
 			
 			Feature feature = new Feature(frame.getStreamId(), frame.getSequenceNr(), featureName, 0, descrList, null);
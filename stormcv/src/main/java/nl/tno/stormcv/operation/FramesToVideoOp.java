@@ -16,7 +16,6 @@ import nl.tno.stormcv.model.VideoChunk;
 import nl.tno.stormcv.model.serializer.CVParticleSerializer;
 import nl.tno.stormcv.model.serializer.FrameSerializer;
 import nl.tno.stormcv.model.serializer.VideoChunkSerializer;
-import nl.tno.stormcv.operation.IBatchOperation;
 import nl.tno.stormcv.util.StreamWriter;
 import nl.tno.stormcv.util.connector.ConnectorHolder;
 import nl.tno.stormcv.util.connector.FileConnector;
@@ -40,10 +39,13 @@ import nl.tno.stormcv.util.connector.FileConnector;
  * 
  * It is possible to specify additional parameters like bitrate and ffmpeg parameters to tune the speed and quality.
  * 
+ * By default all streams are encoded one by one on the thread of the bolt. Using lanes(threads, maxQueuedFrames) different streams are
+ * encoded in parallel by a pool of threads while the frames of each stream are still encoded in order (see {@link ILaneOperation}).
+ * 
  * @author Corne Versloot
  *
  */
-public class FramesToVideoOp implements IBatchOperation<CVParticle> {
+public class FramesToVideoOp implements ILaneOperation<CVParticle> {
 
 	private static final long serialVersionUID = 5155420608757446666L;
 	private String location;
@@ -55,6 +57,8 @@ public class FramesToVideoOp implements IBatchOperation<CVParticle> {
 	private int bitrate = -1;
 	private String[] ffmpegParams;
 	private ICodec.ID codec = ICodec.ID.CODEC_ID_H264;
+	private int laneThreads = 0;
+	private int laneCapacity = 100;
 	
 	/**
 	 * Constructs a writer that will put files in the provided location (must be a directory!). Each video
@@ -134,6 +138,35 @@ public class FramesToVideoOp implements IBatchOperation<CVParticle> {
 		return this;
 	}
 	
+	/**
+	 * Encodes different streams in parallel using the provided number of threads (default = 0 which encodes all
+	 * streams on the thread of the bolt). 
+	 * @param threads
+	 * @param maxQueuedFrames the maximum number of frames waiting to be encoded per stream
+	 * @return itself
+	 */
+	public FramesToVideoOp lanes(int threads, int maxQueuedFrames){
+		this.laneThreads = threads;
+		this.laneCapacity = maxQueuedFrames;
+		return this;
+	}
+	
+	@Override
+	public Object getLane(List<CVParticle> input) {
+		if(laneThreads <= 0 || input == null || input.size() == 0) return null;
+		return input.get(0).getStreamId();
+	}
+
+	@Override
+	public int getLaneThreads() {
+		return laneThreads;
+	}
+
+	@Override
+	public int getLaneCapacity() {
+		return laneCapacity;
+	}
+	
 	@SuppressWarnings("rawtypes")
 	@Override
 	public void prepare(Map stormConf, TopologyContext context) throws Exception {
@@ -0,0 +1,16 @@
+package nl.tno.stormcv.operation;
+
+import nl.tno.stormcv.model.CVParticle;
+
+/**
+ * Marker interface for {@link ISingleInputOperation}s that act as a gate: an empty result means the particle must not be processed
+ * any further instead of 'nothing found'. Operations chaining other operations, like the {@link SequentialFrameOp}, stop processing
+ * a particle as soon as a gate returns nothing for it.
+ *
+ * @author Corne Versloot
+ *
+ * @param <Output>
+ */
+public interface IGateOperation<Output extends CVParticle> extends ISingleInputOperation<Output> {
+
+}
@@ -0,0 +1,38 @@
+package nl.tno.stormcv.operation;
+
+import java.util.List;
+
+import nl.tno.stormcv.bolt.BatchInputBolt;
+import nl.tno.stormcv.model.CVParticle;
+import nl.tno.stormcv.util.LaneExecutor;
+
+/**
+ * A batch operation that can be executed in parallel for independent batches. The {@link BatchInputBolt} executes batches of
+ * such an operation on a {@link LaneExecutor}: batches of the same lane (i.e. the same stream) are executed one by one in the order 
+ * they were created while batches of different lanes are executed in parallel. The execute function must therefore be safe to 
+ * call concurrently for different lanes. Tuples of a batch are acked once the batch has been executed.
+ * 
+ * @author Corne Versloot
+ *
+ * @param <Output>
+ */
+public interface ILaneOperation<Output extends CVParticle> extends IBatchOperation<Output> {
+
+	/**
+	 * Returns the lane the provided batch must be executed in
+	 * @param input
+	 * @return the key of the lane or null if the batch must be executed directly by the bolt
+	 */
+	public Object getLane(List<CVParticle> input);
+	
+	/**
+	 * @return the number of threads used to execute lanes, 0 executes all batches directly by the bolt
+	 */
+	public int getLaneThreads();
+	
+	/**
+	 * @return the maximum number of particles queued in a single lane
+	 */
+	public int getLaneCapacity();
+	
+}
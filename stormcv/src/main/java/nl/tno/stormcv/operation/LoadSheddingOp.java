@@ -0,0 +1,108 @@
+package nl.tno.stormcv.operation;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import backtype.storm.metric.api.MultiCountMetric;
+import backtype.storm.task.TopologyContext;
+import nl.tno.stormcv.bolt.SingleInputBolt;
+import nl.tno.stormcv.model.CVParticle;
+import nl.tno.stormcv.model.Frame;
+import nl.tno.stormcv.model.GroupOfFrames;
+import nl.tno.stormcv.model.serializer.CVParticleSerializer;
+import nl.tno.stormcv.model.serializer.FrameSerializer;
+import nl.tno.stormcv.util.LoadShedder;
+
+/**
+ * A pass-through operation that drops {@link Frame}s deliberately when the topology is overloaded. The decision is made by the
+ * {@link LoadShedder} provided on construction which measures the backlog in front of this operation and drops frames from low
+ * priority streams first. Dropped frames are simply not emitted which means they are acked by the {@link SingleInputBolt} instead
+ * of timing out. The number of passed and shed frames per stream are reported through Storm's metrics as 'shedding_passed' and
+ * 'shedding_dropped'.
+ *
+ * This operation should be placed directly in front of the expensive part of the topology, for example:
+ * <pre>
+ * builder.setBolt("shedder", new SingleInputBolt(new LoadSheddingOp(new LoadShedder().priority(url, 1).defaultMinFps(1))), 1)
+ * </pre>
+ * Operations that do not receive Frame or {@link GroupOfFrames} objects pass all input through.
+ *
+ * @author Corne Versloot
+ *
+ */
+public class LoadSheddingOp implements ISingleInputOperation<CVParticle> {
+
+	private static final long serialVersionUID = 2934805716389582931L;
+	private LoadShedder shedder;
+	@SuppressWarnings("rawtypes")
+	private CVParticleSerializer serializer = new FrameSerializer();
+	private int metricsBucketSec = 60;
+	private transient MultiCountMetric passed;
+	private transient MultiCountMetric dropped;
+
+	public LoadSheddingOp(LoadShedder shedder){
+		this.shedder = shedder;
+	}
+
+	/**
+	 * Sets the serializer to use for output which must match the type of input received (default is {@link FrameSerializer})
+	 * @param serializer
+	 * @return itself
+	 */
+	@SuppressWarnings("rawtypes")
+	public LoadSheddingOp serializer(CVParticleSerializer serializer){
+		this.serializer = serializer;
+		return this;
+	}
+
+	/**
+	 * Sets the interval in seconds used to report shedding metrics (default = 60)
+	 * @param seconds
+	 * @return itself
+	 */
+	public LoadSheddingOp metricsInterval(int seconds){
+		this.metricsBucketSec = seconds;
+		return this;
+	}
+
+	@SuppressWarnings("rawtypes")
+	@Override
+	public void prepare(Map stormConf, TopologyContext context) throws Exception {
+		passed = new MultiCountMetric();
+		dropped = new MultiCountMetric();
+		context.registerMetric("shedding_passed", passed, metricsBucketSec);
+		context.registerMetric("shedding_dropped", dropped, metricsBucketSec);
+	}
+
+	@Override
+	public void deactivate() { }
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public CVParticleSerializer<CVParticle> getSerializer() {
+		return serializer;
+	}
+
+	@Override
+	public List<CVParticle> execute(CVParticle particle) throws Exception {
+		List<CVParticle> result = new ArrayList<CVParticle>();
+		long timestamp;
+		if(particle instanceof Frame){
+			timestamp = ((Frame)particle).getTimestamp();
+		}else if(particle instanceof GroupOfFrames && ((GroupOfFrames)particle).nrOfFrames() > 0){
+			timestamp = ((GroupOfFrames)particle).getFrames().get(0).getTimestamp();
+		}else{
+			result.add(particle);
+			return result;
+		}
+
+		if(shedder.accept(particle.getStreamId(), timestamp, particle.getMetadata())){
+			passed.scope(particle.getStreamId()).incr();
+			result.add(particle);
+		}else{
+			dropped.scope(particle.getStreamId()).incr();
+		}
+		return result;
+	}
+
+}
@@ -0,0 +1,261 @@
+package nl.tno.stormcv.operation;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import backtype.storm.task.TopologyContext;
+import nl.tno.stormcv.fetcher.FetchAndOperateFetcher;
+import nl.tno.stormcv.model.CVParticle;
+import nl.tno.stormcv.model.Descriptor;
+import nl.tno.stormcv.model.Feature;
+import nl.tno.stormcv.model.Frame;
+import nl.tno.stormcv.model.serializer.CVParticleSerializer;
+import nl.tno.stormcv.model.serializer.FrameSerializer;
+import nl.tno.stormcv.util.ImageUtils;
+import nl.tno.stormcv.util.StreamStateCache;
+
+/**
+ * A cheap motion detector that only lets {@link Frame}'s with motion pass. Each frame is reduced to a small gray image (64 pixels wide
+ * by default, see {@link ImageUtils}.downscaleGray) which is compared with a running average background of its stream. Pixels that differ
+ * more than the pixel threshold are considered to be moving and neighboring moving pixels are grouped into regions. A frame passes if
+ * the fraction of moving pixels is at least the motion threshold, otherwise the operation returns an empty list. This is much cheaper
+ * than the {@link BackgroundSubtractionOp} which runs MOG on the full resolution image and is meant to be used in front of heavy
+ * operations like the {@link HaarCascadeOp} and {@link FeatureExtractionOp}.
+ *
+ * Frames that pass get a {@link Feature} (named 'motion' by default) with a {@link Descriptor} for each region in full resolution coordinates
+ * and the metadata 'motion' (the fraction of moving pixels) and 'motionRegion' (the bounding box of all regions). The regions can be
+ * extracted by a {@link ROIExtractionOp}. The first frame of each stream always passes. Backgrounds are kept for at most maxStreams
+ * streams (default = 100) and dropped for streams that did not receive frames for the idle time (default = 300 seconds), see stateLimits(...).
+ *
+ * The operation can be used in a bolt, as the first operation of a {@link SequentialFrameOp} (which stops processing frames without
+ * motion) or directly within the spout using the {@link FetchAndOperateFetcher}.
+ *
+ * @author Corne Versloot
+ *
+ */
+public class MotionGateOp implements IGateOperation<Frame> {
+
+	private static final long serialVersionUID = 3371927810262460561L;
+	private FrameSerializer serializer = new FrameSerializer();
+	private String featureName = "motion";
+	private int width = 64;
+	private int pixelThreshold = 25;
+	private float motionThreshold = 0.01f;
+	private int minRegionSize = 2;
+	private float learningRate = 0.05f;
+	private int maxStreams = 100;
+	private int idleSec = 300;
+	private StreamStateCache<Background> backgrounds;
+
+	/**
+	 * Creates a gate that lets frames pass that have at least 1% moving pixels
+	 */
+	public MotionGateOp(){ }
+
+	/**
+	 * Creates a gate that lets frames pass if at least the provided fraction of the pixels is moving
+	 * @param motionThreshold fraction between 0 and 1
+	 */
+	public MotionGateOp(float motionThreshold){
+		this.motionThreshold = motionThreshold;
+	}
+
+	/**
+	 * Sets the name of the feature containing the regions with motion (default = motion)
+	 * @param name
+	 * @return itself
+	 */
+	public MotionGateOp featureName(String name){
+		this.featureName = name;
+		return this;
+	}
+
+	/**
+	 * Sets the width of the gray image used to detect motion, the height is based on the aspect ratio
+	 * of the frame (default = 64)
+	 * @param pixels
+	 * @return itself
+	 */
+	public MotionGateOp width(int pixels){
+		this.width = pixels;
+		return this;
+	}
+
+	/**
+	 * Sets the minimum difference between a gray value and the background for the pixel to be
+	 * considered moving (default = 25)
+	 * @param diff value between 0 and 255
+	 * @return itself
+	 */
+	public MotionGateOp pixelThreshold(int diff){
+		this.pixelThreshold = diff;
+		return this;
+	}
+
+	/**
+	 * Sets the minimum number of (downscaled) pixels a region must have to be reported (default = 2)
+	 * @param pixels
+	 * @return itself
+	 */
+	public MotionGateOp minRegionSize(int pixels){
+		this.minRegionSize = pixels;
+		return this;
+	}
+
+	/**
+	 * Sets how fast the background adapts to changes in the scene (default = 0.05). A higher rate
+	 * absorbs stopped objects and lighting changes faster.
+	 * @param rate value between 0 and 1
+	 * @return itself
+	 */
+	public MotionGateOp learningRate(float rate){
+		this.learningRate = rate;
+		return this;
+	}
+
+	/**
+	 * Sets the limits on the backgrounds kept in memory
+	 * @param maxStreams the maximum number of streams to keep a background for (default = 100)
+	 * @param idleSec the time after which the background of a stream that did not receive frames is dropped (default = 300)
+	 * @return itself
+	 */
+	public MotionGateOp stateLimits(int maxStreams, int idleSec){
+		this.maxStreams = maxStreams;
+		this.idleSec = idleSec;
+		return this;
+	}
+
+	@SuppressWarnings("rawtypes")
+	@Override
+	public void prepare(Map stormConf, TopologyContext context) throws Exception {
+		if(backgrounds != null) backgrounds.clear();
+		backgrounds = new StreamStateCache<Background>(maxStreams, idleSec * 1000L){
+			@Override
+			protected Background create(String streamId) throws Exception {
+				return new Background();
+			}
+		};
+	}
+
+	@Override
+	public void deactivate() {
+		if(backgrounds != null) backgrounds.clear();
+	}
+
+	@Override
+	public CVParticleSerializer<Frame> getSerializer() {
+		return serializer;
+	}
+
+	@Override
+	public List<Frame> execute(CVParticle particle) throws Exception {
+		List<Frame> result = new ArrayList<Frame>();
+		if(!(particle instanceof Frame)) return result;
+		Frame frame = (Frame)particle;
+		BufferedImage image = frame.getImage();
+		if(image == null) return result;
+
+		int w = Math.max(1, Math.min(width, image.getWidth()));
+		int h = Math.max(1, Math.round((float)w * image.getHeight() / image.getWidth()));
+		int[] gray = ImageUtils.downscaleGray(image, w, h);
+
+		Background state = backgrounds.get(frame.getStreamId());
+		boolean[] moving = new boolean[gray.length];
+		int count = 0;
+		synchronized(state){
+			float[] background = state.values;
+			if(background == null || background.length != gray.length){
+				background = new float[gray.length];
+				for(int i=0; i<gray.length; i++) background[i] = gray[i];
+				state.values = background;
+				frame.getMetadata().put("motion", 1f);
+				result.add(frame);
+				return result;
+			}
+
+			// mark moving pixels and update the background
+			for(int i=0; i<gray.length; i++){
+				if(Math.abs(gray[i] - background[i]) >= pixelThreshold){
+					moving[i] = true;
+					count++;
+				}
+				background[i] += learningRate * (gray[i] - background[i]);
+			}
+		}
+		float motion = (float)count / gray.length;
+		if(count == 0 || motion < motionThreshold) return result;
+
+		// group moving pixels into regions and scale them to the frame's resolution
+		float scaleX = (float)image.getWidth() / w;
+		float scaleY = (float)image.getHeight() / h;
+		List<Descriptor> descriptors = new ArrayList<Descriptor>();
+		Rectangle total = null;
+		for(int[] region : findRegions(moving, w, h)){
+			int x = (int)(region[0] * scaleX);
+			int y = (int)(region[1] * scaleY);
+			Rectangle box = new Rectangle(x, y, (int)Math.ceil((region[2] + 1) * scaleX) - x, (int)Math.ceil((region[3] + 1) * scaleY) - y);
+			box = box.intersection(new Rectangle(0, 0, image.getWidth(), image.getHeight()));
+			descriptors.add(new Descriptor(frame.getStreamId(), frame.getSequenceNr(), box, 0, new float[]{region[4]}));
+			total = total == null ? box : total.union(box);
+		}
+		if(total == null) return result;
+		frame.getFeatures().add(new Feature(frame.getStreamId(), frame.getSequenceNr(), featureName, 0, descriptors, null));
+		frame.getMetadata().put("motion", motion);
+		frame.getMetadata().put("motionRegion", total);
+		result.add(frame);
+		return result;
+	}
+
+	/**
+	 * Groups neighboring moving pixels into regions
+	 * @param moving
+	 * @param w
+	 * @param h
+	 * @return list with {minX, minY, maxX, maxY, nrPixels} of regions with at least minRegionSize pixels
+	 */
+	private List<int[]> findRegions(boolean[] moving, int w, int h){
+		List<int[]> regions = new ArrayList<int[]>();
+		boolean[] visited = new boolean[moving.length];
+		int[] stack = new int[moving.length];
+		for(int start=0; start<moving.length; start++){
+			if(!moving[start] || visited[start]) continue;
+			int[] region = new int[]{w, h, -1, -1, 0};
+			int top = 0;
+			stack[top++] = start;
+			visited[start] = true;
+			while(top > 0){
+				int p = stack[--top];
+				int x = p % w, y = p / w;
+				region[0] = Math.min(region[0], x);
+				region[1] = Math.min(region[1], y);
+				region[2] = Math.max(region[2], x);
+				region[3] = Math.max(region[3], y);
+				region[4]++;
+				for(int dy=-1; dy<=1; dy++){
+					for(int dx=-1; dx<=1; dx++){
+						int nx = x + dx, ny = y + dy;
+						if(nx < 0 || ny < 0 || nx >= w || ny >= h) continue;
+						int n = ny * w + nx;
+						if(moving[n] && !visited[n]){
+							visited[n] = true;
+							stack[top++] = n;
+						}
+					}
+				}
+			}
+			if(region[4] >= minRegionSize) regions.add(region);
+		}
+		return regions;
+	}
+
+	/**
+	 * The running average background of a single stream
+	 */
+	private static class Background {
+		private float[] values;
+	}
+
+}
@@ -3,6 +3,7 @@ package nl.tno.stormcv.operation;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 
 import org.opencv.core.CvType;
 import org.opencv.core.Mat;
@@ -14,11 +15,19 @@ import org.opencv.video.Video;
 import backtype.storm.task.TopologyContext;
 import nl.tno.stormcv.model.*;
 import nl.tno.stormcv.model.serializer.*;
+import nl.tno.stormcv.util.MatUtils;
+import nl.tno.stormcv.util.StreamStateCache;
 
 /**
  * Operation to calculate the optical flow between two {@link Frame}s and returns a {@link Feature}
  * with the detected dense optical flow.
  * 
+ * Typically the operation receives overlapping pairs (f1,f2), (f2,f3), ... from a sliding window. The gray version of the most recent
+ * frames of each stream is cached (keyed on sequenceNr) so each frame is decoded and converted only once. The number of frames cached
+ * per stream can be set using grayCache(size) (default = 2, use 0 to disable the cache). Only frames older than both frames of the pair
+ * being compared are dropped from the cache and the flow is calculated while holding the lock of the stream's cache so the images in use
+ * are never released.
+ * 
  * @author Corne Versloot
  */
 
@@ -29,10 +38,26 @@ public class OpticalFlowOp extends OpenCVOp<CVParticle> implements IBatchOperati
 	@SuppressWarnings("rawtypes")
 	private CVParticleSerializer serializer = new FeatureSerializer();
 	private String name;
+	private int cacheSize = 2;
+	private StreamStateCache<TreeMap<Long, Mat>> grayCache;
 
 	@SuppressWarnings("rawtypes")
 	@Override
-	protected void prepareOpenCVOp(Map stormConf, TopologyContext context) throws Exception { }
+	protected void prepareOpenCVOp(Map stormConf, TopologyContext context) throws Exception {
+		if(grayCache != null) grayCache.clear();
+		grayCache = new StreamStateCache<TreeMap<Long, Mat>>(100, 60 * 1000){
+			@Override
+			protected TreeMap<Long, Mat> create(String streamId) throws Exception {
+				return new TreeMap<Long, Mat>();
+			}
+
+			@Override
+			protected void evicted(String streamId, TreeMap<Long, Mat> grays) throws Exception {
+				for(Mat gray : grays.values()) gray.release();
+				grays.clear();
+			}
+		};
+	}
 	
 	public OpticalFlowOp(String featureName){
 		this.name = featureName;
@@ -54,8 +79,21 @@ public class OpticalFlowOp extends OpenCVOp<CVParticle> implements IBatchOperati
 		return this;
 	}
 	
+	/**
+	 * Sets the number of gray frames cached for each stream (default = 2). The cache holds at least the two
+	 * frames being compared, a size of 0 disables it.
+	 * @param size
+	 * @return itself
+	 */
+	public OpticalFlowOp grayCache(int size){
+		this.cacheSize = size <= 0 ? 0 : Math.max(2, size);
+		return this;
+	}
+	
 	@Override
-	public void deactivate() {	}
+	public void deactivate() {
+		if(grayCache != null) grayCache.clear();
+	}
 
 	@SuppressWarnings("unchecked")
 	@Override
@@ -72,32 +110,28 @@ public class OpticalFlowOp extends OpenCVOp<CVParticle> implements IBatchOperati
 		Frame frame1 = (Frame)input.get(0);
 		Frame frame2 = (Frame)input.get(1);
 		
-		MatOfByte mob1 = new MatOfByte(frame1.getImageBytes());
-		Mat image1 = Highgui.imdecode(mob1, Highgui.CV_LOAD_IMAGE_ANYCOLOR);
-		Mat image1Gray = new Mat( image1.size(), CvType.CV_8UC1 );
-		Imgproc.cvtColor( image1, image1Gray, Imgproc.COLOR_RGB2GRAY );
-		
-		MatOfByte mob2 = new MatOfByte(frame2.getImageBytes());
-		Mat image2 = Highgui.imdecode(mob2, Highgui.CV_LOAD_IMAGE_ANYCOLOR);
-		Mat image2Gray = new Mat( image2.size(), CvType.CV_8UC1 );
-		Imgproc.cvtColor( image2, image2Gray, Imgproc.COLOR_RGB2GRAY );
-		
-		Mat opticalFlow = new Mat( image1Gray.size(), CvType.CV_32FC2 );
-		Video.calcOpticalFlowFarneback( image1Gray, image2Gray, opticalFlow, 0.5, 1, 1, 1, 7, 1.5, 1 );
-		
-		int cols = opticalFlow.cols();
-		int rows = opticalFlow.rows();
-		int maxz = opticalFlow.get(0,0).length;
-		float[] tmp = new float[maxz];
-		float[][][] dense = new float[cols][rows][maxz];
-		for(int y=0; y<opticalFlow.rows(); y++){
-			for(int x=0; x<opticalFlow.cols(); x++){
-				opticalFlow.get(y,x, tmp);
-				dense[x][y][0] = tmp[0];
-				dense[x][y][1] = tmp[1];
+		Mat opticalFlow;
+		if(cacheSize <= 0 || !frame1.getStreamId().equals(frame2.getStreamId())){
+			Mat image1Gray = toGray(frame1);
+			Mat image2Gray = toGray(frame2);
+			opticalFlow = calculateFlow(image1Gray, image2Gray);
+			image1Gray.release();
+			image2Gray.release();
+		}else{
+			TreeMap<Long, Mat> grays = grayCache.get(frame1.getStreamId());
+			synchronized(grays){
+				opticalFlow = calculateFlow(getGray(grays, frame1), getGray(grays, frame2));
+				// drop frames older than both frames, a sliding window moves forward
+				long oldest = Math.min(frame1.getSequenceNr(), frame2.getSequenceNr());
+				while(grays.size() > cacheSize && grays.firstKey() < oldest){
+					grays.pollFirstEntry().getValue().release();
+				}
 			}
 		}
 		
+		float[][][] dense = MatUtils.toDense(opticalFlow);
+		opticalFlow.release();
+		
 		Feature feature = new Feature(frame1.getStreamId(), frame1.getSequenceNr(), name, frame2.getSequenceNr()-frame1.getSequenceNr(), null, dense);
 		if(outputFrame){
 			frame1.getFeatures().add(feature);
@@ -108,5 +142,36 @@ public class OpticalFlowOp extends OpenCVOp<CVParticle> implements IBatchOperati
 
 		return result;
 	}
+	
+	private Mat calculateFlow(Mat image1Gray, Mat image2Gray){
+		Mat opticalFlow = new Mat( image1Gray.size(), CvType.CV_32FC2 );
+		Video.calcOpticalFlowFarneback( image1Gray, image2Gray, opticalFlow, 0.5, 1, 1, 1, 7, 1.5, 1 );
+		return opticalFlow;
+	}
+	
+	/**
+	 * Returns the gray image of the frame from the provided cache, the frame is converted if it is not in the cache yet.
+	 * The caller must hold the lock on the cache.
+	 * @param grays
+	 * @param frame
+	 * @return
+	 */
+	private Mat getGray(TreeMap<Long, Mat> grays, Frame frame){
+		Mat gray = grays.get(frame.getSequenceNr());
+		if(gray == null){
+			gray = toGray(frame);
+			grays.put(frame.getSequenceNr(), gray);
+		}
+		return gray;
+	}
+	
+	private Mat toGray(Frame frame){
+		MatOfByte mob = new MatOfByte(frame.getImageBytes());
+		Mat image = Highgui.imdecode(mob, Highgui.CV_LOAD_IMAGE_ANYCOLOR);
+		Mat imageGray = new Mat( image.size(), CvType.CV_8UC1 );
+		Imgproc.cvtColor( image, imageGray, Imgproc.COLOR_RGB2GRAY );
+		image.release();
+		return imageGray;
+	}
 
 }
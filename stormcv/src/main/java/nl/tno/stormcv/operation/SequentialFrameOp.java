@@ -18,7 +18,8 @@ import nl.tno.stormcv.model.serializer.*;
  *  feature extractors in parallel (i.e. in multiple bolts). Using a large number of MultiFeaturesExtractionOperation in parallel 
  *  is preferred over a large number separate FeatureExtractors in the topology.
  *  By default this operation emits all the features calculated separately. This can be changed using the outputFrame and retainImage
- *  setters. 
+ *  setters. A gate ({@link IGateOperation}) like the {@link MotionGateOp} can be used as the first operation in which case frames 
+ *  it does not let pass (i.e. frames without motion) are not processed by the other operations and do not result in any output.
  *  
  * @author Corne Versloot
  *
@@ -101,7 +102,11 @@ public class SequentialFrameOp implements ISingleInputOperation<CVParticle>{
 		for(ISingleInputOperation extractor : extractors){
 			List<CVParticle> output = extractor.execute(frame);
 			
-			if(output.size() == 0) continue;
+			if(output.size() == 0){
+				// a gate returns nothing for frames that should not be processed any further
+				if(extractor instanceof IGateOperation) return result;
+				continue;
+			}
 			
 			if(output.get(0) instanceof Feature){
 				for(CVParticle s : output) frame.getFeatures().add((Feature)s);
@@ -2,8 +2,6 @@ package nl.tno.stormcv.operation;
 
 import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
-import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
@@ -17,6 +15,7 @@ import com.xuggle.mediatool.IMediaReader;
 import com.xuggle.mediatool.MediaListenerAdapter;
 import com.xuggle.mediatool.ToolFactory;
 import com.xuggle.mediatool.event.IVideoPictureEvent;
+import com.xuggle.xuggler.IContainer;
 
 import backtype.storm.task.TopologyContext;
 import nl.tno.stormcv.StormCVConfig;
@@ -28,6 +27,7 @@ import nl.tno.stormcv.model.serializer.CVParticleSerializer;
 import nl.tno.stormcv.model.serializer.FrameSerializer;
 import nl.tno.stormcv.model.serializer.GroupOfFramesSerializer;
 import nl.tno.stormcv.util.ImageUtils;
+import nl.tno.stormcv.util.MemoryIOHandler;
 
 /**
  * Converts received {@link VideoChunk} objects back to {@link Frame}'s (optionally wrapped in {@link GroupOfFrames}).
@@ -96,18 +96,17 @@ public class VideoToFramesOp extends MediaListenerAdapter implements ISingleInpu
 		seqNum = video.getSequenceNr();
 		streamId = video.getStreamId();
 		
-		File tmpVideo = File.createTempFile("videochunk_", "."+video.getContainer());
-		FileOutputStream fos = new FileOutputStream(tmpVideo);
-		fos.write(video.getVideo());
-		fos.flush();
-		fos.close();
-		IMediaReader reader = ToolFactory.makeReader(tmpVideo.getAbsolutePath());
+		// the chunk is decoded from memory instead of writing it to a tmp file first
+		IContainer container = IContainer.make();
+		if(container.open(new MemoryIOHandler(video.getVideo()), IContainer.Type.READ, null) < 0){
+			throw new IOException("Unable to open video chunk "+video.getSequenceNr()+" of stream "+streamId);
+		}
+		IMediaReader reader = ToolFactory.makeReader(container);
 		
 		reader.setBufferedImageTypeToGenerate(BufferedImage.TYPE_3BYTE_BGR);
 		reader.addListener(this);
 		while (reader.readPacket() == null);
 		reader.close();
-		if(!tmpVideo.delete()) tmpVideo.deleteOnExit();
 		
 		if(groupOfFrames){
 			result.add(new GroupOfFrames(video.getStreamId(), video.getSequenceNr(), frames));
@@ -1,12 +1,16 @@
 package nl.tno.stormcv.spout;
 
+import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 import nl.tno.stormcv.StormCVConfig;
 import nl.tno.stormcv.fetcher.IFetcher;
+import nl.tno.stormcv.fetcher.IReplayFetcher;
 import nl.tno.stormcv.model.CVParticle;
+import nl.tno.stormcv.util.ReplayJournal;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -14,6 +18,7 @@ import org.slf4j.LoggerFactory;
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
 
+import backtype.storm.serialization.SerializationFactory;
 import backtype.storm.spout.SpoutOutputCollector;
 import backtype.storm.task.TopologyContext;
 import backtype.storm.topology.IRichSpout;
@@ -23,6 +28,9 @@ import backtype.storm.tuple.Values;
 /**
  * Basic spout implementation that includes fault tolerance (if activated). It should be noted that running the spout in fault 
  * tolerant mode will use more memory because emitted tuples are cashed for a limited amount of time (which is configurable).
+ * If {@link StormCVConfig}.STORMCV_SPOUT_JOURNAL_DIR is set emitted tuples are written to a {@link ReplayJournal} on local disk 
+ * instead which keeps them available until they are acked without using heap space. Fetchers implementing {@link IReplayFetcher} 
+ * with replay enabled regenerate failed particles themselves in which case emitted tuples are not cached at all.
  * 
  * THe actual reading of data is done by {@link IFetcher} implementations creating {@link CVParticle} objects which are serialized
  * and emitted by this spout.
@@ -35,9 +43,11 @@ public class CVParticleSpout implements IRichSpout{
 	
 	private Logger logger = LoggerFactory.getLogger(CVParticleSpout.class);
 	private Cache<Object, Object> tupleCache; // a cache holding emitted tuples so they can be replayed on failure
+	private ReplayJournal journal; // used instead of the cache if a journal directory has been configured
 	protected SpoutOutputCollector collector;
 	private boolean faultTolerant = false;
 	private IFetcher<? extends CVParticle> fetcher;
+	private IReplayFetcher<? extends CVParticle> replayFetcher; // set if the fetcher handles failures itself
 	
 	public CVParticleSpout(IFetcher<? extends CVParticle> fetcher){
 		this.fetcher = fetcher;
@@ -62,6 +72,9 @@ public class CVParticleSpout implements IRichSpout{
 	 * <li>stormcv.faulttolerant --> boolean: indicates if the spout must operate in fault tolerant mode (i.e. replay tuples after failure)</li>
 	 * <li>stormcv.tuplecache.timeout --> long: timeout (seconds) for tuples in the cache </li>
 	 * <li>stormcv.tuplecache.maxsize --> int: maximum number of tuples in the cache (used to avoid memory overload)</li>
+	 * <li>stormcv.spout.journal.dir --> String: local directory used to journal tuples instead of caching them</li>
+	 * <li>stormcv.spout.journal.segmentmb --> int: size of the journal segment files in MB</li>
+	 * <li>stormcv.spout.journal.maxentries --> int: maximum number of tuples in the journal</li>
 	 * </ul>
 	 */
 	@SuppressWarnings("rawtypes")
@@ -71,7 +84,17 @@ public class CVParticleSpout implements IRichSpout{
 		if(conf.containsKey(StormCVConfig.STORMCV_SPOUT_FAULTTOLERANT)){
 			faultTolerant = (Boolean) conf.get(StormCVConfig.STORMCV_SPOUT_FAULTTOLERANT);
 		}
-		if(faultTolerant){
+		if(faultTolerant && conf.get(StormCVConfig.STORMCV_SPOUT_JOURNAL_DIR) != null){
+			int segmentMB = conf.get(StormCVConfig.STORMCV_SPOUT_JOURNAL_SEGMENT_MB) == null ? 64 : ((Number)conf.get(StormCVConfig.STORMCV_SPOUT_JOURNAL_SEGMENT_MB)).intValue();
+			int maxEntries = conf.get(StormCVConfig.STORMCV_SPOUT_JOURNAL_MAX_ENTRIES) == null ? 100000 : ((Number)conf.get(StormCVConfig.STORMCV_SPOUT_JOURNAL_MAX_ENTRIES)).intValue();
+			File dir = new File((String)conf.get(StormCVConfig.STORMCV_SPOUT_JOURNAL_DIR), context.getThisComponentId()+"_"+context.getThisTaskId());
+			try {
+				journal = new ReplayJournal(dir, segmentMB * 1024 * 1024, maxEntries, SerializationFactory.getKryo(conf));
+			} catch (IOException e) {
+				logger.warn("Unable to create replay journal in "+dir+", using in memory cache instead", e);
+			}
+		}
+		if(faultTolerant && journal == null){
 			long timeout = conf.get(StormCVConfig.STORMCV_CACHES_TIMEOUT_SEC) == null ? 30 : (Long)conf.get(StormCVConfig.STORMCV_CACHES_TIMEOUT_SEC);
 			int maxSize = conf.get(StormCVConfig.STORMCV_CACHES_MAX_SIZE) == null ? 500 : ((Long)conf.get(StormCVConfig.STORMCV_CACHES_MAX_SIZE)).intValue();
 			tupleCache = CacheBuilder.newBuilder()
@@ -86,6 +109,18 @@ public class CVParticleSpout implements IRichSpout{
 		} catch (Exception e) {
 			logger.warn("Unable to configure spout due to ", e);
 		}
+		if(fetcher instanceof IReplayFetcher && ((IReplayFetcher<?>)fetcher).replayEnabled()){
+			replayFetcher = (IReplayFetcher<?>)fetcher;
+		}
+	}
+	
+	/**
+	 * Returns the message id used to emit the provided particle
+	 * @param particle
+	 * @return
+	 */
+	public static String getMessageId(CVParticle particle){
+		return particle.getStreamId()+"_"+particle.getSequenceNr();
 	}
 	
 	@Override
@@ -99,8 +134,11 @@ public class CVParticleSpout implements IRichSpout{
 		
 		if(particle != null) try {
 			Values values = fetcher.getSerializer().toTuple(particle);
-			String id = particle.getStreamId()+"_"+particle.getSequenceNr();
-			if(faultTolerant && tupleCache != null) tupleCache.put(id, values);
+			String id = getMessageId(particle);
+			if(replayFetcher == null){ // no need to store the tuple if the fetcher can replay it itself
+				if(faultTolerant && journal != null) journal.append(id, values);
+				else if(faultTolerant && tupleCache != null) tupleCache.put(id, values);
+			}
 			collector.emit(values, id);
 		} catch (IOException e) {
 			logger.warn("Unable to fetch next frame from queue due to: "+e.getMessage());
@@ -112,7 +150,15 @@ public class CVParticleSpout implements IRichSpout{
 		if(faultTolerant && tupleCache != null){
 			tupleCache.cleanUp();
 		}
+		if(journal != null){
+			journal.close();
+		}
 		fetcher.deactivate();
+		if(fetcher instanceof Closeable) try{
+			((Closeable)fetcher).close();
+		}catch(IOException e){
+			logger.warn("Unable to close fetcher: "+e.getMessage());
+		}
 	}
 
 	@Override
@@ -127,7 +173,11 @@ public class CVParticleSpout implements IRichSpout{
 
 	@Override
 	public void ack(Object msgId) {
-		if(faultTolerant && tupleCache != null){
+		if(replayFetcher != null){
+			replayFetcher.ack(msgId);
+		}else if(journal != null){
+			journal.remove(msgId);
+		}else if(faultTolerant && tupleCache != null){
 			tupleCache.invalidate(msgId);
 		}
 	}
@@ -135,7 +185,12 @@ public class CVParticleSpout implements IRichSpout{
 	@Override
 	public void fail(Object msgId) {
 		logger.debug("Fail of: "+msgId);
-		if(faultTolerant && tupleCache != null && tupleCache.getIfPresent(msgId) != null){
+		if(replayFetcher != null){
+			replayFetcher.fail(msgId);
+		}else if(journal != null){
+			Object values = journal.get(msgId);
+			if(values != null) collector.emit((Values)values, msgId);
+		}else if(faultTolerant && tupleCache != null && tupleCache.getIfPresent(msgId) != null){
 			collector.emit((Values)tupleCache.getIfPresent(msgId), msgId);
 		}
 	}
@@ -0,0 +1,188 @@
+package nl.tno.stormcv.util;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import backtype.storm.utils.Utils;
+
+/**
+ * Multiplexes many {@link StreamReader}s over a fixed number of decoder threads instead of running each reader on its own thread.
+ * Readers are kept in a round robin run queue, a decoder thread takes the first reader, lets it read a slice of at most sliceSize
+ * packets using {@link StreamReader#readSlice(int)} and puts it at the back of the queue again. This gives each stream an equal share
+ * of the decoding capacity regardless of the number of streams. A reader is never executed by two threads at the same time.
+ * Readers whose stream failed or whose frame queue is full are parked in a delay queue until their retry time (see 
+ * {@link StreamReader#getRetryAt()}) instead of being put back in the run queue, this way they do not consume any cpu while they wait.
+ * A slice never blocks on a full queue (even with {@link MultiStreamQueue.DropPolicy}.BLOCK) so a slow consumer of one stream does not
+ * hold on to one of the shared decoder threads.
+ *
+ * Note that Xuggler may still block a decoder thread while it waits for data from the network, the number of threads should
+ * therefore be somewhat larger than the number of cores available. The time each stream spends decoding and its decode lag
+ * are available through {@link #getStats()}.
+ *
+ * @author Corne Versloot
+ *
+ */
+public class DecoderScheduler {
+
+	private Logger logger = LoggerFactory.getLogger(getClass());
+	private int threads;
+	private int sliceSize;
+	private ExecutorService pool;
+	private ConcurrentLinkedQueue<StreamReader> runQueue = new ConcurrentLinkedQueue<StreamReader>();
+	private DelayQueue<Backoff> backoffQueue = new DelayQueue<Backoff>();
+	private Set<StreamReader> readers = Collections.newSetFromMap(new ConcurrentHashMap<StreamReader, Boolean>());
+	private Map<StreamReader, AtomicLong> decodeNanos = new ConcurrentHashMap<StreamReader, AtomicLong>();
+	private volatile boolean running = false;
+
+	/**
+	 * Creates a scheduler with the provided number of decoder threads
+	 * @param threads
+	 * @param sliceSize the maximum number of packets read by a reader before the next reader gets its turn
+	 */
+	public DecoderScheduler(int threads, int sliceSize){
+		this.threads = Math.max(1, threads);
+		this.sliceSize = Math.max(1, sliceSize);
+	}
+
+	/**
+	 * Adds the reader to the scheduler, it will be read until it is stopped or the stream ends
+	 * @param reader
+	 */
+	public void add(StreamReader reader){
+		if(readers.add(reader)){
+			decodeNanos.put(reader, new AtomicLong());
+			runQueue.add(reader);
+		}
+	}
+
+	/**
+	 * Stops the reader and removes it from the scheduler
+	 * @param reader
+	 */
+	public void remove(StreamReader reader){
+		reader.stop();
+	}
+
+	/**
+	 * Starts the decoder threads
+	 */
+	public void start(){
+		if(running) return;
+		running = true;
+		pool = Executors.newFixedThreadPool(threads);
+		for(int i=0; i<threads; i++){
+			pool.submit(new Decoder());
+		}
+	}
+
+	/**
+	 * Stops all readers and the decoder threads
+	 */
+	public void stop(){
+		running = false;
+		for(StreamReader reader : readers) reader.stop();
+		if(pool != null) pool.shutdown();
+		pool = null;
+		backoffQueue.clear();
+	}
+
+	/**
+	 * @return the number of readers being scheduled
+	 */
+	public int size(){
+		return readers.size();
+	}
+
+	/**
+	 * Returns the time spent decoding (decodeMs, since the previous call) and the decode lag (lagMs) for each stream
+	 * @return map with statistics per streamId
+	 */
+	public Map<String, Map<String, Long>> getStats(){
+		Map<String, Map<String, Long>> stats = new HashMap<String, Map<String, Long>>();
+		for(StreamReader reader : readers){
+			Map<String, Long> readerStats = new HashMap<String, Long>();
+			AtomicLong nanos = decodeNanos.get(reader);
+			readerStats.put("decodeMs", nanos == null ? 0 : nanos.getAndSet(0) / 1000000);
+			readerStats.put("lagMs", reader.getDecodeLag());
+			stats.put(reader.getStreamId(), readerStats);
+		}
+		return stats;
+	}
+
+	/**
+	 * Takes readers from the run queue and executes a slice for each of them
+	 */
+	private class Decoder implements Runnable {
+
+		@Override
+		public void run() {
+			while(running){
+				// move readers that are due for a retry back into the run queue
+				for(Backoff due = backoffQueue.poll(); due != null; due = backoffQueue.poll()){
+					runQueue.add(due.reader);
+				}
+				StreamReader reader = runQueue.poll();
+				if(reader == null){
+					Utils.sleep(5);
+					continue;
+				}
+				long start = System.nanoTime();
+				boolean active = true;
+				try{
+					active = reader.readSlice(sliceSize);
+				}catch(Exception e){
+					logger.warn("Unable to read slice from "+reader.getStreamId()+" due to: "+e.getMessage(), e);
+				}
+				AtomicLong nanos = decodeNanos.get(reader);
+				if(nanos != null) nanos.addAndGet(System.nanoTime() - start);
+
+				if(active && running){
+					long retryAt = reader.getRetryAt();
+					if(retryAt > System.currentTimeMillis()) backoffQueue.add(new Backoff(reader, retryAt));
+					else runQueue.add(reader);
+				}else{
+					readers.remove(reader);
+					decodeNanos.remove(reader);
+				}
+			}
+		}
+	}
+
+	/**
+	 * A reader waiting in the delay queue until it may read its stream again
+	 */
+	private static class Backoff implements Delayed {
+
+		private StreamReader reader;
+		private long retryAt;
+
+		private Backoff(StreamReader reader, long retryAt){
+			this.reader = reader;
+			this.retryAt = retryAt;
+		}
+
+		@Override
+		public long getDelay(TimeUnit unit) {
+			return unit.convert(retryAt - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+		}
+
+		@Override
+		public int compareTo(Delayed other) {
+			long diff = getDelay(TimeUnit.MILLISECONDS) - other.getDelay(TimeUnit.MILLISECONDS);
+			return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+		}
+	}
+}
@@ -0,0 +1,337 @@
+package nl.tno.stormcv.util;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import nl.tno.stormcv.util.connector.ConnectorHolder;
+import nl.tno.stormcv.util.connector.FileConnector;
+import nl.tno.stormcv.util.connector.LocalFileConnector;
+
+/**
+ * Downloads the files returned by a {@link SourceAssigner} using a number of parallel download threads and puts the local files in
+ * a queue in the order of the assignment. The total size of downloaded files on local disk is limited by a budget in bytes: a download
+ * is only started if its size fits within the budget (the first download is always allowed). Space is reserved in the order of the
+ * assignment so a download can never be overtaken by a later one waiting for space. Downloaded files are kept until they are released
+ * using {@link #release(String)} which deletes the local copy. Files read through the {@link LocalFileConnector} are not copied and
+ * therefore never deleted nor counted in the budget.
+ *
+ * Sources can be {@link VideoSegment}s in which case each segment is downloaded to its own copy of the file.
+ * 
+ * If streaming is enabled remote files that can be decoded from a stream (see {@link VideoDecoder#isStreamable(String)}) are not
+ * downloaded at all, their location is put in the queue directly so the {@link StreamReader} can decode them from the connector.
+ *
+ * @author Corne Versloot
+ *
+ */
+public class FilePrefetcher {
+
+	private static final String FAILED = "";
+	private Logger logger = LoggerFactory.getLogger(FilePrefetcher.class);
+	private SourceAssigner assigner;
+	private BlockingQueue<String> videoList;
+	private ConnectorHolder connectorHolder;
+	private int threads;
+	private long diskBudget;
+	private boolean streaming = false;
+	private volatile boolean running = false;
+	private volatile int generation = 0; // incremented on each start so threads of a previous start stop
+	private int nextSeq = 0; // sequence number of the next download started
+	private int nextReserve = 0; // sequence number of the next download allowed to reserve space
+	private volatile int nextDeliver = 0; // sequence number of the next download put in the video list
+	private boolean exhausted = false; // true if the assigner has no more sources
+	private long used = 0; // bytes reserved by downloaded files
+	private Map<String, Long> copies = new HashMap<String, Long>(); // local copies and the bytes reserved for them
+	private TreeMap<Integer, String> ready = new TreeMap<Integer, String>(); // downloads waiting for their turn to be delivered
+	private TreeMap<Integer, String> pending = new TreeMap<Integer, String>(); // sources taken but not started before a stop
+	private AtomicInteger downloading = new AtomicInteger();
+	private AtomicLong downloadedBytes = new AtomicLong();
+	private AtomicLong downloadNanos = new AtomicLong();
+
+	/**
+	 * Creates a prefetcher
+	 * @param assigner provides the sources to download
+	 * @param videoList the queue the local files are put in
+	 * @param connectorHolder
+	 * @param threads the number of parallel downloads
+	 * @param diskBudget the maximum number of bytes used by downloaded files
+	 */
+	public FilePrefetcher(SourceAssigner assigner, BlockingQueue<String> videoList, ConnectorHolder connectorHolder, int threads, long diskBudget){
+		this.assigner = assigner;
+		this.videoList = videoList;
+		this.connectorHolder = connectorHolder;
+		this.threads = Math.max(1, threads);
+		this.diskBudget = diskBudget;
+	}
+
+	/**
+	 * Enables or disables passing streamable remote files without downloading them (default is false)
+	 * @param streaming
+	 * @return itself
+	 */
+	public FilePrefetcher streaming(boolean streaming){
+		this.streaming = streaming;
+		return this;
+	}
+
+	/**
+	 * Starts the download threads, a stopped prefetcher can be started again in which case it continues where it stopped
+	 */
+	public synchronized void start(){
+		if(running) return;
+		running = true;
+		generation++;
+		for(int i=0; i<threads; i++){
+			new Thread(new Downloader(generation)).start();
+		}
+		new Thread(new Deliverer(generation)).start();
+	}
+
+	/**
+	 * Stops downloading, files already downloaded are kept until they are released
+	 */
+	public synchronized void stop(){
+		running = false;
+		notifyAll();
+	}
+
+	/**
+	 * Releases the provided local file which deletes it if it is a downloaded copy and frees its space in the disk budget
+	 * @param localFile
+	 */
+	public synchronized void release(String localFile){
+		Long size = copies.remove(localFile);
+		if(size == null) return;
+		if(!new File(localFile).delete()){
+			logger.warn("Unable to delete "+localFile);
+		}
+		used -= size;
+		notifyAll();
+	}
+
+	/**
+	 * Returns statistics of the prefetcher:
+	 * <ul>
+	 * <li>downloading: number of downloads in progress</li>
+	 * <li>diskBytes: number of bytes used by downloaded files</li>
+	 * <li>downloadedBytes: number of bytes downloaded since the previous call</li>
+	 * <li>downloadMs: total time spent downloading since the previous call</li>
+	 * </ul>
+	 * @return
+	 */
+	public Map<String, Long> getStats(){
+		Map<String, Long> stats = new HashMap<String, Long>();
+		stats.put("downloading", (long)downloading.get());
+		synchronized(this){
+			stats.put("diskBytes", used);
+		}
+		stats.put("downloadedBytes", downloadedBytes.getAndSet(0));
+		stats.put("downloadMs", downloadNanos.getAndSet(0) / 1000000);
+		return stats;
+	}
+
+	/**
+	 * Checks if threads started for the provided generation should continue, threads of an earlier generation
+	 * (i.e. before the prefetcher was stopped and started again) must end
+	 * @param gen the generation the calling thread was started for
+	 * @return true if the prefetcher is running and the generation is the current one
+	 */
+	private boolean isActive(int gen){
+		return running && gen == generation;
+	}
+
+	/**
+	 * Takes the next source from the assigner
+	 * @param gen
+	 * @return the sequence number of the source and the source itself or null if there is nothing left
+	 */
+	private synchronized Object[] take(int gen){
+		if(!isActive(gen)) return null;
+		if(!pending.isEmpty()){
+			Map.Entry<Integer, String> first = pending.pollFirstEntry();
+			return new Object[]{first.getKey(), first.getValue()};
+		}
+		if(exhausted) return null;
+		String source = assigner.next();
+		if(source == null){
+			exhausted = true;
+			notifyAll();
+			return null;
+		}
+		return new Object[]{nextSeq++, source};
+	}
+
+	/**
+	 * Blocks until the download with the provided sequence number may reserve the provided number of bytes
+	 * @param gen
+	 * @param seq
+	 * @param size
+	 * @return false if the prefetcher was stopped
+	 * @throws InterruptedException
+	 */
+	private synchronized boolean reserve(int gen, int seq, long size) throws InterruptedException{
+		while(isActive(gen) && (seq != nextReserve || (used > 0 && used + size > diskBudget))){
+			wait(100);
+		}
+		if(!isActive(gen)) return false;
+		nextReserve++;
+		used += size;
+		notifyAll();
+		return true;
+	}
+
+	/**
+	 * Registers the downloaded file and corrects the reserved space with its actual size
+	 */
+	private synchronized void downloaded(String localFile, long reserved, long actual){
+		copies.put(localFile, actual);
+		used += actual - reserved;
+	}
+
+	private synchronized void unreserve(long size){
+		used -= size;
+		notifyAll();
+	}
+
+	private synchronized void postpone(int seq, String source){
+		pending.put(seq, source);
+	}
+
+	private void ready(int seq, String entry){
+		synchronized(ready){
+			ready.put(seq, entry);
+			ready.notifyAll();
+		}
+	}
+
+	/**
+	 * Downloads sources until the assigner has no more sources
+	 */
+	private class Downloader implements Runnable{
+
+		private int gen;
+
+		private Downloader(int gen){
+			this.gen = gen;
+		}
+
+		@Override
+		public void run() {
+			Object[] next;
+			while((next = take(gen)) != null){
+				int seq = (Integer)next[0];
+				String source = (String)next[1];
+				VideoSegment segment = VideoSegment.parse(source);
+				String file = segment != null ? segment.getLocation() : source;
+				if(streaming && segment == null && !file.startsWith("file:") && VideoDecoder.isStreamable(file)){
+					// streamed files take their turn without using the disk budget
+					try{
+						if(!reserve(gen, seq, 0)){
+							postpone(seq, source);
+							return;
+						}
+					}catch(InterruptedException e){
+						postpone(seq, source);
+						return;
+					}
+					ready(seq, source);
+					continue;
+				}
+				FileConnector connector = null;
+				boolean copy = false;
+				long size = 0;
+				try{
+					FileConnector shared = connectorHolder.getConnector(file);
+					if(shared == null) throw new Exception("No connector available for "+file);
+					// connectors are not thread safe so each download uses its own copy
+					connector = shared.deepCopy();
+					connector.moveTo(file);
+					copy = !(connector instanceof LocalFileConnector);
+					if(copy) size = Math.max(0, connector.getSize());
+				}catch(Exception e){
+					logger.warn("Unable to prepare download of "+source+" due to: "+e.getMessage(), e);
+					connector = null;
+				}
+				
+				// every download takes its turn, also if it failed, to keep the order
+				try{
+					if(!reserve(gen, seq, size)){
+						postpone(seq, source);
+						return;
+					}
+				}catch(InterruptedException e){
+					postpone(seq, source);
+					return;
+				}
+				
+				String entry = FAILED;
+				if(connector != null) try{
+					downloading.incrementAndGet();
+					long start = System.nanoTime();
+					File localFile = connector.getAsFile();
+					downloadNanos.addAndGet(System.nanoTime() - start);
+					if(copy){
+						// connectors download to a unique temporary file so each segment gets its own copy
+						downloadedBytes.addAndGet(localFile.length());
+						downloaded(localFile.getAbsolutePath(), size, localFile.length());
+					}
+					entry = segment != null ? segment.withLocalFile(localFile.getAbsolutePath()) : localFile.getAbsolutePath();
+				}catch(Exception e){
+					logger.warn("Unable to download "+source+" due to: "+e.getMessage(), e);
+					unreserve(size);
+				}finally{
+					downloading.decrementAndGet();
+				}
+				ready(seq, entry);
+			}
+		}
+	}
+	
+	/**
+	 * Puts downloaded files in the video list in the order of the assignment
+	 */
+	private class Deliverer implements Runnable{
+
+		private int gen;
+
+		private Deliverer(int gen){
+			this.gen = gen;
+		}
+
+		@Override
+		public void run() {
+			while(isActive(gen)) try{
+				synchronized(FilePrefetcher.this){
+					if(exhausted && pending.isEmpty() && nextDeliver >= nextSeq) return;
+				}
+				String entry;
+				synchronized(ready){
+					entry = ready.remove(nextDeliver);
+					if(entry == null){
+						ready.wait(100);
+						continue;
+					}
+				}
+				nextDeliver++;
+				if(!FAILED.equals(entry)) while(!videoList.offer(entry, 100, TimeUnit.MILLISECONDS)){
+					if(!isActive(gen)){
+						// deliver it after a restart
+						ready(nextDeliver - 1, entry);
+						nextDeliver--;
+						return;
+					}
+				}
+			}catch(InterruptedException e){
+				return;
+			}
+		}
+	}
+}
@@ -0,0 +1,28 @@
+package nl.tno.stormcv.util;
+
+/**
+ * A registry shared by all tasks of a component used to make sure a source (file, image, ...) is processed by a single
+ * task only. A task must claim a source before processing it, which makes it possible for idle tasks to take over sources
+ * assigned to other tasks that have not been started yet (see {@link SourceAssigner}).
+ *
+ * @author Corne Versloot
+ *
+ */
+public interface IClaimRegistry {
+
+	/**
+	 * Tries to claim the provided source for this task. A source already claimed by this task (for example before
+	 * the task was restarted) can be claimed again.
+	 * @param source
+	 * @return true if this task may process the source, false if it has been claimed by another task
+	 * @throws Exception if the registry cannot be accessed
+	 */
+	public boolean claim(String source) throws Exception;
+
+	/**
+	 * Releases the claims made by this task and the resources used by the registry. The registry removes its namespace
+	 * once it no longer contains any claims.
+	 */
+	public void close();
+
+}
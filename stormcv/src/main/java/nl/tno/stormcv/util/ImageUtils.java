@@ -3,6 +3,7 @@ package nl.tno.stormcv.util;
 import java.awt.color.ColorSpace;
 import java.awt.image.BufferedImage;
 import java.awt.image.ColorConvertOp;
+import java.awt.image.DataBufferByte;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
@@ -57,6 +58,124 @@ public class ImageUtils {
         return grayOp.filter(src,null);
     }
 	
+	/**
+	 * Returns the pixels of the provided image as a BGR byte array without copying them
+	 * @param image
+	 * @return the backing array of the image or null if the image is not a packed TYPE_3BYTE_BGR image
+	 */
+	public static byte[] getBGRBytes(BufferedImage image){
+		if(image.getType() != BufferedImage.TYPE_3BYTE_BGR) return null;
+		if(image.getRaster().getParent() != null) return null; // sub images do not start at the beginning of the buffer
+		if(!(image.getRaster().getDataBuffer() instanceof DataBufferByte)) return null;
+		byte[] data = ((DataBufferByte)image.getRaster().getDataBuffer()).getData();
+		return data.length == image.getWidth() * image.getHeight() * 3 ? data : null;
+	}
+	
+	/**
+	 * Converts BGR pixels into planar YUV 4:2:0 (BT.601, Y followed by U and V) using integer arithmetic. 
+	 * The chroma values are the average of each 2x2 block. Width and height must be even.
+	 * @param bgr the BGR pixels
+	 * @param width
+	 * @param height
+	 * @param yuv buffer to write the result to, it is created if null or too small
+	 * @return the buffer holding the result (width * height * 3 / 2 bytes)
+	 */
+	public static byte[] bgrToYUV420P(byte[] bgr, int width, int height, byte[] yuv){
+		int ySize = width * height;
+		int cSize = ySize / 4;
+		if(yuv == null || yuv.length < ySize + 2 * cSize) yuv = new byte[ySize + 2 * cSize];
+		int uOffset = ySize;
+		int vOffset = ySize + cSize;
+		int cWidth = width / 2;
+		for(int y=0; y<height; y+=2){
+			for(int x=0; x<width; x+=2){
+				int sumB = 0, sumG = 0, sumR = 0;
+				for(int dy=0; dy<2; dy++){
+					int p = (y + dy) * width + x;
+					for(int dx=0; dx<2; dx++, p++){
+						int b = bgr[p * 3] & 0xff;
+						int g = bgr[p * 3 + 1] & 0xff;
+						int r = bgr[p * 3 + 2] & 0xff;
+						yuv[p] = (byte)(((66 * r + 129 * g + 25 * b + 128) >> 8) + 16);
+						sumB += b;
+						sumG += g;
+						sumR += r;
+					}
+				}
+				int b = sumB >> 2, g = sumG >> 2, r = sumR >> 2;
+				int c = (y / 2) * cWidth + x / 2;
+				yuv[uOffset + c] = (byte)(((-38 * r - 74 * g + 112 * b + 128) >> 8) + 128);
+				yuv[vOffset + c] = (byte)(((112 * r - 94 * g - 18 * b + 128) >> 8) + 128);
+			}
+		}
+		return yuv;
+	}
+	
+	/**
+	 * Calculates the difference hash (dHash) of the provided image. The image is reduced to 9x8 gray values and each bit of 
+	 * the hash indicates if a gray value is lower than its right neighbor. Similar images have hashes with a small Hamming 
+	 * distance (see Long.bitCount(hash1 ^ hash2)).
+	 * @param image
+	 * @return 64 bit hash of the image
+	 */
+	public static long dHash(BufferedImage image){
+		int[] gray = downscaleGray(image, 9, 8);
+		long hash = 0;
+		for(int by=0; by<8; by++){
+			for(int bx=0; bx<8; bx++){
+				hash <<= 1;
+				if(gray[by * 9 + bx] < gray[by * 9 + bx + 1]) hash |= 1;
+			}
+		}
+		return hash;
+	}
+	
+	/**
+	 * Reduces the image to the provided size in gray values. Each value is the average luminance of a sample of at most 
+	 * 8x8 pixels of the corresponding block in the image which is much cheaper than scaling the complete image.
+	 * @param image
+	 * @param width the width of the result
+	 * @param height the height of the result
+	 * @return the gray values (0-255) row by row
+	 */
+	public static int[] downscaleGray(BufferedImage image, int width, int height){
+		int imgWidth = image.getWidth();
+		int imgHeight = image.getHeight();
+		byte[] bgr = getBGRBytes(image);
+		int[] gray = new int[width * height];
+		for(int by=0; by<height; by++){
+			int y0 = by * imgHeight / height;
+			int y1 = Math.max(y0 + 1, (by + 1) * imgHeight / height);
+			int stepY = Math.max(1, (y1 - y0) / 8);
+			for(int bx=0; bx<width; bx++){
+				int x0 = bx * imgWidth / width;
+				int x1 = Math.max(x0 + 1, (bx + 1) * imgWidth / width);
+				int stepX = Math.max(1, (x1 - x0) / 8);
+				int sum = 0, n = 0;
+				for(int y=y0; y<y1 && y<imgHeight; y+=stepY){
+					for(int x=x0; x<x1 && x<imgWidth; x+=stepX){
+						int r, g, b;
+						if(bgr != null){
+							int p = (y * imgWidth + x) * 3;
+							b = bgr[p] & 0xff;
+							g = bgr[p + 1] & 0xff;
+							r = bgr[p + 2] & 0xff;
+						}else{
+							int rgb = image.getRGB(x, y);
+							r = (rgb >> 16) & 0xff;
+							g = (rgb >> 8) & 0xff;
+							b = rgb & 0xff;
+						}
+						sum += (299 * r + 587 * g + 114 * b) / 1000;
+						n++;
+					}
+				}
+				gray[by * width + bx] = n == 0 ? 0 : sum / n;
+			}
+		}
+		return gray;
+	}
+	
 	/**
 	 * Creates a Mat object for the image in the provided frame
 	 * @param frame
@@ -0,0 +1,151 @@
+package nl.tno.stormcv.util;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Executes tasks on a shared pool of threads while tasks submitted for the same lane (i.e. a stream) are executed one by one in the
+ * order they were submitted. Different lanes run in parallel on different threads. A lane executes a single task each time it is scheduled
+ * on the pool which makes sure busy lanes do not starve the others.
+ *
+ * Each task has a weight (i.e. the number of frames it contains) and the total weight of the tasks queued in a lane is bounded by the
+ * capacity of the executor. A task is always accepted by an empty lane, even if its weight exceeds the capacity.
+ *
+ * @author Corne Versloot
+ *
+ */
+public class LaneExecutor {
+
+	private Logger logger = LoggerFactory.getLogger(LaneExecutor.class);
+	private ExecutorService pool;
+	private int capacity;
+	private Map<Object, Lane> lanes = new HashMap<Object, Lane>();
+	private int queued = 0;
+
+	/**
+	 * Creates an executor
+	 * @param threads the number of threads shared by all lanes
+	 * @param capacity the maximum total weight of the tasks queued per lane
+	 */
+	public LaneExecutor(int threads, int capacity){
+		this.pool = Executors.newFixedThreadPool(Math.max(1, threads));
+		this.capacity = Math.max(1, capacity);
+	}
+
+	/**
+	 * Submits a task to the provided lane, waits at most the provided time for the lane to have room for it
+	 * @param key the lane to execute the task in
+	 * @param weight the weight of the task
+	 * @param task
+	 * @param timeoutMs
+	 * @return true if the task was accepted, false if there was no room within the timeout
+	 * @throws InterruptedException
+	 */
+	public synchronized boolean offer(Object key, int weight, Runnable task, long timeoutMs) throws InterruptedException{
+		long deadline = System.currentTimeMillis() + timeoutMs;
+		Lane lane = lanes.get(key);
+		while(lane != null && lane.weight > 0 && lane.weight + weight > capacity){
+			long wait = deadline - System.currentTimeMillis();
+			if(wait <= 0) return false;
+			wait(wait);
+			lane = lanes.get(key);
+		}
+		if(lane == null){
+			lane = new Lane(key);
+			lanes.put(key, lane);
+		}
+		lane.tasks.add(new Task(task, weight));
+		lane.weight += weight;
+		queued++;
+		if(!lane.scheduled){
+			lane.scheduled = true;
+			pool.execute(lane);
+		}
+		return true;
+	}
+
+	/**
+	 * @return the number of tasks queued or running in all lanes
+	 */
+	public synchronized int size(){
+		return queued;
+	}
+
+	/**
+	 * @return the number of lanes with queued or running tasks
+	 */
+	public synchronized int lanes(){
+		return lanes.size();
+	}
+
+	/**
+	 * Stops the executor, queued tasks are not executed
+	 */
+	public synchronized void shutdown(){
+		pool.shutdownNow();
+		lanes.clear();
+		notifyAll();
+	}
+
+	private synchronized Task next(Lane lane){
+		return lane.tasks.peek();
+	}
+
+	private synchronized void done(Lane lane, Task task){
+		lane.tasks.poll();
+		lane.weight -= task.weight;
+		queued--;
+		if(lane.tasks.isEmpty()){
+			lane.scheduled = false;
+			lanes.remove(lane.key);
+		}else if(!pool.isShutdown()){
+			// give other lanes a turn before executing the next task of this lane
+			pool.execute(lane);
+		}
+		notifyAll();
+	}
+
+	private static class Task {
+		private Runnable runnable;
+		private int weight;
+
+		private Task(Runnable runnable, int weight){
+			this.runnable = runnable;
+			this.weight = weight;
+		}
+	}
+
+	/**
+	 * The tasks of a single lane, at most one of them is running at any time
+	 */
+	private class Lane implements Runnable{
+
+		private Object key;
+		private LinkedList<Task> tasks = new LinkedList<Task>();
+		private int weight = 0;
+		private boolean scheduled = false;
+
+		private Lane(Object key){
+			this.key = key;
+		}
+
+		@Override
+		public void run() {
+			Task task = next(this);
+			if(task == null) return;
+			try{
+				task.runnable.run();
+			}catch(Exception e){
+				logger.warn("Task in lane "+key+" failed: "+e.getMessage(), e);
+			}finally{
+				done(this, task);
+			}
+		}
+	}
+}
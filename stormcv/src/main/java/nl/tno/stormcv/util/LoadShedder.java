@@ -0,0 +1,214 @@
+package nl.tno.stormcv.util;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Policy object used to deliberately drop frames when (part of) the topology can no longer keep up. The shedder measures the backlog
+ * in front of the component it is used in by comparing the timestamp of each frame with the wall clock time it arrives. For each stream
+ * the smallest observed difference is used as baseline, any additional delay is considered lag caused by queues filling up. The lag of
+ * all streams is smoothed into a single load estimate which is translated into a shedding level: level = lag / maxLag.
+ *
+ * Each stream has a priority (default 0, higher means more important) which determines what happens on a given level:
+ * <ul>
+ * <li>level &lt;= priority: all frames of the stream are accepted</li>
+ * <li>level &gt; priority: only one out of 2^(level-priority) frames is accepted (i.e. every other frame on the first level)</li>
+ * </ul>
+ * Two rules overrule this decision and always accept a frame: frames with metadata matching one of the protected key-value pairs and
+ * frames that are required to keep a stream at its configured minimum frames per second. Priorities and minimum fps values can be
+ * specified for a streamId or for the 'uri' metadata value frames carry (typically the url of the stream).
+ *
+ * This class is not thread safe and is used by {@link nl.tno.stormcv.operation.LoadSheddingOp} and
+ * {@link nl.tno.stormcv.grouping.LoadSheddingGrouping}.
+ *
+ * @author Corne Versloot
+ *
+ */
+public class LoadShedder implements Serializable{
+
+	private static final long serialVersionUID = -3163412795562624367L;
+	private static final int MAX_LEVEL = 6;
+
+	private long maxLag = 1000;
+	private float smoothing = 0.1f;
+	private int defaultPriority = 0;
+	private float defaultMinFps = 0;
+	private HashMap<String, Integer> priorities = new HashMap<String, Integer>();
+	private HashMap<String, Float> minFps = new HashMap<String, Float>();
+	private HashMap<String, Object[]> protect = new HashMap<String, Object[]>();
+
+	private transient HashMap<String, StreamState> streams;
+	private transient double load;
+
+	/**
+	 * Sets the lag in milliseconds which corresponds with one shedding level (default = 1000 ms). With the default
+	 * value streams with priority 0 will start to loose frames as soon as the topology runs one second behind.
+	 * @param ms
+	 * @return itself
+	 */
+	public LoadShedder maxLag(long ms){
+		this.maxLag = Math.max(1, ms);
+		return this;
+	}
+
+	/**
+	 * Sets the weight of a new lag measurement in the overall load estimate (0 &lt; factor &lt;= 1, default = 0.1)
+	 * @param factor
+	 * @return itself
+	 */
+	public LoadShedder smoothing(float factor){
+		this.smoothing = Math.max(0.001f, Math.min(1f, factor));
+		return this;
+	}
+
+	/**
+	 * Sets the priority for the stream with the provided streamId or uri, streams are shed from low to high priority
+	 * @param stream streamId or uri of the stream
+	 * @param priority
+	 * @return itself
+	 */
+	public LoadShedder priority(String stream, int priority){
+		this.priorities.put(stream, priority);
+		return this;
+	}
+
+	/**
+	 * Sets the priority for all streams without an explicit priority (default = 0)
+	 * @param priority
+	 * @return itself
+	 */
+	public LoadShedder defaultPriority(int priority){
+		this.defaultPriority = priority;
+		return this;
+	}
+
+	/**
+	 * Sets the minimum number of frames per second which must be accepted for the provided stream regardless of the load.
+	 * @param stream streamId or uri of the stream
+	 * @param fps
+	 * @return itself
+	 */
+	public LoadShedder minFps(String stream, float fps){
+		this.minFps.put(stream, fps);
+		return this;
+	}
+
+	/**
+	 * Sets the minimum number of frames per second for all streams without an explicit value (default = 0)
+	 * @param fps
+	 * @return itself
+	 */
+	public LoadShedder defaultMinFps(float fps){
+		this.defaultMinFps = fps;
+		return this;
+	}
+
+	/**
+	 * Specifies a metadata key and values which protect frames from being shed. A frame is never dropped if its metadata
+	 * contains the key with one of the provided values.
+	 * @param key
+	 * @param values
+	 * @return itself
+	 */
+	public LoadShedder protect(String key, Object... values){
+		this.protect.put(key, values);
+		return this;
+	}
+
+	/**
+	 * Decides if the frame with the provided characteristics must be accepted or shed.
+	 * @param streamId the streamId of the frame
+	 * @param timestamp the timestamp of the frame within the stream (ms)
+	 * @param metadata the metadata of the frame (may be null)
+	 * @return true if the frame must be processed, false if it can be dropped
+	 */
+	public boolean accept(String streamId, long timestamp, Map<String, Object> metadata){
+		if(streams == null) streams = new HashMap<String, StreamState>();
+		long now = System.currentTimeMillis();
+		StreamState state = streams.get(streamId);
+		if(state == null){
+			state = new StreamState(streamId, metadata);
+			streams.put(streamId, state);
+		}
+
+		// a timestamp going backwards indicates a restarted stream, the baseline is no longer valid
+		long offset = now - timestamp;
+		if(timestamp < state.lastTimestamp || offset < state.baseline) state.baseline = offset;
+		state.lastTimestamp = timestamp;
+		load += smoothing * ((offset - state.baseline) - load);
+
+		if(isProtected(metadata) || needed(state, now)){
+			state.accepted(now);
+			return true;
+		}
+
+		int shed = getLevel() - state.priority;
+		if(shed <= 0 || state.counter++ % (1 << Math.min(shed, MAX_LEVEL)) == 0){
+			state.accepted(now);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return the current shedding level (0 means no shedding at all)
+	 */
+	public int getLevel(){
+		return (int)Math.max(0, load / maxLag);
+	}
+
+	/**
+	 * @return the current (smoothed) lag in ms
+	 */
+	public long getLag(){
+		return (long)load;
+	}
+
+	private boolean isProtected(Map<String, Object> metadata){
+		if(metadata == null || protect.size() == 0) return false;
+		for(String key : protect.keySet()){
+			Object value = metadata.get(key);
+			if(value == null) continue;
+			for(Object accept : protect.get(key)){
+				if(accept.equals(value)) return true;
+			}
+		}
+		return false;
+	}
+
+	private boolean needed(StreamState state, long now){
+		if(state.minFps <= 0) return false;
+		return now - state.lastAccepted >= 1000f / state.minFps;
+	}
+
+	private <T> T lookup(Map<String, T> values, String streamId, Map<String, Object> metadata, T defaultValue){
+		if(values.containsKey(streamId)) return values.get(streamId);
+		if(metadata != null && metadata.get("uri") != null && values.containsKey(metadata.get("uri").toString())){
+			return values.get(metadata.get("uri").toString());
+		}
+		return defaultValue;
+	}
+
+	/**
+	 * Shedding state maintained for each stream
+	 */
+	private class StreamState {
+
+		private long baseline = Long.MAX_VALUE;
+		private long lastTimestamp = Long.MIN_VALUE;
+		private long lastAccepted = 0;
+		private long counter = 0;
+		private int priority;
+		private float minFps;
+
+		private StreamState(String streamId, Map<String, Object> metadata){
+			this.priority = lookup(priorities, streamId, metadata, defaultPriority);
+			this.minFps = lookup(LoadShedder.this.minFps, streamId, metadata, defaultMinFps);
+		}
+
+		private void accepted(long now){
+			lastAccepted = now;
+		}
+	}
+}
@@ -0,0 +1,75 @@
+package nl.tno.stormcv.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+/**
+ * {@link IClaimRegistry} implementation using files in a local directory to register claims. A claim is made by
+ * atomically creating a file named after the hash of the source which contains the id of the claiming task. This
+ * registry can only be used if all tasks run on the same machine (i.e. in local mode). Claim files and the directories
+ * containing them are deleted when the JVM exits (the local equivalent of ephemeral ZooKeeper nodes) and {@link #close()}
+ * removes the claims of this task and the directory once it is empty.
+ *
+ * @author Corne Versloot
+ *
+ */
+public class LocalClaimRegistry implements IClaimRegistry {
+
+	private File dir;
+	private String taskId;
+	private List<File> claimed = new ArrayList<File>();
+
+	/**
+	 * Creates a registry using the provided directory which must be the same for all tasks of the component
+	 * @param dir
+	 * @param taskId the id of the task using this registry
+	 * @throws IOException if the directory cannot be created
+	 */
+	public LocalClaimRegistry(File dir, int taskId) throws IOException{
+		this.dir = dir;
+		this.taskId = ""+taskId;
+		if(!dir.exists() && !dir.mkdirs() && !dir.exists()){
+			throw new IOException("Unable to create claim directory "+dir);
+		}
+		// files registered later are deleted first so the directories are empty by the time they are deleted
+		if(dir.getParentFile() != null) dir.getParentFile().deleteOnExit();
+		dir.deleteOnExit();
+	}
+
+	@Override
+	public boolean claim(String source) throws Exception {
+		File claim = new File(dir, Hashing.sha1().hashString(source, Charsets.UTF_8).toString());
+		if(claim.createNewFile()){
+			claim.deleteOnExit();
+			Files.write(taskId, claim, Charsets.UTF_8);
+			synchronized(claimed){
+				claimed.add(claim);
+			}
+			return true;
+		}
+		// the owner may not have written its id yet
+		String owner = Files.toString(claim, Charsets.UTF_8);
+		for(int i=0; i<10 && owner.isEmpty(); i++){
+			Thread.sleep(10);
+			owner = Files.toString(claim, Charsets.UTF_8);
+		}
+		return taskId.equals(owner);
+	}
+
+	@Override
+	public void close() {
+		synchronized(claimed){
+			for(File claim : claimed) claim.delete();
+			claimed.clear();
+		}
+		// only succeeds if no other task has claims left
+		if(dir.delete() && dir.getParentFile() != null) dir.getParentFile().delete();
+	}
+
+}
@@ -0,0 +1,154 @@
+package nl.tno.stormcv.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import nl.tno.stormcv.model.Descriptor;
+import nl.tno.stormcv.model.Feature;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+/**
+ * A utility class to copy the contents of OpenCV Mat objects from and to Java arrays, {@link Descriptor} values and
+ * dense {@link Feature} descriptors. Each function moves the complete matrix in a single call to the native library instead
+ * of calling get/put for each element which is very expensive for large matrices (i.e. SIFT descriptors of a frame).
+ * All flat arrays are in row major order with the channels of each element next to each other.
+ *
+ * @author Corne Versloot
+ */
+public class MatUtils {
+
+	/**
+	 * Copies all elements of the mat into a float array, the mat is converted to floats if it has another depth
+	 * @param mat
+	 * @return array of length rows * cols * channels
+	 */
+	public static float[] toFloats(Mat mat){
+		Mat source = mat;
+		if(mat.depth() != CvType.CV_32F){
+			source = new Mat();
+			mat.convertTo(source, CvType.CV_32F);
+		}
+		float[] values = new float[(int)source.total() * source.channels()];
+		if(values.length > 0) continuous(source).get(0, 0, values);
+		return values;
+	}
+
+	/**
+	 * Copies all elements of the mat into a byte array, the mat must have depth CV_8U or CV_8S
+	 * @param mat
+	 * @return array of length rows * cols * channels
+	 */
+	public static byte[] toBytes(Mat mat){
+		byte[] values = new byte[(int)mat.total() * mat.channels()];
+		if(values.length > 0) continuous(mat).get(0, 0, values);
+		return values;
+	}
+
+	/**
+	 * Copies all elements of the mat into an int array, the mat is converted to integers if it has another depth.
+	 * Can be used to read contours (MatOfPoint) as {x1,y1,x2,y2,...}
+	 * @param mat
+	 * @return array of length rows * cols * channels
+	 */
+	public static int[] toInts(Mat mat){
+		Mat source = mat;
+		if(mat.depth() != CvType.CV_32S){
+			source = new Mat();
+			mat.convertTo(source, CvType.CV_32S);
+		}
+		int[] values = new int[(int)source.total() * source.channels()];
+		if(values.length > 0) continuous(source).get(0, 0, values);
+		return values;
+	}
+
+	/**
+	 * Returns the rows of the provided mat as float arrays, can be used to create {@link Descriptor}s from
+	 * the output of a DescriptorExtractor
+	 * @param mat
+	 * @return list with one array of length cols * channels for each row
+	 */
+	public static List<float[]> toRows(Mat mat){
+		float[] values = toFloats(mat);
+		int rowLength = mat.cols() * mat.channels();
+		List<float[]> rows = new ArrayList<float[]>(mat.rows());
+		for(int r=0; r<mat.rows(); r++){
+			float[] row = new float[rowLength];
+			System.arraycopy(values, r * rowLength, row, 0, rowLength);
+			rows.add(row);
+		}
+		return rows;
+	}
+
+	/**
+	 * Creates a single channel CV_32F mat with a row for each descriptor holding its values. All descriptors
+	 * must have the same number of values.
+	 * @param descriptors
+	 * @return
+	 */
+	public static Mat toMat(List<Descriptor> descriptors){
+		if(descriptors.size() == 0) return new Mat();
+		int cols = descriptors.get(0).getValues().length;
+		float[] values = new float[descriptors.size() * cols];
+		for(int r=0; r<descriptors.size(); r++){
+			System.arraycopy(descriptors.get(r).getValues(), 0, values, r * cols, cols);
+		}
+		Mat mat = new Mat(descriptors.size(), cols, CvType.CV_32F);
+		mat.put(0, 0, values);
+		return mat;
+	}
+
+	/**
+	 * Converts the mat into a dense descriptor as used by {@link Feature} which is indexed as [x][y][channel]
+	 * @param mat
+	 * @return
+	 */
+	public static float[][][] toDense(Mat mat){
+		int cols = mat.cols();
+		int rows = mat.rows();
+		int channels = mat.channels();
+		float[] values = toFloats(mat);
+		float[][][] dense = new float[cols][rows][channels];
+		int i = 0;
+		for(int y=0; y<rows; y++){
+			for(int x=0; x<cols; x++){
+				float[] element = dense[x][y];
+				for(int c=0; c<channels; c++){
+					element[c] = values[i++];
+				}
+			}
+		}
+		return dense;
+	}
+
+	/**
+	 * Converts a dense descriptor indexed as [x][y][channel] into a CV_32F mat with the same number of channels
+	 * @param dense
+	 * @return
+	 */
+	public static Mat fromDense(float[][][] dense){
+		if(dense.length == 0 || dense[0].length == 0) return new Mat();
+		int cols = dense.length;
+		int rows = dense[0].length;
+		int channels = dense[0][0].length;
+		float[] values = new float[rows * cols * channels];
+		int i = 0;
+		for(int y=0; y<rows; y++){
+			for(int x=0; x<cols; x++){
+				System.arraycopy(dense[x][y], 0, values, i, channels);
+				i += channels;
+			}
+		}
+		Mat mat = new Mat(rows, cols, CvType.CV_32FC(channels));
+		mat.put(0, 0, values);
+		return mat;
+	}
+
+	/**
+	 * Makes sure all data of the mat can be read in a single call
+	 */
+	private static Mat continuous(Mat mat){
+		return mat.isContinuous() ? mat : mat.clone();
+	}
+}
@@ -0,0 +1,119 @@
+package nl.tno.stormcv.util;
+
+import java.util.Arrays;
+
+import com.xuggle.xuggler.io.IURLProtocolHandler;
+
+/**
+ * Xuggler protocol handler backed by a byte array which makes it possible to read and write videos in memory instead of
+ * using temporary files. The handler supports seeking so it can be used for containers like mp4 that require seeking to
+ * read or write their index. The handler can be passed to IContainer.open instead of a filename.
+ *
+ * @author Corne Versloot
+ *
+ */
+public class MemoryIOHandler implements IURLProtocolHandler {
+
+	private byte[] data;
+	private int size;
+	private int position = 0;
+
+	/**
+	 * Creates an empty handler to write a video to
+	 */
+	public MemoryIOHandler(){
+		this(64 * 1024);
+	}
+
+	/**
+	 * Creates an empty handler with the provided initial capacity
+	 * @param capacity
+	 */
+	public MemoryIOHandler(int capacity){
+		this.data = new byte[Math.max(1024, capacity)];
+		this.size = 0;
+	}
+
+	/**
+	 * Creates a handler to read the provided video from
+	 * @param data
+	 */
+	public MemoryIOHandler(byte[] data){
+		this.data = data;
+		this.size = data.length;
+	}
+
+	/**
+	 * @return a copy of the bytes written to this handler
+	 */
+	public byte[] toByteArray(){
+		return Arrays.copyOf(data, size);
+	}
+
+	/**
+	 * @return the number of bytes in this handler
+	 */
+	public int size(){
+		return size;
+	}
+
+	/**
+	 * Removes all data so the handler can be used to write a new video
+	 */
+	public void reset(){
+		size = 0;
+		position = 0;
+	}
+
+	@Override
+	public int open(String url, int flags) {
+		position = 0;
+		return 0;
+	}
+
+	@Override
+	public int read(byte[] buf, int length) {
+		int available = Math.min(length, size - position);
+		if(available <= 0) return -1;
+		System.arraycopy(data, position, buf, 0, available);
+		position += available;
+		return available;
+	}
+
+	@Override
+	public int write(byte[] buf, int length) {
+		if(position + length > data.length){
+			data = Arrays.copyOf(data, Math.max(data.length * 2, position + length));
+		}
+		System.arraycopy(buf, 0, data, position, length);
+		position += length;
+		size = Math.max(size, position);
+		return length;
+	}
+
+	@Override
+	public long seek(long offset, int whence) {
+		long target;
+		switch(whence){
+		case SEEK_SET: target = offset; break;
+		case SEEK_CUR: target = position + offset; break;
+		case SEEK_END: target = size + offset; break;
+		case SEEK_SIZE: return size;
+		default: return -1;
+		}
+		if(target < 0 || target > Integer.MAX_VALUE) return -1;
+		position = (int)target;
+		return position;
+	}
+
+	@Override
+	public int close() {
+		return 0;
+	}
+
+	@Override
+	public boolean isStreamed(String url, int flags) {
+		return false;
+	}
+
+}
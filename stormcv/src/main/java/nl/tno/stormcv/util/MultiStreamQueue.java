@@ -0,0 +1,204 @@
+package nl.tno.stormcv.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A set of bounded queues, one for each stream, which are read in a weighted round robin fashion. Each stream
+ * gets its own {@link StreamQueue} which is filled by the reader of that stream. A stream with weight N is polled N times
+ * in a row before the next stream gets its turn (if it has items available). This avoids a single stream producing data at a
+ * high rate from filling a shared queue and thereby throttling all other streams.
+ *
+ * Each stream has a {@link DropPolicy} which determines what happens when its queue is full:
+ * <ul>
+ * <li>BLOCK (default): the producer blocks until space is available (suitable for files)</li>
+ * <li>DROP_OLDEST: the oldest item in the queue is dropped (suitable for live sources)</li>
+ * <li>DROP_NEWEST: the item being added is dropped</li>
+ * </ul>
+ * The number of items dropped by each stream is available through {@link #getDropped()}.
+ *
+ * @author Corne Versloot
+ *
+ * @param <E>
+ */
+public class MultiStreamQueue<E> {
+
+	public enum DropPolicy {BLOCK, DROP_OLDEST, DROP_NEWEST};
+
+	private List<StreamQueue<E>> queues = new ArrayList<StreamQueue<E>>();
+	private int current = 0; // index of the queue being served
+	private int credit = 0; // number of polls left for the current queue
+
+	/**
+	 * Adds a queue for the provided stream or returns the existing one
+	 * @param streamId
+	 * @param capacity the maximum number of items in the queue
+	 * @param weight the number of consecutive polls the stream gets in each round
+	 * @param policy what to do when the queue is full
+	 * @return the queue the stream must put its items in
+	 */
+	public synchronized StreamQueue<E> addStream(String streamId, int capacity, int weight, DropPolicy policy){
+		StreamQueue<E> queue = getStream(streamId);
+		if(queue != null) return queue;
+		queue = new StreamQueue<E>(streamId, capacity, weight, policy);
+		queues.add(queue);
+		return queue;
+	}
+
+	/**
+	 * @param streamId
+	 * @return the queue of the provided stream or null if it does not exist
+	 */
+	public synchronized StreamQueue<E> getStream(String streamId){
+		for(StreamQueue<E> queue : queues){
+			if(queue.getStreamId().equals(streamId)) return queue;
+		}
+		return null;
+	}
+
+	/**
+	 * Removes the queue for the provided stream including the items in it
+	 * @param streamId
+	 */
+	public synchronized void removeStream(String streamId){
+		StreamQueue<E> queue = getStream(streamId);
+		if(queue == null) return;
+		int index = queues.indexOf(queue);
+		queues.remove(index);
+		queue.clear();
+		if(index < current) current--;
+		if(current >= queues.size()){
+			current = 0;
+			credit = 0;
+		}
+	}
+
+	/**
+	 * Takes the next item from the stream queues
+	 * @return the next item or null if all queues are empty
+	 */
+	public synchronized E poll(){
+		for(int i=0; i<=queues.size(); i++){
+			if(queues.isEmpty()) return null;
+			if(credit <= 0){
+				credit = queues.get(current).getWeight();
+			}
+			E item = queues.get(current).poll();
+			if(item != null){
+				credit--;
+				if(credit <= 0) next();
+				return item;
+			}
+			next();
+		}
+		return null;
+	}
+
+	private void next(){
+		current = (current + 1) % queues.size();
+		credit = 0;
+	}
+
+	/**
+	 * @return the total number of items in all queues
+	 */
+	public synchronized int size(){
+		int size = 0;
+		for(StreamQueue<E> queue : queues) size += queue.size();
+		return size;
+	}
+
+	/**
+	 * @return all items currently queued (in no particular order)
+	 */
+	public synchronized List<E> getItems(){
+		List<E> items = new ArrayList<E>();
+		for(StreamQueue<E> queue : queues) items.addAll(queue);
+		return items;
+	}
+
+	/**
+	 * Removes all queues and their items
+	 */
+	public synchronized void clear(){
+		for(StreamQueue<E> queue : queues) queue.clear();
+		queues.clear();
+		current = 0;
+		credit = 0;
+	}
+
+	/**
+	 * Returns the number of items dropped by each stream since the previous call
+	 * @return
+	 */
+	public synchronized Map<String, Long> getDropped(){
+		Map<String, Long> dropped = new HashMap<String, Long>();
+		for(StreamQueue<E> queue : queues) dropped.put(queue.getStreamId(), queue.getDropped());
+		return dropped;
+	}
+
+	/**
+	 * The queue of a single stream which applies the {@link DropPolicy} of the stream when it is full.
+	 *
+	 * @author Corne Versloot
+	 *
+	 * @param <E>
+	 */
+	public static class StreamQueue<E> extends LinkedBlockingQueue<E>{
+
+		private static final long serialVersionUID = -2291733925451519476L;
+		private String streamId;
+		private int weight;
+		private DropPolicy policy;
+		private AtomicLong dropped = new AtomicLong();
+
+		public StreamQueue(String streamId, int capacity, int weight, DropPolicy policy){
+			super(Math.max(1, capacity));
+			this.streamId = streamId;
+			this.weight = Math.max(1, weight);
+			this.policy = policy == null ? DropPolicy.BLOCK : policy;
+		}
+
+		@Override
+		public void put(E item) throws InterruptedException{
+			if(policy == DropPolicy.BLOCK) super.put(item);
+			else offer(item);
+		}
+
+		@Override
+		public boolean offer(E item){
+			if(super.offer(item)) return true;
+			if(policy == DropPolicy.DROP_OLDEST){
+				while(!super.offer(item)){
+					if(super.poll() != null) dropped.incrementAndGet();
+				}
+				return true;
+			}
+			if(policy == DropPolicy.DROP_NEWEST) dropped.incrementAndGet();
+			return false;
+		}
+
+		public String getStreamId(){
+			return streamId;
+		}
+
+		public int getWeight(){
+			return weight;
+		}
+
+		public DropPolicy getPolicy(){
+			return policy;
+		}
+
+		/**
+		 * @return the number of items dropped since the previous call
+		 */
+		public long getDropped(){
+			return dropped.getAndSet(0);
+		}
+	}
+}
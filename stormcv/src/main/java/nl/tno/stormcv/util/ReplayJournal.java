@@ -0,0 +1,247 @@
+package nl.tno.stormcv.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+import nl.tno.stormcv.spout.CVParticleSpout;
+
+/**
+ * Append only journal that stores emitted tuples on local disk so they can be replayed on failure without keeping them on the heap.
+ * Values are serialized using the provided Kryo instance and appended to memory mapped segment files of a fixed size. Only a small
+ * index entry (segment, offset, length) is kept on the heap for each message id. When all entries of a segment have been removed
+ * (i.e. the corresponding tuples have been acked) the segment is recycled: its file and mapping are reused for the next segment instead
+ * of creating a new file. Deleting a mapped file does not free its disk space until the mapping is released, which normally only happens
+ * when the buffer is garbage collected, so recycling keeps the disk used bounded by the maximum number of segments in use at the same time.
+ * Segments larger than the segment size (holding a single large value) and all segments on close are unmapped explicitly before their
+ * file is deleted.
+ *
+ * The index is bounded by maxEntries, if this number is exceeded the oldest entry is dropped and can no longer be replayed. This
+ * journal is used by the {@link CVParticleSpout} when a journal directory is configured and is not thread safe.
+ *
+ * @author Corne Versloot
+ *
+ */
+public class ReplayJournal {
+
+	private Logger logger = LoggerFactory.getLogger(getClass());
+	private File directory;
+	private int segmentSize;
+	private int maxEntries;
+	private Kryo kryo;
+	private Output output;
+	private LinkedHashMap<Object, Entry> index;
+	private Segment active;
+	private ArrayDeque<Segment> free = new ArrayDeque<Segment>(); // empty segments that can be reused
+	private List<Segment> segments = new ArrayList<Segment>(); // all mapped segments
+	private int nextSegment = 0;
+	private long dropped = 0;
+
+	/**
+	 * Creates a journal in the provided directory. Any existing journal files in this directory are removed.
+	 * @param directory
+	 * @param segmentSize the size of segment files in bytes
+	 * @param maxEntries the maximum number of entries kept in the journal
+	 * @param kryo the kryo instance used to serialize the values appended
+	 * @throws IOException
+	 */
+	public ReplayJournal(File directory, int segmentSize, int maxEntries, Kryo kryo) throws IOException{
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		this.maxEntries = maxEntries;
+		this.kryo = kryo;
+		this.output = new Output(4096, -1);
+		this.index = new LinkedHashMap<Object, Entry>();
+		if(!directory.exists() && !directory.mkdirs()) throw new IOException("Unable to create journal directory "+directory);
+		for(File file : directory.listFiles()){
+			if(file.getName().endsWith(".journal")) file.delete();
+		}
+	}
+
+	/**
+	 * Appends the value to the journal
+	 * @param msgId
+	 * @param value
+	 * @throws IOException
+	 */
+	public void append(Object msgId, Object value) throws IOException{
+		remove(msgId);
+		output.clear();
+		kryo.writeClassAndObject(output, value);
+		int length = output.position();
+
+		if(active == null || active.buffer.remaining() < length){
+			roll(length);
+		}
+		Entry entry = new Entry(active, active.buffer.position(), length);
+		active.buffer.put(output.getBuffer(), 0, length);
+		active.live++;
+		index.put(msgId, entry);
+
+		if(index.size() > maxEntries){
+			Object eldest = index.keySet().iterator().next();
+			remove(eldest);
+			if(dropped++ % 1000 == 0) logger.warn("Replay journal is full, "+dropped+" entries dropped so far");
+		}
+	}
+
+	/**
+	 * Reads the value with the provided id from the journal
+	 * @param msgId
+	 * @return the value or null if it is not present in the journal
+	 */
+	public Object get(Object msgId){
+		Entry entry = index.get(msgId);
+		if(entry == null) return null;
+		ByteBuffer buffer = entry.segment.buffer.duplicate();
+		buffer.position(entry.offset);
+		byte[] bytes = new byte[entry.length];
+		buffer.get(bytes);
+		return kryo.readClassAndObject(new Input(bytes));
+	}
+
+	/**
+	 * Removes the value with the provided id from the journal. The segment it was stored in is recycled if it
+	 * does not contain any other values.
+	 * @param msgId
+	 */
+	public void remove(Object msgId){
+		Entry entry = index.remove(msgId);
+		if(entry == null) return;
+		entry.segment.live--;
+		if(entry.segment.live == 0 && entry.segment != active){
+			recycle(entry.segment);
+		}
+	}
+
+	public int size(){
+		return index.size();
+	}
+
+	/**
+	 * Removes all entries, releases the mappings and deletes the segment files
+	 */
+	public void close(){
+		index.clear();
+		active = null;
+		free.clear();
+		for(Segment segment : new ArrayList<Segment>(segments)) segment.delete();
+		for(File file : directory.listFiles()){
+			if(file.getName().endsWith(".journal")) file.delete();
+		}
+	}
+
+	/**
+	 * Starts a new segment large enough to hold at least the specified number of bytes
+	 * @param length
+	 * @throws IOException
+	 */
+	private void roll(int length) throws IOException{
+		if(active != null && active.live == 0) recycle(active);
+		active = length <= segmentSize ? free.poll() : null;
+		if(active == null) active = new Segment(new File(directory, (nextSegment++)+".journal"), Math.max(segmentSize, length));
+	}
+
+	/**
+	 * Makes the empty segment available for reuse, segments larger than the segment size are deleted
+	 * @param segment
+	 */
+	private void recycle(Segment segment){
+		if(segment.buffer.capacity() == segmentSize){
+			segment.buffer.clear();
+			free.add(segment);
+		}else{
+			segment.delete();
+		}
+	}
+
+	/**
+	 * A memory mapped segment file
+	 */
+	private class Segment {
+
+		private File file;
+		private MappedByteBuffer buffer;
+		private int live = 0;
+
+		private Segment(File file, int size) throws IOException{
+			this.file = file;
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try{
+				buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+			}finally{
+				raf.close();
+			}
+			segments.add(this);
+		}
+
+		/**
+		 * Releases the mapping and deletes the file, the segment must not be used afterwards
+		 */
+		private void delete(){
+			segments.remove(this);
+			unmap(buffer);
+			buffer = null;
+			if(file.exists() && !file.delete()) logger.warn("Unable to delete journal segment "+file);
+		}
+	}
+
+	/**
+	 * Releases the memory mapping of the buffer right away instead of waiting for it to be garbage collected. There is no public
+	 * api for this so the cleaner of the buffer (java 7 and 8) or Unsafe.invokeCleaner (java 9+) is used. If neither is available
+	 * the mapping is released by the garbage collector.
+	 * @param buffer
+	 */
+	private void unmap(MappedByteBuffer buffer){
+		try{
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			try{
+				Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+				Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+				theUnsafe.setAccessible(true);
+				invokeCleaner.invoke(theUnsafe.get(null), buffer);
+				return;
+			}catch(NoSuchMethodException e){
+				// java 7 and 8
+			}
+			Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+			cleanerMethod.setAccessible(true);
+			Object cleaner = cleanerMethod.invoke(buffer);
+			if(cleaner != null) cleaner.getClass().getMethod("clean").invoke(cleaner);
+		}catch(Exception e){
+			logger.debug("Unable to unmap journal segment: "+e.getMessage());
+		}
+	}
+
+	/**
+	 * Location of a single value within the journal
+	 */
+	private static class Entry {
+
+		private Segment segment;
+		private int offset;
+		private int length;
+
+		private Entry(Segment segment, int offset, int length){
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+}
@@ -0,0 +1,228 @@
+package nl.tno.stormcv.util;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import backtype.storm.Config;
+import backtype.storm.task.TopologyContext;
+import nl.tno.stormcv.util.connector.ConnectorHolder;
+import nl.tno.stormcv.util.connector.FileConnector;
+
+/**
+ * Divides a list of sources (files, streams, images) among the tasks of a component based on the estimated cost of each source.
+ * Sources are assigned using the longest processing time first rule: sources are sorted on decreasing cost and each is given to
+ * the task with the lowest total cost so far. The assignment is deterministic so all tasks calculate the same assignment
+ * independently. Each task processes its sources in order of decreasing cost which makes sure large files are started first.
+ *
+ * If an {@link IClaimRegistry} is set the assigner also supports work stealing. Every source must be claimed before it is returned
+ * by {@link #next()} and a task that finished its own sources will claim sources assigned to other tasks that have not been started
+ * yet. Sources are stolen from the end of the lists of other tasks (i.e. the sources that would be started last) to avoid conflicts
+ * with the task owning them.
+ *
+ * @author Corne Versloot
+ *
+ */
+public class SourceAssigner {
+
+	private static Logger logger = LoggerFactory.getLogger(SourceAssigner.class);
+	private List<String> own;
+	private List<String> candidates = new ArrayList<String>();
+	private IClaimRegistry claims;
+	private int stolen = 0;
+
+	/**
+	 * Calculates the assignment for all tasks and keeps the sources for the task with the provided index
+	 * @param sources
+	 * @param costs estimated cost per source, sources without cost get the average cost
+	 * @param nrTasks
+	 * @param taskIndex
+	 */
+	public SourceAssigner(List<String> sources, Map<String, Long> costs, int nrTasks, int taskIndex){
+		final List<List<String>> assignment = assign(sources, costs, nrTasks);
+		own = new ArrayList<String>(assignment.get(taskIndex));
+
+		// candidates for stealing: the last sources of the other tasks first, longest lists first
+		List<Integer> others = new ArrayList<Integer>();
+		for(int i=0; i<nrTasks; i++) if(i != taskIndex) others.add(i);
+		Collections.sort(others, new Comparator<Integer>(){
+			@Override
+			public int compare(Integer t1, Integer t2) {
+				return assignment.get(t2).size() - assignment.get(t1).size();
+			}
+		});
+		for(int r=0; others.size() > 0 && r < assignment.get(others.get(0)).size(); r++){
+			for(int task : others){
+				List<String> list = assignment.get(task);
+				if(list.size() - 1 - r >= 0) candidates.add(list.get(list.size() - 1 - r));
+			}
+		}
+	}
+
+	/**
+	 * Sets the registry used to claim sources which enables work stealing
+	 * @param claims
+	 * @return itself
+	 */
+	public SourceAssigner claims(IClaimRegistry claims){
+		this.claims = claims;
+		return this;
+	}
+
+	/**
+	 * @return the sources assigned to this task which have not been returned yet
+	 */
+	public List<String> getAssigned(){
+		return new ArrayList<String>(own);
+	}
+
+	/**
+	 * @return the number of sources taken from other tasks
+	 */
+	public int getStolen(){
+		return stolen;
+	}
+
+	/**
+	 * Returns the next source to process. Sources assigned to this task are returned first, if work stealing is enabled
+	 * unclaimed sources of other tasks are returned afterwards.
+	 * @return the next source or null if there is nothing left to process
+	 */
+	public synchronized String next(){
+		while(!own.isEmpty()){
+			String source = own.remove(0);
+			if(claims == null) return source;
+			try{
+				if(claims.claim(source)) return source;
+			}catch(Exception e){
+				logger.warn("Unable to claim "+source+", processing it anyway: "+e.getMessage());
+				return source;
+			}
+		}
+		if(claims == null) return null;
+		while(!candidates.isEmpty()){
+			String source = candidates.remove(0);
+			try{
+				if(claims.claim(source)){
+					stolen++;
+					logger.info("Took over "+source+" from another task");
+					return source;
+				}
+			}catch(Exception e){
+				logger.warn("Unable to claim "+source+": "+e.getMessage());
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return true if {@link #next()} may return another source
+	 */
+	public synchronized boolean hasNext(){
+		return !own.isEmpty() || (claims != null && !candidates.isEmpty());
+	}
+
+	/**
+	 * Releases the claims made by this task and closes the claim registry (if set), work stealing is disabled afterwards
+	 */
+	public synchronized void close(){
+		if(claims != null) claims.close();
+		claims = null;
+		candidates.clear();
+	}
+
+	/**
+	 * Assigns the sources to the provided number of tasks using the longest processing time first rule.
+	 * @param sources
+	 * @param costs estimated cost per source, sources without a (positive) cost get the average cost
+	 * @param nrTasks
+	 * @return list with the sources assigned to each task, in order of decreasing cost
+	 */
+	public static List<List<String>> assign(List<String> sources, Map<String, Long> costs, int nrTasks){
+		final Map<String, Long> estimates = estimate(sources, costs);
+		List<String> sorted = new ArrayList<String>(sources);
+		Collections.sort(sorted, new Comparator<String>(){
+			@Override
+			public int compare(String s1, String s2) {
+				int c = Long.compare(estimates.get(s2), estimates.get(s1));
+				return c != 0 ? c : s1.compareTo(s2);
+			}
+		});
+
+		List<List<String>> assignment = new ArrayList<List<String>>();
+		long[] load = new long[nrTasks];
+		for(int i=0; i<nrTasks; i++) assignment.add(new ArrayList<String>());
+		for(String source : sorted){
+			int task = 0;
+			for(int i=1; i<nrTasks; i++) if(load[i] < load[task]) task = i;
+			assignment.get(task).add(source);
+			load[task] += estimates.get(source);
+		}
+		return assignment;
+	}
+
+	private static Map<String, Long> estimate(List<String> sources, Map<String, Long> costs){
+		long total = 0;
+		int known = 0;
+		for(String source : sources){
+			Long cost = costs == null ? null : costs.get(source);
+			if(cost != null && cost > 0){
+				total += cost;
+				known++;
+			}
+		}
+		long average = known == 0 ? 1 : Math.max(1, total / known);
+		Map<String, Long> estimates = new HashMap<String, Long>();
+		for(String source : sources){
+			Long cost = costs == null ? null : costs.get(source);
+			estimates.put(source, cost != null && cost > 0 ? cost : average);
+		}
+		return estimates;
+	}
+
+	/**
+	 * Gets the size of the provided files using the {@link FileConnector}s, files of which the size cannot be
+	 * determined are not included in the result.
+	 * @param files
+	 * @param connectorHolder
+	 * @return the size in bytes of each file
+	 */
+	public static Map<String, Long> getFileSizes(List<String> files, ConnectorHolder connectorHolder){
+		Map<String, Long> sizes = new HashMap<String, Long>();
+		for(String file : files) try{
+			FileConnector connector = connectorHolder.getConnector(file);
+			if(connector == null) continue;
+			connector.moveTo(file);
+			long size = connector.getSize();
+			if(size > 0) sizes.put(file, size);
+		}catch(Exception e){
+			logger.debug("Unable to get size of "+file+": "+e.getMessage());
+		}
+		return sizes;
+	}
+
+	/**
+	 * Creates the claim registry for the component of the provided context. In local mode claims are registered in the local
+	 * tmp directory, otherwise they are registered in ZooKeeper.
+	 * @param stormConf
+	 * @param context
+	 * @return
+	 * @throws Exception if the registry cannot be created
+	 */
+	@SuppressWarnings("rawtypes")
+	public static IClaimRegistry createClaimRegistry(Map stormConf, TopologyContext context) throws Exception{
+		String namespace = context.getStormId()+"/"+context.getThisComponentId();
+		if("local".equals(stormConf.get(Config.STORM_CLUSTER_MODE))){
+			File dir = new File(new File(System.getProperty("java.io.tmpdir"), "stormcv_claims"), namespace);
+			return new LocalClaimRegistry(dir, context.getThisTaskId());
+		}
+		return new ZookeeperClaimRegistry(stormConf, namespace, context.getThisTaskId());
+	}
+}
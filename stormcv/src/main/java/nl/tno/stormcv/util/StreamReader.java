@@ -4,53 +4,135 @@ import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import nl.tno.stormcv.model.Frame;
+import nl.tno.stormcv.util.MultiStreamQueue.DropPolicy;
+import nl.tno.stormcv.util.MultiStreamQueue.StreamQueue;
+import nl.tno.stormcv.util.connector.ConnectorHolder;
+import nl.tno.stormcv.util.connector.FileConnector;
+import nl.tno.stormcv.util.connector.LocalFileConnector;
 import backtype.storm.utils.Utils;
 
-import com.xuggle.mediatool.IMediaReader;
-import com.xuggle.mediatool.MediaListenerAdapter;
-import com.xuggle.mediatool.ToolFactory;
-import com.xuggle.mediatool.event.IVideoPictureEvent;
-import com.xuggle.xuggler.ICodec;
-import com.xuggle.xuggler.IContainer;
+import com.xuggle.xuggler.IPacket;
+import com.xuggle.xuggler.IVideoPicture;
 
 /**
  * This class reads a video stream or file, decodes frames and puts those in a queue for further processing. 
  * The StreamReader will automatically throttle itself based on the size of the queue it writes the frames to.
- * This is done to avoid memory overload if production of frames is higher than the consumption. The actual decoding of 
+ * This is done to avoid memory overload if production of frames is higher than the consumption. Readers of different streams
+ * can be given their own queue (see {@link MultiStreamQueue}) in which case they only throttle on their own backlog. The actual decoding of 
  * frames is done by Xuggler which in turn uses FFMPEG (xuggler jar file is shipped with ffmpeg binaries).
+ * 
+ * By default frames are encoded (i.e. to JPEG) on the thread decoding the video. If encoderThreads is set the reader works as a 
+ * pipeline instead: the decoding thread hands images to a pool of encoders and an ordering thread puts the encoded frames in the queue
+ * in their original order. The number of frames passing each stage and the time spent encoding and waiting for the queue are available
+ * through {@link #getStats()}.
+ * 
+ * The reader accesses the packets of the video directly (using a {@link VideoDecoder}) which makes it possible to skip decoding of 
+ * frames that are not needed. The {@link DecodeMode} determines how this is done:
+ * <ul>
+ * <li>ALL (default): all frames are decoded and only the ones selected by frameSkip and groupSize are converted and emitted</li>
+ * <li>KEYFRAMES: only keyframes are decoded and all of them are emitted (frameSkip and groupSize are ignored)</li>
+ * <li>NONREF: non reference frames are not decoded, selected frames are emitted if they were decoded</li>
+ * <li>GOP: packets of a group of pictures are buffered and decoded only if the GOP contains a selected frame</li>
+ * </ul>
+ * In ALL mode frames are numbered by counting them, in the other modes the frame number is derived from the timestamp of the 
+ * frame which results in the same numbering for videos with a constant frame rate. Timestamps are calculated as before in all modes.
+ * 
+ * Files in the video list can be segments of a larger file (see {@link VideoSegment}) in which case only the frames of the segment are
+ * read. Segments are aligned on keyframes and frames get the number they have in the complete file so multiple readers can decode
+ * different parts of the same file concurrently.
+ * 
+ * If a {@link ConnectorHolder} is set, files in the video list may also be remote locations (i.e. s3:// or ftp://) which are decoded 
+ * directly from the stream provided by their {@link FileConnector}. If the stream cannot be decoded the file is downloaded to the tmp
+ * directory and read from there instead.
+ * 
+ * A reader can either be run on its own thread or be driven by a {@link DecoderScheduler} which calls {@link #readSlice(int)} to read
+ * a limited number of packets at a time. This allows many streams to share a small number of decoding threads.
  *  
  * @author Corne Versloot
  *
  */
-public class StreamReader extends MediaListenerAdapter implements Runnable {
+public class StreamReader implements Runnable {
+	
+	/**
+	 * Specifies which frames are decoded by the reader 
+	 */
+	public enum DecodeMode {ALL, KEYFRAMES, NONREF, GOP};
+	
+	private static final int MAX_GOP_PACKETS = 1000;
+	private static final int PARKED_RETRY_MS = 10; // time before a slice with parked frames is tried again
 	
 	private Logger logger = LoggerFactory.getLogger(StreamReader.class);
-	private IMediaReader mediaReader;
-    private int mVideoStreamIndex = -1;
+	private VideoDecoder decoder;
+	private DecodeMode mode = DecodeMode.ALL;
+	private List<IPacket> gop = new ArrayList<IPacket>(); // buffered packets of the current group of pictures (GOP mode only)
+	private boolean gopSelected = false;
+	private long fileStart = 0; // frameNr of the first frame of the current file
+	private VideoSegment segment; // the segment of the current file being read (null if the entire file is read)
+	private long segmentStart = 0; // first frame of the segment
+	private long segmentEnd = -1; // first frame of the next segment, set once its keyframe has been read
+	private long nominalEnd = -1; // nominal start of the next segment
+	private int packetsAfterEnd = 0;
+	private boolean segmentDone = false;
+	private boolean started = false;
+	private boolean stopped = false;
+	private long retryAt = 0; // time after which a failed stream or full queue is read again (slice mode)
+	private boolean sliced = false; // true if the reader is executed in slices by a DecoderScheduler
+	private Deque<Parked<?>> parked = new ArrayDeque<Parked<?>>(); // items that did not fit in a full queue (slice mode)
+	private long openedAt = 0; // wall clock time the current stream was opened
+	private long firstPacketMs = -1; // media time of the first packet read from the current stream
+	private volatile long decodeLag = 0;
 	private String streamId;
 	private int frameSkip;
 	private int groupSize;
 	private long frameNr; // number of the frame read so far
 	private boolean running = false; // indicator if the reader is still active
-	private LinkedBlockingQueue<Frame> frameQueue; // queue used to store frames
+	private BlockingQueue<Frame> frameQueue; // queue used to store frames
 	private long lastRead = -1; // used to determine if the EOF was reached if Xuggler does not detect it
 	private int sleepTime;
 	private boolean useSingleID = false;
 	private String tmpDir;
 	private int frameMs = -1;
+	private ConnectorHolder connectorHolder;
+	private File fallbackFile; // local copy of a remote file that could not be streamed
 
 	private String streamLocation;
 	private LinkedBlockingQueue<String> videoList = null;
 	private String imageType = Frame.JPG_IMAGE;
+	private Queue<String> completedFiles = null; // if set files are not deleted but put in this queue after reading them 
+	private Map<String, Long> fileOffsets = new ConcurrentHashMap<String, Long>(); // frameNr of the first frame of each file
+	private int encoderThreads = 0;
+	private ExecutorService encoders;
+	private LinkedBlockingQueue<Future<Frame>> encoding; // frames being encoded in the order they were decoded
+	private AtomicLong decoded = new AtomicLong();
+	private AtomicLong encoded = new AtomicLong();
+	private AtomicLong enqueued = new AtomicLong();
+	private AtomicLong encodeNanos = new AtomicLong();
+	private AtomicLong enqueueNanos = new AtomicLong();
    
-	  public StreamReader( LinkedBlockingQueue<String> videoList, String imageType, int frameSkip, int groupSize, int sleepTime, boolean uniqueIdPerFile, LinkedBlockingQueue<Frame> frameQueue){
+	  public StreamReader( LinkedBlockingQueue<String> videoList, String imageType, int frameSkip, int groupSize, int sleepTime, boolean uniqueIdPerFile, BlockingQueue<Frame> frameQueue){
 		  this.videoList = videoList;
 		  this.imageType = imageType;
 		  this.frameSkip = Math.max(1, frameSkip);
@@ -65,7 +147,7 @@ public class StreamReader extends MediaListenerAdapter implements Runnable {
 		  } catch (IOException e) {	}
 	  }
 	
-	  public StreamReader( String streamId, String streamLocation, String imageType, int frameSkip, int groupSize, int sleepTime, LinkedBlockingQueue<Frame> frameQueue){
+	  public StreamReader( String streamId, String streamLocation, String imageType, int frameSkip, int groupSize, int sleepTime, BlockingQueue<Frame> frameQueue){
 		  this.streamLocation = streamLocation;
 		  this.imageType = imageType;
 		  this.frameSkip = Math.max(1, frameSkip);
@@ -79,110 +161,590 @@ public class StreamReader extends MediaListenerAdapter implements Runnable {
 		  } catch (IOException e) {	}
 	  }
 	  
+	  /**
+	   * Tells the reader not to delete the files it has read but to put them in the provided queue instead. This
+	   * is used by fetchers that need the files after reading them (for example to replay frames).
+	   * @param completed
+	   * @return itself
+	   */
+	  public StreamReader completedFiles(Queue<String> completed){
+		  this.completedFiles = completed;
+		  return this;
+	  }
+	  
+	  /**
+	   * Sets the connectors used to read remote files from the video list directly
+	   * @param connectorHolder
+	   * @return itself
+	   */
+	  public StreamReader connectors(ConnectorHolder connectorHolder){
+		  this.connectorHolder = connectorHolder;
+		  return this;
+	  }
+	  
+	  /**
+	   * Sets the {@link DecodeMode} used by this reader (default is ALL)
+	   * @param mode
+	   * @return itself
+	   */
+	  public StreamReader decodeMode(DecodeMode mode){
+		  this.mode = mode;
+		  return this;
+	  }
+	  
+	  /**
+	   * Sets the number of threads used to encode frames. If set to 0 (default) frames are encoded on the thread 
+	   * decoding the video.
+	   * @param threads
+	   * @return itself
+	   */
+	  public StreamReader encoderThreads(int threads){
+		  this.encoderThreads = Math.max(0, threads);
+		  return this;
+	  }
+	  
+	  /**
+	   * Returns the number of frames that passed each stage of the reader since the previous call and the
+	   * current size of the queues between them:
+	   * <ul>
+	   * <li>decoded: number of frames decoded and selected for output</li>
+	   * <li>encoded: number of frames encoded</li>
+	   * <li>enqueued: number of frames put in the output queue</li>
+	   * <li>encodeMs: total time spent encoding frames</li>
+	   * <li>enqueueMs: total time spent waiting for space in the output queue</li>
+	   * <li>encoding: number of frames currently being encoded (pipeline mode only)</li>
+	   * <li>queued: number of frames in the output queue</li>
+	   * <li>lagMs: the time reading runs behind on the media time of the stream (only meaningful for live streams)</li>
+	   * </ul>
+	   * @return
+	   */
+	  public Map<String, Long> getStats(){
+		  Map<String, Long> stats = new HashMap<String, Long>();
+		  stats.put("decoded", decoded.getAndSet(0));
+		  stats.put("encoded", encoded.getAndSet(0));
+		  stats.put("enqueued", enqueued.getAndSet(0));
+		  stats.put("encodeMs", encodeNanos.getAndSet(0) / 1000000);
+		  stats.put("enqueueMs", enqueueNanos.getAndSet(0) / 1000000);
+		  stats.put("encoding", encoding == null ? 0L : encoding.size());
+		  stats.put("queued", (long)frameQueue.size());
+		  stats.put("lagMs", decodeLag);
+		  return stats;
+	  }
+	  
+	  /**
+	   * Returns the frame number the provided file started with (only differs from 0 if a single id is used for all files)
+	   * @param file
+	   * @return frame offset or 0 if the file is unknown
+	   */
+	  public long getFileOffset(String file){
+		  Long offset = fileOffsets.get(file);
+		  return offset == null ? 0 : offset;
+	  }
+	  
+	  /**
+	   * Removes the administration kept for the provided file
+	   * @param file
+	   */
+	  public void forgetFile(String file){
+		  fileOffsets.remove(file);
+	  }
+	  
     /**
      * Start reading the provided URL
      * @param url the url to read video from
      * @param frameskip milliseconds between frames to extract
      */
 	public void run(){
-		running = true;
+		start();
 		while(running){
 			try{
-				// if a url was provided read it
-				if(videoList == null && streamLocation != null){
-					logger.info("Start reading stream: "+streamLocation);
-					mediaReader = ToolFactory.makeReader(streamLocation);
-				}else if(videoList != null){
-					// read next video from the list or block until one is available
-					logger.info("Waiting for new file to be downloaded...");
-					streamLocation = videoList.take();
-					
-					if(!useSingleID){
-						streamId = ""+streamLocation.hashCode();
-						if(streamLocation.contains("/")) streamId = streamLocation.substring(streamLocation.lastIndexOf('/')+1)+"_"+streamId;
-					}
-					logger.info("Start reading File: "+streamLocation);
-					
-					// read framerate from file
-			        IContainer cont = IContainer.make();
-			        if (cont.open(streamLocation, IContainer.Type.READ, null) > 0) try{
-				        for(int s=0; s < cont.getNumStreams(); s++){// find the videostream
-				        	if(cont.getStream(s).getStreamCoder().getCodecType() == ICodec.Type.CODEC_TYPE_VIDEO){
-				        		frameMs = (int)Math.floor(1000f/cont.getStream(s).getStreamCoder().getFrameRate().getDouble());
-				        	}
-				        }
-			        }catch(Exception e){
-			        	logger.warn("Unable to read metadata from video");
-			        }
-			        
-					mediaReader = ToolFactory.makeReader(streamLocation);
-				}else{
-					logger.error("No video list or url provided, nothing to read");
-					break;
-				}
-				lastRead = System.currentTimeMillis() + 10000;
-	
-				mVideoStreamIndex = -1;
-				if(!useSingleID) frameNr = 0;
-		        mediaReader.setBufferedImageTypeToGenerate(BufferedImage.TYPE_3BYTE_BGR);
-		        mediaReader.addListener(this);
-		        
-		        while (mediaReader.readPacket() == null && running ) ;
-		 
-		        // reset internal state
-		        mediaReader.close();
-		        // delete the local file (if it is in tmp dir)
-		        if(videoList != null){
-		        	File localFile = new File(streamLocation);
-		        	if(localFile.getAbsolutePath().startsWith(tmpDir)){
-		        		localFile.delete();
-		        	}
-		        }
+				if(!open()) break;
+				while(running && readPacket()) ;
+				if(gopSelected) decodeGop();
+				if(running) drain();
+				close();
 			}catch(Exception e){
 				logger.warn("Stream closed unexpectatly: "+e.getMessage(), e);
+				close();
 				// sleep a minute and try to read the stream again
 				Utils.sleep(1 * 60 * 1000);
 			}
 		}
 		
-        mVideoStreamIndex = -1;
-        running = false;
-	}
-	
-	/**
-	 * Gets called when FFMPEG transcoded a frame
-	 */
-	public void onVideoPicture(IVideoPictureEvent event) {
-		lastRead  = System.currentTimeMillis();
-        if (event.getStreamIndex() != mVideoStreamIndex) {
-            if (mVideoStreamIndex == -1){
-                mVideoStreamIndex = event.getStreamIndex();
-            }else return;
-        }
-        if(frameNr % frameSkip < groupSize) try{
-        	BufferedImage frame = event.getImage();
-        	byte[] buffer = ImageUtils.imageToBytes(frame, imageType);
-        	long timestamp = event.getTimeStamp(TimeUnit.MILLISECONDS);
-        	if(frameMs > 0 ) timestamp = frameNr * frameMs;
-        	Frame newFrame = new Frame(streamId, frameNr, imageType, buffer, timestamp, new Rectangle(0, 0,frame.getWidth(), frame.getHeight()));
-        	newFrame.getMetadata().put("uri", streamLocation);
-        	frameQueue.put(newFrame);
-        	// enforced throttling
-        	if(sleepTime > 0) Utils.sleep(sleepTime);
-        	// queue based throttling 
-        	if(frameQueue.size() > 20) Utils.sleep(frameQueue.size());
-        }catch(Exception e){
-        	logger.warn("Unable to process new frame due to: "+e.getMessage(), e);
-        }
-        
-        frameNr++;
-    }
-
+        finish();
+	}
+	
+	/**
+	 * Reads at most the specified number of packets from the stream. This method is used to multiplex multiple readers over
+	 * a small number of threads and must not be called concurrently for the same reader. If the stream fails it will not be 
+	 * read again for one minute, calls within that minute return immediately (see {@link #getRetryAt()}). A slice never blocks on a full
+	 * queue: frames that do not fit are parked and the slice ends, they are handed over first by the next slice which is tried again
+	 * after a few milliseconds.
+	 * @param packets the maximum number of packets to read
+	 * @return false if this reader has stopped and does not have to be called again
+	 */
+	public boolean readSlice(int packets){
+		if(stopped) {
+			finish();
+			return false;
+		}
+		if(!started) start();
+		if(!running){
+			finish();
+			return false;
+		}
+		if(System.currentTimeMillis() < retryAt) return true;
+		sliced = true;
+		try{
+			if(!unpark()){
+				retryAt = System.currentTimeMillis() + PARKED_RETRY_MS;
+				return true;
+			}
+			if(decoder == null){
+				if(videoList != null && videoList.isEmpty()) return true; // wait for the next file
+				if(!open()){
+					finish();
+					return false;
+				}
+			}
+			for(int i=0; i<packets && running && parked.isEmpty(); i++){
+				if(!readPacket()){
+					if(gopSelected) decodeGop();
+					drain();
+					close();
+					break;
+				}
+			}
+			if(!parked.isEmpty()) retryAt = System.currentTimeMillis() + PARKED_RETRY_MS;
+		}catch(Exception e){
+			logger.warn("Stream closed unexpectatly: "+e.getMessage(), e);
+			close();
+			// try to read the stream again after a minute
+			retryAt = System.currentTimeMillis() + 60 * 1000;
+		}
+		return true;
+	}
+	
+	/**
+	 * @return the id of the stream currently being read 
+	 */
+	public String getStreamId(){
+		return streamId;
+	}
+	
+	/**
+	 * @return the time (ms since epoch) before which this reader will not read its stream again because it failed or its
+	 * queue was full, 0 if this did not happen
+	 */
+	public long getRetryAt(){
+		return retryAt;
+	}
+	
+	/**
+	 * @return the time in ms reading runs behind on the media time of the stream
+	 */
+	public long getDecodeLag(){
+		return decodeLag;
+	}
+	
+	private void start(){
+		started = true;
+		running = true;
+		if(encoderThreads > 0){
+			encoders = Executors.newFixedThreadPool(encoderThreads);
+			encoding = new LinkedBlockingQueue<Future<Frame>>(2 * encoderThreads);
+			new Thread(new FrameOrderer()).start();
+		}
+	}
+	
+	private void finish(){
+		running = false;
+		parked.clear();
+		close();
+		if(encoders != null) encoders.shutdown();
+		encoders = null;
+	}
+	
+	/**
+	 * Opens the stream or the next file from the video list
+	 * @return false if there is nothing to read
+	 * @throws Exception
+	 */
+	private boolean open() throws Exception{
+		// if a url was provided read it
+		if(videoList == null && streamLocation != null){
+			logger.info("Start reading stream: "+streamLocation);
+			decoder = new VideoDecoder(streamLocation);
+		}else if(videoList != null){
+			// read next video from the list or block until one is available
+			logger.info("Waiting for new file to be downloaded...");
+			streamLocation = videoList.take();
+			segment = useSingleID ? null : VideoSegment.parse(streamLocation);
+			if(segment != null){
+				streamLocation = segment.getLocalFile() != null ? segment.getLocalFile() : segment.getLocation();
+			}
+			
+			if(!useSingleID){
+				// segments of the same file get the same id
+				String source = segment != null ? segment.getLocation() : streamLocation;
+				streamId = ""+source.hashCode();
+				if(source.contains("/")) streamId = source.substring(source.lastIndexOf('/')+1)+"_"+streamId;
+			}
+			logger.info("Start reading File: "+streamLocation);
+			decoder = openFile(streamLocation);
+			// read framerate from file
+			if(decoder.getFrameMs() > 0) frameMs = decoder.getFrameMs();
+		}else{
+			logger.error("No video list or url provided, nothing to read");
+			return false;
+		}
+		lastRead = System.currentTimeMillis() + 10000;
+		
+		if(!useSingleID) frameNr = 0;
+		fileStart = frameNr;
+		if(videoList != null) fileOffsets.put(streamLocation, frameNr);
+		segmentStart = 0;
+		segmentEnd = -1;
+		nominalEnd = -1;
+		packetsAfterEnd = 0;
+		segmentDone = false;
+		if(videoList == null) segment = null;
+		if(segment != null) positionSegment();
+		decoder.skipNonReference(mode == DecodeMode.NONREF);
+		openedAt = System.currentTimeMillis();
+		firstPacketMs = -1;
+		gop.clear();
+		gopSelected = false;
+		return true;
+	}
+	
+	/**
+	 * Creates a decoder for the provided file. Remote files are decoded from the stream of their connector, if that fails the
+	 * file is downloaded and decoded from the local copy.
+	 * @param location
+	 * @return
+	 * @throws Exception
+	 */
+	private VideoDecoder openFile(String location) throws Exception{
+		FileConnector connector = connectorHolder == null || !location.contains("://") ? null : connectorHolder.getConnector(location);
+		if(connector == null || connector instanceof LocalFileConnector) return new VideoDecoder(location);
+		// connectors are shared with the fetcher so a copy is used
+		connector = connector.deepCopy();
+		connector.moveTo(location);
+		InputStream in = null;
+		try{
+			in = connector.openStream(0, -1);
+			return new VideoDecoder(in, location);
+		}catch(IOException e){
+			if(in != null) in.close();
+			logger.warn("Unable to decode stream of "+location+", downloading it instead: "+e.getMessage());
+			fallbackFile = connector.getAsFile();
+			return new VideoDecoder(fallbackFile.getAbsolutePath());
+		}
+	}
+	
+	/**
+	 * Moves the decoder to the first keyframe of the segment being read
+	 */
+	private void positionSegment(){
+		long frames = decoder.getFrameCount();
+		if(frames <= 0){
+			// without a known length the first segment reads the entire file
+			logger.warn("Unable to determine the length of "+streamLocation+", it is read completely by the first segment");
+			segmentDone = segment.getIndex() > 0;
+			return;
+		}
+		nominalEnd = segment.getNominalEnd(frames);
+		if(segment.getIndex() > 0){
+			segmentStart = decoder.seekKeyFrameAfter(segment.getNominalStart(frames));
+			// the segment is empty if it does not contain a keyframe of its own
+			if(segmentStart < 0 || (nominalEnd >= 0 && segmentStart >= nominalEnd)) segmentDone = true;
+			frameNr = Math.max(0, segmentStart);
+		}
+		logger.info("Reading segment "+segment.getIndex()+"/"+segment.getCount()+" of "+segment.getLocation()+" starting at frame "+segmentStart);
+	}
+	
+	/**
+	 * Checks if the provided frame belongs to the segment being read and marks the segment as done if the first frame
+	 * of the next segment has been reached.
+	 * @param nr
+	 * @return
+	 */
+	private boolean inSegment(long nr){
+		if(segment == null) return true;
+		if(nr < segmentStart) return false;
+		if(segmentEnd >= 0 && nr >= segmentEnd){
+			segmentDone = true;
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Reads a single packet from the stream and decodes it if needed given the decode mode
+	 * @return false if the end of the stream has been reached
+	 * @throws Exception
+	 */
+	private boolean readPacket() throws Exception{
+		if(segmentDone) return false;
+		IPacket packet = decoder.nextPacket();
+		if(packet == null) return false;
+		if(nominalEnd >= 0 && segmentEnd < 0 && packet.isKeyPacket() && decoder.getFrameNr(packet) >= nominalEnd){
+			// reached the first keyframe of the next segment 
+			segmentEnd = fileStart + decoder.getFrameNr(packet);
+			if(mode == DecodeMode.KEYFRAMES || mode == DecodeMode.GOP) return false;
+		}
+		// pictures still buffered by the decoder are emitted until a picture of the next segment is decoded 
+		if(segmentEnd >= 0 && ++packetsAfterEnd > MAX_GOP_PACKETS) return false;
+		lastRead = System.currentTimeMillis();
+		long packetMs = decoder.getTimestamp(packet);
+		if(firstPacketMs < 0) firstPacketMs = packetMs;
+		decodeLag = Math.max(0, (lastRead - openedAt) - (packetMs - firstPacketMs));
+		
+		if(mode == DecodeMode.ALL){
+			// count frames just like they are decoded
+			for(IVideoPicture picture : decoder.decode(packet)){
+				// segments use the timestamp because pictures preceding the first keyframe may be dropped
+				long nr = segment != null ? fileStart + decoder.getFrameNr(picture) : frameNr;
+				if(isSelected(nr)) emit(picture, nr);
+				frameNr++;
+			}
+			return true;
+		}
+		
+		long packetNr = fileStart + decoder.getFrameNr(packet);
+		if(mode == DecodeMode.KEYFRAMES){
+			if(packet.isKeyPacket()) for(IVideoPicture picture : decoder.decode(packet)){
+				long nr = fileStart + decoder.getFrameNr(picture);
+				if(inSegment(nr)) emit(picture, nr);
+			}
+		}else if(mode == DecodeMode.NONREF){
+			for(IVideoPicture picture : decoder.decode(packet)){
+				long nr = fileStart + decoder.getFrameNr(picture);
+				if(isSelected(nr)) emit(picture, nr);
+			}
+		}else if(mode == DecodeMode.GOP){
+			if(packet.isKeyPacket() || gop.size() >= MAX_GOP_PACKETS){
+				if(gopSelected) decodeGop();
+				gop.clear();
+				gopSelected = false;
+			}
+			gop.add(IPacket.make(packet, true));
+			if(isSelected(packetNr)) gopSelected = true;
+		}
+		frameNr = Math.max(frameNr, packetNr + 1);
+		return true;
+	}
+	
+	/**
+	 * Decodes the buffered group of pictures and emits the selected frames
+	 * @throws Exception
+	 */
+	private void decodeGop() throws Exception{
+		for(IPacket packet : gop){
+			for(IVideoPicture picture : decoder.decode(packet)){
+				long nr = fileStart + decoder.getFrameNr(picture);
+				if(isSelected(nr)) emit(picture, nr);
+			}
+		}
+		gop.clear();
+		gopSelected = false;
+	}
+	
+	/**
+	 * Emits the selected pictures still buffered by the decoder (i.e. delayed B-frames) once no more packets are read 
+	 * @throws Exception
+	 */
+	private void drain() throws Exception{
+		for(IVideoPicture picture : decoder.flush()){
+			long nr = mode == DecodeMode.ALL && segment == null ? frameNr++ : fileStart + decoder.getFrameNr(picture);
+			boolean selected = mode == DecodeMode.KEYFRAMES ? inSegment(nr) : isSelected(nr);
+			if(selected) emit(picture, nr);
+		}
+	}
+	
+	/**
+	 * Closes the current stream or file and deletes the file if it was downloaded to the tmp dir
+	 */
+	private void close(){
+		if(decoder == null) return;
+		decoder.close();
+		decoder = null;
+		gop.clear();
+		if(fallbackFile != null && !fallbackFile.delete()){
+			logger.warn("Unable to delete "+fallbackFile);
+		}
+		fallbackFile = null;
+		if(videoList != null && completedFiles != null){
+			completedFiles.add(streamLocation);
+		}else if(videoList != null){
+			File localFile = new File(streamLocation);
+			if(localFile.getAbsolutePath().startsWith(tmpDir) && (segment == null || segment.isLocalCopy())){
+				localFile.delete();
+			}
+		}
+	}
+	
+	private boolean isSelected(long nr){
+		return inSegment(nr) && nr % frameSkip < groupSize;
+	}
+	
+	/**
+	 * Converts the decoded picture and hands it over for encoding. A picture that cannot be converted is dropped, 
+	 * the stream itself is not affected.
+	 * @param picture
+	 * @param nr
+	 * @throws InterruptedException
+	 */
+	private void emit(IVideoPicture picture, long nr) throws InterruptedException{
+		decoded.incrementAndGet();
+		long timestamp = picture.getTimeStamp() / 1000;
+		if(frameMs > 0 ) timestamp = nr * frameMs;
+		BufferedImage image;
+		try{
+			image = decoder.toImage(picture);
+		}catch(Exception e){
+			logger.warn("Unable to convert frame "+nr+" of "+streamLocation+", dropping it: "+e.getMessage());
+			return;
+		}
+		process(image, nr, timestamp);
+	}
+	
+	/**
+	 * Encodes the image and puts it in the queue, either directly or through the encoder pool. An image that cannot
+	 * be encoded is dropped.
+	 * @param image
+	 * @param nr
+	 * @param timestamp
+	 * @throws InterruptedException
+	 */
+	private void process(final BufferedImage image, final long nr, final long timestamp) throws InterruptedException{
+		final String id = streamId;
+		final String location = streamLocation;
+		if(encoders == null){
+			Frame frame;
+			try{
+				frame = createFrame(image, id, nr, timestamp, location);
+			}catch(Exception e){
+				logger.warn("Unable to encode frame "+nr+" of "+location+", dropping it: "+e.getMessage());
+				return;
+			}
+			enqueue(frame, true);
+		}else{
+			handOver(encoding, encoders.submit(new Callable<Frame>(){
+				@Override
+				public Frame call() throws Exception {
+					return createFrame(image, id, nr, timestamp, location);
+				}
+			}));
+		}
+	}
+	
+	private Frame createFrame(BufferedImage image, String id, long nr, long timestamp, String location) throws IOException{
+		long start = System.nanoTime();
+		byte[] buffer = ImageUtils.imageToBytes(image, imageType);
+		encodeNanos.addAndGet(System.nanoTime() - start);
+		encoded.incrementAndGet();
+		Frame newFrame = new Frame(id, nr, imageType, buffer, timestamp, new Rectangle(0, 0, image.getWidth(), image.getHeight()));
+		newFrame.getMetadata().put("uri", location);
+		return newFrame;
+	}
+	
+	/**
+	 * Puts the frame in the frame queue
+	 * @param frame
+	 * @param park true if the frame is handed over by the decoding thread, in which case it is parked when the queue is full
+	 * and the reader is executed in slices
+	 * @throws InterruptedException
+	 */
+	private void enqueue(Frame frame, boolean park) throws InterruptedException{
+		long start = System.nanoTime();
+		if(park) handOver(frameQueue, frame);
+		else frameQueue.put(frame);
+		enqueueNanos.addAndGet(System.nanoTime() - start);
+		enqueued.incrementAndGet();
+    	// enforced throttling
+    	if(sleepTime > 0) Utils.sleep(sleepTime);
+	}
+	
+	/**
+	 * Puts the item in the queue. If the reader is executed in slices and putting the item would block it is parked instead,
+	 * items following a parked item are parked as well to keep their order.
+	 * @param queue
+	 * @param item
+	 * @throws InterruptedException
+	 */
+	private <T> void handOver(BlockingQueue<T> queue, T item) throws InterruptedException{
+		Parked<T> handover = new Parked<T>(queue, item);
+		if(sliced && (!parked.isEmpty() || !handover.tryPut())) parked.add(handover);
+		else if(!sliced) queue.put(item);
+	}
+	
+	/**
+	 * Hands over the parked items in order
+	 * @return true if all parked items have been handed over
+	 * @throws InterruptedException
+	 */
+	private boolean unpark() throws InterruptedException{
+		while(!parked.isEmpty()){
+			if(!parked.peek().tryPut()) return false;
+			parked.poll();
+		}
+		return true;
+	}
+	
+	/**
+	 * An item that could not be put in its queue without blocking 
+	 */
+	private static class Parked<T> {
+		
+		private BlockingQueue<T> queue;
+		private T item;
+		
+		private Parked(BlockingQueue<T> queue, T item){
+			this.queue = queue;
+			this.item = item;
+		}
+		
+		/**
+		 * Puts the item in the queue unless that would block, queues with a drop policy never block. The reader
+		 * is the only producer for its queues so a queue with remaining capacity will accept the item.
+		 * @return true if the item was put in the queue
+		 * @throws InterruptedException
+		 */
+		private boolean tryPut() throws InterruptedException{
+			boolean blocking = !(queue instanceof StreamQueue) || ((StreamQueue<?>)queue).getPolicy() == DropPolicy.BLOCK;
+			if(blocking && queue.remainingCapacity() == 0) return false;
+			queue.put(item);
+			return true;
+		}
+	}
+	
+	/**
+	 * Takes encoded frames in the order they were decoded and puts them in the frame queue 
+	 */
+	private class FrameOrderer implements Runnable {
+		
+		@Override
+		public void run() {
+			while(running || !encoding.isEmpty()) try{
+				Future<Frame> frame = encoding.poll(100, TimeUnit.MILLISECONDS);
+				if(frame == null) continue;
+				enqueue(frame.get(), false);
+			}catch(ExecutionException e){
+				logger.warn("Unable to encode frame due to: "+e.getMessage(), e);
+			}catch(InterruptedException e){
+				break;
+			}
+		}
+	}
+	
 	/**
 	 * Tells the StreamReader to stop reading frames
 	 */
 	public void stop(){
 		running = false;
+		stopped = true;
 	}
 	
 	/**
@@ -193,7 +755,7 @@ public class StreamReader extends MediaListenerAdapter implements Runnable {
 		// kill this thread if the last frame read is to long ago (means Xuggler missed the EoF) and clear resources 
 		if(lastRead > 0 && System.currentTimeMillis() - lastRead > 3000){
 			running = false;
-			if(mediaReader != null && mediaReader.getContainer() != null) mediaReader.getContainer().close();
+			if(decoder != null) decoder.close();
 			return this.running;
 		}
 		return true;
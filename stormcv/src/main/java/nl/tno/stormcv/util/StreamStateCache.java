@@ -0,0 +1,121 @@
+package nl.tno.stormcv.util;
+
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+
+/**
+ * Bounded container for state kept per stream by operations (i.e. background models). States are created on first use and evicted
+ * when the maximum number of streams is exceeded (least recently used first) or when a stream has not been used for the idle time.
+ * Evicted states are passed to evicted(...) which can be used to store them. The cache is thread safe; callers that modify a state
+ * should synchronize on the state itself so different streams can be processed concurrently while each stream is processed by a
+ * single thread at a time.
+ *
+ * @author Corne Versloot
+ *
+ * @param <S> the type of state kept for each stream
+ */
+public abstract class StreamStateCache<S> {
+
+	private Logger logger = LoggerFactory.getLogger(getClass());
+	private Cache<String, S> states;
+
+	/**
+	 * Creates a cache
+	 * @param maxStreams the maximum number of streams to keep state for
+	 * @param idleMs the time after which the state of a stream that has not been used is evicted
+	 */
+	public StreamStateCache(int maxStreams, long idleMs){
+		states = CacheBuilder.newBuilder()
+				.maximumSize(Math.max(1, maxStreams))
+				.expireAfterAccess(idleMs, TimeUnit.MILLISECONDS)
+				.removalListener(new RemovalListener<String, S>(){
+					@Override
+					public void onRemoval(RemovalNotification<String, S> notification) {
+						S state = notification.getValue();
+						if(state == null) return;
+						try{
+							synchronized(state){
+								evicted(notification.getKey(), state);
+							}
+						}catch(Exception e){
+							logger.warn("Unable to handle eviction of state for "+notification.getKey()+": "+e.getMessage(), e);
+						}
+					}
+				})
+				.build();
+	}
+
+	/**
+	 * Creates the state for a stream that has no state in this cache
+	 * @param streamId
+	 * @return the new state
+	 * @throws Exception
+	 */
+	protected abstract S create(String streamId) throws Exception;
+
+	/**
+	 * Called when the state of a stream is evicted or removed, does nothing by default. The caller holds the lock on the state.
+	 * @param streamId
+	 * @param state
+	 * @throws Exception
+	 */
+	protected void evicted(String streamId, S state) throws Exception{ }
+
+	/**
+	 * Returns the state of the provided stream, creating it if needed
+	 * @param streamId
+	 * @return
+	 * @throws Exception if the state could not be created
+	 */
+	public S get(final String streamId) throws Exception{
+		try {
+			return states.get(streamId, new Callable<S>(){
+				@Override
+				public S call() throws Exception {
+					return create(streamId);
+				}
+			});
+		} catch (ExecutionException e) {
+			throw e.getCause() instanceof Exception ? (Exception)e.getCause() : e;
+		}
+	}
+
+	/**
+	 * @return a view on the states currently in the cache
+	 */
+	public Map<String, S> asMap(){
+		return states.asMap();
+	}
+
+	/**
+	 * Evicts idle states, this also happens during normal use of the cache
+	 */
+	public void cleanUp(){
+		states.cleanUp();
+	}
+
+	/**
+	 * @return the number of streams with state
+	 */
+	public long size(){
+		return states.size();
+	}
+
+	/**
+	 * Removes all states, each of them is passed to evicted(...)
+	 */
+	public void clear(){
+		states.invalidateAll();
+		states.cleanUp();
+	}
+}
@@ -2,7 +2,6 @@ package nl.tno.stormcv.util;
 
 import java.awt.image.BufferedImage;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.util.List;
 
@@ -14,6 +13,7 @@ import nl.tno.stormcv.util.connector.FileConnector;
 
 import com.xuggle.xuggler.ICodec;
 import com.xuggle.xuggler.IContainer;
+import com.xuggle.xuggler.IContainerFormat;
 import com.xuggle.xuggler.IMetaData;
 import com.xuggle.xuggler.IPacket;
 import com.xuggle.xuggler.IRational;
@@ -30,6 +30,12 @@ import com.xuggle.xuggler.IStreamCoder;
  * the framerate is very low (i.e. the spout only grabs a frame every second or so). It is 
  * possible to provide an additional speed factor (default = 1.0) to speed up or slow down the video being written.
  * 
+ * Images are converted to YUV420P directly from their BGR pixels if possible, other images are converted by a Xuggler converter.
+ * The converter, picture and packet used for encoding are reused for all frames written by the same writer.
+ * 
+ * If no location is provided the video is written to memory (see {@link MemoryIOHandler}) and the bytes are returned by 
+ * {@link #addFrames(List)} once the video is complete.
+ * 
  * @author Corne Versloot
  *
  */
@@ -42,6 +48,7 @@ public class StreamWriter {
 	private String location;
 	private String container;
 	private File currentFile;
+	private MemoryIOHandler buffer; // used instead of a file if no location was provided
 	private long frameCount;
 	private int fileCount;
 	private long nrFramesVideo;
@@ -53,6 +60,11 @@ public class StreamWriter {
 	private IContainer writer;
 	private int frameRate;
 	private String[] ffmpegParams;
+	private IConverter converter;
+	private int converterType;
+	private IVideoPicture picture;
+	private IPacket packet;
+	private byte[] yuv;
 	
 	/**
 	 * Creates a StreamWriter which will write provided frames to the location using the provided
@@ -93,14 +105,23 @@ public class StreamWriter {
 	}
 	
 	/**
-	 * Make a video writer for the given path and dimensions
-	 * @param path
+	 * Make a video writer for the given path or {@link MemoryIOHandler} and dimensions
+	 * @param target
 	 * @param width
 	 * @param height
+	 * @throws IOException 
 	 */
-	private void makeWriter(String path, int width, int height){
+	private void makeWriter(Object target, int width, int height) throws IOException{
 		writer = IContainer.make();
-		writer.open(path, IContainer.Type.WRITE, null);
+		IContainerFormat format = null;
+		if(target instanceof MemoryIOHandler){
+			// the format cannot be derived from a filename
+			format = IContainerFormat.make();
+			format.setOutputFormat(container, "chunk."+container, null);
+		}
+		if(writer.open(target, IContainer.Type.WRITE, format) < 0){
+			throw new IOException("Unable to open video writer for "+target);
+		}
 		
 		ICodec videoCodec = ICodec.findEncodingCodec(codec);
 		IStream videoStream = writer.addNewStream(videoCodec);
@@ -130,6 +151,9 @@ public class StreamWriter {
 		}
 		writer.writeHeader();
 		this.frameTime = 0;
+		this.packet = IPacket.make();
+		this.picture = IVideoPicture.make(Type.YUV420P, width, height);
+		this.converter = null;
 	}
 	
 	/**
@@ -145,9 +169,15 @@ public class StreamWriter {
 			frameRate = 1000 / frameRate;
 			frameRate *= speed;
 			BufferedImage frame = frames.get(0).getImage();
-			currentFile = new File(tmpDir, frames.get(0).getStreamId()+"_"+fileCount+"."+this.container);
-			logger.info("Writing TMP video to: "+currentFile);
-			makeWriter(currentFile.getAbsolutePath(), frame.getWidth(), frame.getHeight());
+			if(location == null){
+				if(buffer == null) buffer = new MemoryIOHandler();
+				buffer.reset();
+				makeWriter(buffer, frame.getWidth(), frame.getHeight());
+			}else{
+				currentFile = new File(tmpDir, frames.get(0).getStreamId()+"_"+fileCount+"."+this.container);
+				logger.info("Writing TMP video to: "+currentFile);
+				makeWriter(currentFile.getAbsolutePath(), frame.getWidth(), frame.getHeight());
+			}
 		}
 		// add frames to video
 		for(Frame frame : frames){
@@ -158,12 +188,7 @@ public class StreamWriter {
 		if(frameCount >= nrFramesVideo){
 			this.close();
 			if(location == null){
-				FileInputStream fis = new FileInputStream(currentFile);
-				byte[] bytes = new byte[(int)currentFile.length()];
-				fis.read(bytes);
-				fis.close();
-				if(!currentFile.delete()) currentFile.deleteOnExit();
-				return bytes;
+				return buffer.toByteArray();
 			}
 		}
 		return null;
@@ -174,9 +199,23 @@ public class StreamWriter {
 	 * @param image
 	 */
 	private void addImage(BufferedImage image){
-		IPacket packet = IPacket.make();
-		IConverter converter = ConverterFactory.createConverter(image, coder.getPixelType());
-		IVideoPicture frame = converter.toPicture(image, Math.round(frameTime));
+		IVideoPicture frame;
+		byte[] bgr = ImageUtils.getBGRBytes(image);
+		if(bgr != null && image.getWidth() == coder.getWidth() && image.getHeight() == coder.getHeight()
+				&& image.getWidth() % 2 == 0 && image.getHeight() % 2 == 0){
+			// convert directly into the reused picture
+			yuv = ImageUtils.bgrToYUV420P(bgr, image.getWidth(), image.getHeight(), yuv);
+			int length = image.getWidth() * image.getHeight() * 3 / 2;
+			picture.put(yuv, 0, 0, length);
+			picture.setComplete(true, Type.YUV420P, image.getWidth(), image.getHeight(), Math.round(frameTime));
+			frame = picture;
+		}else{
+			if(converter == null || converterType != image.getType()){
+				converter = ConverterFactory.createConverter(image, coder.getPixelType());
+				converterType = image.getType();
+			}
+			frame = converter.toPicture(image, Math.round(frameTime));
+		}
 		
 		if (coder.encodeVideo(packet, frame, 0) < 0) {
 			throw new RuntimeException("Unable to encode video.");
@@ -194,7 +233,7 @@ public class StreamWriter {
 	public void close(){
 		if(writer != null){
 			// write last packets
-			IPacket packet = IPacket.make();
+			IPacket packet = this.packet;
 			do{
 				coder.encodeVideo(packet, null, 0);
 				if(packet.isComplete()){
@@ -0,0 +1,139 @@
+package nl.tno.stormcv.util;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map.Entry;
+
+/**
+ * A hashed timer wheel used to expire items after a fixed amount of time. Time is divided into ticks of tickMs milliseconds
+ * and each item is put in the slot of the tick it expires in (deadlineTick % nrSlots). Scheduling, rescheduling and cancellation
+ * are O(1) operations, expiration only visits the slots of the ticks that passed since the previous call to advance.
+ * The wheel does not have its own thread; the owner must call advance periodically (for example on Storm tick tuples).
+ *
+ * Items are compared on identity, not equality. This class is not thread safe.
+ *
+ * @author Corne Versloot
+ *
+ * @param <T>
+ */
+public class TimerWheel<T> {
+
+	private long tickMs;
+	private List<IdentityHashMap<T, Long>> slots;
+	private LinkedHashMap<Key, Long> deadlines; // insertion ordered, the first item is the one scheduled longest ago
+	private long currentTick;
+
+	/**
+	 * Creates a wheel with the provided tick duration and number of slots. The number of slots should cover
+	 * the typical delay used to schedule items to avoid items being visited more than once.
+	 * @param tickMs
+	 * @param nrSlots
+	 */
+	public TimerWheel(long tickMs, int nrSlots){
+		this.tickMs = Math.max(1, tickMs);
+		this.slots = new ArrayList<IdentityHashMap<T, Long>>(nrSlots);
+		for(int i=0; i<Math.max(1, nrSlots); i++) slots.add(new IdentityHashMap<T, Long>());
+		this.deadlines = new LinkedHashMap<Key, Long>();
+		this.currentTick = System.currentTimeMillis() / this.tickMs;
+	}
+
+	/**
+	 * Schedules the item to expire after the provided delay. If the item was already scheduled it is
+	 * rescheduled and will move to the end of the order used by {@link #oldest()}.
+	 * @param item
+	 * @param delayMs
+	 */
+	public void schedule(T item, long delayMs){
+		cancel(item);
+		long deadline = (System.currentTimeMillis() + delayMs + tickMs - 1) / tickMs;
+		if(deadline <= currentTick) deadline = currentTick + 1;
+		slots.get((int)(deadline % slots.size())).put(item, deadline);
+		deadlines.put(new Key(item), deadline);
+	}
+
+	/**
+	 * Removes the item from the wheel
+	 * @param item
+	 * @return true if the item was scheduled
+	 */
+	public boolean cancel(T item){
+		Long deadline = deadlines.remove(new Key(item));
+		if(deadline == null) return false;
+		slots.get((int)(deadline % slots.size())).remove(item);
+		return true;
+	}
+
+	/**
+	 * Returns true if the item is currently scheduled
+	 * @param item
+	 * @return
+	 */
+	public boolean contains(T item){
+		return deadlines.containsKey(new Key(item));
+	}
+
+	/**
+	 * Returns the item that was (re)scheduled longest ago or null if the wheel is empty
+	 * @return
+	 */
+	public T oldest(){
+		if(deadlines.isEmpty()) return null;
+		return deadlines.keySet().iterator().next().item;
+	}
+
+	/**
+	 * Moves the wheel to the current time and returns (and removes) all items that expired
+	 * @return list with expired items, in no particular order
+	 */
+	public List<T> advance(){
+		List<T> expired = new ArrayList<T>();
+		long nowTick = System.currentTimeMillis() / tickMs;
+		if(nowTick <= currentTick) return expired;
+
+		// visit each slot at most once, even if more than a full rotation passed
+		long ticks = Math.min(nowTick - currentTick, slots.size());
+		for(long tick = nowTick - ticks + 1; tick <= nowTick; tick++){
+			Iterator<Entry<T, Long>> iterator = slots.get((int)(tick % slots.size())).entrySet().iterator();
+			while(iterator.hasNext()){
+				Entry<T, Long> entry = iterator.next();
+				if(entry.getValue() <= nowTick){
+					iterator.remove();
+					deadlines.remove(new Key(entry.getKey()));
+					expired.add(entry.getKey());
+				}
+			}
+		}
+		currentTick = nowTick;
+		return expired;
+	}
+
+	public int size(){
+		return deadlines.size();
+	}
+
+	/**
+	 * Identity based key used in the ordered deadline map
+	 */
+	private class Key {
+
+		private T item;
+
+		private Key(T item){
+			this.item = item;
+		}
+
+		@Override
+		public int hashCode(){
+			return System.identityHashCode(item);
+		}
+
+		@SuppressWarnings("unchecked")
+		@Override
+		public boolean equals(Object other){
+			return other instanceof TimerWheel.Key && ((Key)other).item == item;
+		}
+	}
+}
@@ -0,0 +1,110 @@
+package nl.tno.stormcv.util;
+
+import java.io.IOException;
+
+import com.xuggle.xuggler.Global;
+import com.xuggle.xuggler.IContainer;
+import com.xuggle.xuggler.IContainerFormat;
+import com.xuggle.xuggler.IPacket;
+import com.xuggle.xuggler.IStream;
+import com.xuggle.xuggler.IStreamCoder;
+
+import nl.tno.stormcv.model.VideoChunk;
+import nl.tno.stormcv.operation.VideoToFramesOp;
+
+/**
+ * Cuts the video stream read by a {@link VideoDecoder} into {@link VideoChunk}s without decoding it. The compressed packets of one
+ * or more complete GOP's (starting at a keyframe) are remuxed into a small container in memory so each chunk can be decoded 
+ * independently, for example by the {@link VideoToFramesOp}. The sequenceNr of a chunk is the frame number of its first frame.
+ * Packets preceding the first keyframe of the stream are skipped because they cannot be decoded without their reference frames.
+ * 
+ * @author Corne Versloot
+ *
+ */
+public class VideoChunker {
+
+	private VideoDecoder decoder;
+	private String container;
+	private int gopsPerChunk;
+	private IPacket next; // the keyframe starting the next chunk
+	private MemoryIOHandler buffer = new MemoryIOHandler(1024 * 1024);
+	
+	/**
+	 * Creates a chunker for the provided decoder
+	 * @param decoder
+	 * @param container the container used for the chunks (i.e. mkv, flv)
+	 * @param gopsPerChunk the number of GOP's put in each chunk
+	 */
+	public VideoChunker(VideoDecoder decoder, String container, int gopsPerChunk){
+		this.decoder = decoder;
+		this.container = container;
+		this.gopsPerChunk = Math.max(1, gopsPerChunk);
+	}
+	
+	/**
+	 * Reads the next chunk from the stream
+	 * @param streamId the streamId of the chunk
+	 * @return the chunk or null if the end of the stream has been reached
+	 * @throws IOException if the chunk could not be written
+	 */
+	public VideoChunk next(String streamId) throws IOException{
+		IPacket first = next;
+		next = null;
+		if(first == null){
+			IPacket packet;
+			while((packet = decoder.nextPacket()) != null && !packet.isKeyPacket()) ;
+			if(packet == null) return null;
+			first = IPacket.make(packet, true);
+		}
+		
+		IContainer writer = IContainer.make();
+		IContainerFormat format = IContainerFormat.make();
+		// the filename is only used to find the format if the container is not a format name (i.e. mkv)
+		format.setOutputFormat(container, "chunk."+container, null);
+		buffer.reset();
+		if(writer.open(buffer, IContainer.Type.WRITE, format) < 0){
+			throw new IOException("Unable to create "+container+" chunk");
+		}
+		try{
+			IStream input = decoder.getStream();
+			IStreamCoder coder = IStreamCoder.make(IStreamCoder.Direction.ENCODING, decoder.getStreamCoder());
+			coder.setTimeBase(input.getTimeBase());
+			if(format.getOutputFlag(IContainerFormat.Flags.FLAG_GLOBALHEADER)){
+				coder.setFlag(IStreamCoder.Flags.FLAG_GLOBAL_HEADER, true);
+			}
+			writer.addNewStream(coder);
+			if(writer.writeHeader() < 0) throw new IOException("Unable to write header of "+container+" chunk");
+			
+			long frameNr = decoder.getFrameNr(first);
+			long offset = first.getDts() != Global.NO_PTS ? first.getDts() : first.getPts();
+			long frames = 0;
+			int gops = 0;
+			IPacket packet = first;
+			while(packet != null){
+				if(packet.isKeyPacket() && ++gops > gopsPerChunk){
+					next = IPacket.make(packet, true);
+					break;
+				}
+				write(writer, packet, offset);
+				frames++;
+				packet = decoder.nextPacket();
+			}
+			writer.writeTrailer();
+			return new VideoChunk(streamId, frameNr, frames, buffer.toByteArray(), container);
+		}finally{
+			writer.close();
+		}
+	}
+	
+	/**
+	 * Writes the packet to the chunk with timestamps relative to the start of the chunk
+	 */
+	private void write(IContainer writer, IPacket packet, long offset) throws IOException{
+		packet.setStreamIndex(0);
+		if(packet.getPts() != Global.NO_PTS) packet.setPts(packet.getPts() - offset);
+		if(packet.getDts() != Global.NO_PTS) packet.setDts(packet.getDts() - offset);
+		if(writer.writePacket(packet) < 0){
+			throw new IOException("Unable to write packet to "+container+" chunk");
+		}
+	}
+}
@@ -0,0 +1,342 @@
+package nl.tno.stormcv.util;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.xuggle.xuggler.Global;
+import com.xuggle.xuggler.ICodec;
+import com.xuggle.xuggler.IContainer;
+import com.xuggle.xuggler.IPacket;
+import com.xuggle.xuggler.IPixelFormat;
+import com.xuggle.xuggler.IStream;
+import com.xuggle.xuggler.IStreamCoder;
+import com.xuggle.xuggler.IVideoPicture;
+import com.xuggle.xuggler.IVideoResampler;
+import com.xuggle.xuggler.video.ConverterFactory;
+import com.xuggle.xuggler.video.IConverter;
+
+/**
+ * Low level decoder for the first video stream in a file or url which, unlike Xuggler's IMediaReader, can seek within the file and
+ * provides access to the packets of the stream. Pictures are decoded one by one using {@link #next()} or per packet using 
+ * {@link #nextPacket()} and {@link #decode(IPacket)}, they are converted to BGR images only when requested using
+ * {@link #toImage(IVideoPicture)}. This allows readers to skip the decoding and conversion of frames they do not need. 
+ * Frame numbers are derived from the timestamp of pictures or packets and the frame rate of the stream, this matches the frame 
+ * numbers assigned by counting decoded pictures for videos with a constant frame rate.
+ * 
+ * A decoder can also read from an InputStream which avoids writing remote files to disk before decoding them. This only works for
+ * containers that can be read sequentially (see {@link #isStreamable(String)}), seeking is not possible on such a decoder.
+ *
+ * @author Corne Versloot
+ *
+ */
+public class VideoDecoder {
+
+	private static final int MAX_DELAYED = 32; // the maximum number of pictures buffered by a decoder
+	private static final String[] STREAMABLE = new String[]{".ts", ".flv", ".mkv", ".webm", ".mpg", ".mpeg", ".m2v", ".h264"};
+	
+	private IContainer container;
+	private IStreamCoder coder;
+	private int streamIndex = -1;
+	private IVideoResampler resampler;
+	private IConverter converter;
+	private IPacket packet;
+	private IPacket pushedBack; // packet returned by the next call to nextPacket
+	private List<IVideoPicture> pending = new ArrayList<IVideoPicture>();
+	private boolean flushed = false;
+	private double frameRate;
+	private double timeBase;
+	private long startPts = 0;
+	private InputStream input; // the stream read from, null if a file or url is read
+
+	/**
+	 * Opens the provided file or url and prepares the decoder for its first video stream
+	 * @param location
+	 * @throws IOException if the file cannot be opened or does not contain video
+	 */
+	public VideoDecoder(String location) throws IOException{
+		container = IContainer.make();
+		if(container.open(location, IContainer.Type.READ, null) < 0){
+			throw new IOException("Unable to open "+location);
+		}
+		init(location);
+	}
+	
+	/**
+	 * Prepares the decoder for the first video stream read from the provided InputStream. The stream is closed when
+	 * the decoder is closed.
+	 * @param in
+	 * @param name the name of the stream, only used in messages
+	 * @throws IOException if the stream cannot be opened or does not contain video
+	 */
+	public VideoDecoder(InputStream in, String name) throws IOException{
+		this.input = in;
+		container = IContainer.make();
+		if(container.open(in, null) < 0){
+			close();
+			throw new IOException("Unable to open stream "+name);
+		}
+		init(name);
+	}
+	
+	/**
+	 * Checks if the container of the provided file can be decoded from a stream. Containers like mp4, mov and avi often
+	 * have their index at the end of the file and require seeking so they must be read from a file.
+	 * @param location
+	 * @return
+	 */
+	public static boolean isStreamable(String location){
+		String name = location.toLowerCase();
+		for(String ext : STREAMABLE){
+			if(name.endsWith(ext)) return true;
+		}
+		return false;
+	}
+	
+	private void init(String location) throws IOException{
+		for(int s=0; s < container.getNumStreams(); s++){
+			IStreamCoder streamCoder = container.getStream(s).getStreamCoder();
+			if(streamCoder.getCodecType() == ICodec.Type.CODEC_TYPE_VIDEO){
+				streamIndex = s;
+				coder = streamCoder;
+				break;
+			}
+		}
+		if(coder == null || coder.open(null, null) < 0){
+			close();
+			throw new IOException("Unable to open video stream in "+location);
+		}
+		IStream stream = container.getStream(streamIndex);
+		timeBase = stream.getTimeBase().getDouble();
+		frameRate = coder.getFrameRate() != null ? coder.getFrameRate().getDouble() : 0;
+		if(frameRate <= 0 && stream.getFrameRate() != null) frameRate = stream.getFrameRate().getDouble();
+		if(stream.getStartTime() != Global.NO_PTS) startPts = stream.getStartTime();
+		if(coder.getPixelType() != IPixelFormat.Type.BGR24){
+			resampler = IVideoResampler.make(coder.getWidth(), coder.getHeight(), IPixelFormat.Type.BGR24,
+					coder.getWidth(), coder.getHeight(), coder.getPixelType());
+		}
+		packet = IPacket.make();
+	}
+
+	/**
+	 * @return the frame rate of the video stream (0 if unknown)
+	 */
+	public double getFrameRate(){
+		return frameRate;
+	}
+
+	/**
+	 * @return the number of ms between frames or -1 if the frame rate is unknown
+	 */
+	public int getFrameMs(){
+		if(frameRate <= 0) return -1;
+		return (int)Math.floor(1000f/frameRate);
+	}
+
+	/**
+	 * Returns the number of frames in the video based on its duration and frame rate
+	 * @return the number of frames or -1 if it is unknown
+	 */
+	public long getFrameCount(){
+		if(frameRate <= 0) return -1;
+		IStream stream = container.getStream(streamIndex);
+		if(stream.getDuration() != Global.NO_PTS && stream.getDuration() > 0){
+			return Math.round(stream.getDuration() * timeBase * frameRate);
+		}
+		if(container.getDuration() != Global.NO_PTS && container.getDuration() > 0){
+			return Math.round(container.getDuration() / 1000000d * frameRate);
+		}
+		return -1;
+	}
+	
+	public int getWidth(){
+		return coder.getWidth();
+	}
+	
+	/**
+	 * @return the (decoding) coder of the video stream, used to copy the stream parameters when remuxing
+	 */
+	public IStreamCoder getStreamCoder(){
+		return coder;
+	}
+	
+	/**
+	 * @return the video stream read by this decoder
+	 */
+	public IStream getStream(){
+		return container.getStream(streamIndex);
+	}
+
+	public int getHeight(){
+		return coder.getHeight();
+	}
+
+	/**
+	 * Returns the frame number of the provided picture based on its timestamp and the frame rate of the stream
+	 * @param picture
+	 * @return
+	 */
+	public long getFrameNr(IVideoPicture picture){
+		double seconds = picture.getTimeStamp() / 1000000d - startPts * timeBase;
+		return Math.round(seconds * frameRate);
+	}
+
+	/**
+	 * Returns the frame number of the provided packet based on its presentation timestamp and the frame rate of the stream
+	 * @param packet
+	 * @return
+	 */
+	public long getFrameNr(IPacket packet){
+		long pts = packet.getPts() != Global.NO_PTS ? packet.getPts() : packet.getDts();
+		return Math.round((pts - startPts) * timeBase * frameRate);
+	}
+	
+	/**
+	 * Returns the presentation time of the provided packet in ms relative to the start of the stream
+	 * @param packet
+	 * @return
+	 */
+	public long getTimestamp(IPacket packet){
+		long pts = packet.getPts() != Global.NO_PTS ? packet.getPts() : packet.getDts();
+		return Math.round((pts - startPts) * timeBase * 1000);
+	}
+	
+	/**
+	 * Tells the decoder to skip non reference frames (frames not used to decode other frames). Skipped frames 
+	 * will not be returned by the decode functions.
+	 * @param skip
+	 */
+	public void skipNonReference(boolean skip){
+		coder.setProperty("skip_frame", skip ? "noref" : "default");
+	}
+	
+	/**
+	 * Seeks to the last keyframe at or before the provided frame number. Subsequent calls to {@link #next()} will
+	 * return the pictures starting at that keyframe.
+	 * @param frameNr
+	 * @return true if the seek was successful, always false when reading from a stream
+	 */
+	public boolean seek(long frameNr){
+		if(frameRate <= 0 || input != null) return false;
+		long timestamp = startPts + (long)Math.floor(frameNr / frameRate / timeBase);
+		pending.clear();
+		pushedBack = null;
+		flushed = false;
+		return container.seekKeyFrame(streamIndex, timestamp, IContainer.SEEK_FLAG_BACKWARDS) >= 0;
+	}
+
+	/**
+	 * Moves to the first keyframe at or after the provided frame number. The next call to {@link #nextPacket()} will return
+	 * the packet of that keyframe. 
+	 * @param frameNr
+	 * @return the frame number of the keyframe or -1 if there is no such keyframe
+	 */
+	public long seekKeyFrameAfter(long frameNr){
+		if(!seek(frameNr)) return -1;
+		IPacket next;
+		while((next = nextPacket()) != null){
+			if(next.isKeyPacket() && getFrameNr(next) >= frameNr){
+				pushedBack = IPacket.make(next, true);
+				return getFrameNr(next);
+			}
+		}
+		return -1;
+	}
+	
+	/**
+	 * Decodes the next picture from the video stream.
+	 * @return the next complete picture or null if the end of the stream has been reached
+	 */
+	public IVideoPicture next(){
+		while(pending.isEmpty()){
+			IPacket next = nextPacket();
+			if(next == null){
+				if(flushed) return null;
+				flushed = true;
+				pending.addAll(flush());
+				if(pending.isEmpty()) return null;
+			}else pending.addAll(decode(next));
+		}
+		return pending.remove(0);
+	}
+	
+	/**
+	 * Reads the next packet of the video stream without decoding it. The returned packet is reused by the decoder
+	 * and must be copied if it is kept after the next call.
+	 * @return the next packet or null if the end of the stream has been reached
+	 */
+	public IPacket nextPacket(){
+		if(pushedBack != null){
+			IPacket next = pushedBack;
+			pushedBack = null;
+			return next;
+		}
+		while(container.readNextPacket(packet) >= 0){
+			if(packet.getStreamIndex() == streamIndex) return packet;
+		}
+		return null;
+	}
+	
+	/**
+	 * Decodes the provided packet
+	 * @param data a packet of the video stream
+	 * @return the pictures completed by the packet (typically zero or one)
+	 */
+	public List<IVideoPicture> decode(IPacket data){
+		List<IVideoPicture> pictures = new ArrayList<IVideoPicture>(1);
+		int offset = 0;
+		while(offset < data.getSize()){
+			IVideoPicture picture = IVideoPicture.make(coder.getPixelType(), coder.getWidth(), coder.getHeight());
+			int decoded = coder.decodeVideo(picture, data, offset);
+			if(decoded <= 0) break;
+			offset += decoded;
+			if(picture.isComplete()) pictures.add(picture);
+		}
+		return pictures;
+	}
+
+	/**
+	 * Flushes the decoder, should be called when the end of the stream has been reached
+	 * @return the pictures still buffered by the decoder (i.e. delayed B-frames)
+	 */
+	public List<IVideoPicture> flush(){
+		List<IVideoPicture> pictures = new ArrayList<IVideoPicture>();
+		if(coder == null || !coder.isOpen()) return pictures;
+		IPacket empty = IPacket.make();
+		for(int i=0; i<MAX_DELAYED; i++){
+			IVideoPicture picture = IVideoPicture.make(coder.getPixelType(), coder.getWidth(), coder.getHeight());
+			if(coder.decodeVideo(picture, empty, 0) < 0 || !picture.isComplete()) break;
+			pictures.add(picture);
+		}
+		return pictures;
+	}
+	
+	/**
+	 * Converts the provided picture into a BGR image
+	 * @param picture
+	 * @return
+	 */
+	public BufferedImage toImage(IVideoPicture picture){
+		IVideoPicture bgr = picture;
+		if(resampler != null){
+			bgr = IVideoPicture.make(IPixelFormat.Type.BGR24, picture.getWidth(), picture.getHeight());
+			resampler.resample(bgr, picture);
+		}
+		if(converter == null) converter = ConverterFactory.createConverter(ConverterFactory.XUGGLER_BGR_24, bgr);
+		return converter.toImage(bgr);
+	}
+
+	/**
+	 * Closes the decoder and the underlying file or stream
+	 */
+	public void close(){
+		if(coder != null && coder.isOpen()) coder.close();
+		if(container != null) container.close();
+		if(input != null) try{
+			input.close();
+		}catch(IOException e){ }
+		input = null;
+	}
+}
@@ -0,0 +1,140 @@
+package nl.tno.stormcv.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Describes a part of a video file which can be read independently from the other parts. A file split into N segments is divided
+ * in N equal parts based on its duration. The boundaries are aligned on GOP's by the {@link StreamReader}: a segment starts at the
+ * first keyframe at or after its nominal start and ends at the first keyframe at or after the nominal start of the next segment.
+ * Because all readers use the same rule segments never overlap and together cover the entire file. Frames read from a segment
+ * get the frame number and streamId they would get when reading the complete file.
+ *
+ * Segments are described using strings of the form <i>location#segment=index/count</i> so they can be assigned like normal files.
+ * Once downloaded the local file is added: <i>localFile#segment=index/count#source=location</i>.
+ *
+ * @author Corne Versloot
+ *
+ */
+public class VideoSegment {
+
+	private static final String SEGMENT = "#segment=";
+	private static final String SOURCE = "#source=";
+
+	private String location;
+	private String localFile;
+	private int index;
+	private int count;
+
+	public VideoSegment(String location, int index, int count){
+		this.location = location;
+		this.index = index;
+		this.count = count;
+	}
+
+	/**
+	 * Splits the provided file into the provided number of segments
+	 * @param location
+	 * @param count
+	 * @return the descriptions of the segments
+	 */
+	public static List<String> split(String location, int count){
+		List<String> segments = new ArrayList<String>();
+		if(count <= 1) segments.add(location);
+		else for(int i=0; i<count; i++){
+			segments.add(new VideoSegment(location, i, count).toString());
+		}
+		return segments;
+	}
+
+	/**
+	 * Parses the provided segment description
+	 * @param description
+	 * @return the segment or null if the description does not describe a segment (i.e. a normal file)
+	 */
+	public static VideoSegment parse(String description){
+		int s = description.lastIndexOf(SEGMENT);
+		if(s < 0) return null;
+		String file = description.substring(0, s);
+		String rest = description.substring(s + SEGMENT.length());
+		String location = file;
+		String local = null;
+		int src = rest.indexOf(SOURCE);
+		if(src >= 0){
+			local = file;
+			location = rest.substring(src + SOURCE.length());
+			rest = rest.substring(0, src);
+		}
+		String[] parts = rest.split("/");
+		if(parts.length != 2) return null;
+		try{
+			VideoSegment segment = new VideoSegment(location, Integer.parseInt(parts[0]), Integer.parseInt(parts[1]));
+			segment.localFile = local;
+			return segment;
+		}catch(NumberFormatException e){
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the description of this segment read from the provided local file
+	 * @param localFile
+	 * @return
+	 */
+	public String withLocalFile(String localFile){
+		return localFile + SEGMENT + index + "/" + count + SOURCE + location;
+	}
+
+	/**
+	 * @return the location of the complete file
+	 */
+	public String getLocation() {
+		return location;
+	}
+
+	/**
+	 * @return the local file this segment is read from or null if it has not been downloaded
+	 */
+	public String getLocalFile() {
+		return localFile;
+	}
+
+	public int getIndex() {
+		return index;
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * @return true if the local file is a downloaded copy, false if it is the original file
+	 */
+	public boolean isLocalCopy(){
+		return !location.startsWith("file:");
+	}
+
+	/**
+	 * Returns the nominal start of this segment
+	 * @param frames the total number of frames in the file
+	 * @return
+	 */
+	public long getNominalStart(long frames){
+		return frames * index / count;
+	}
+
+	/**
+	 * Returns the nominal start of the next segment
+	 * @param frames the total number of frames in the file
+	 * @return the frame number or -1 if this is the last segment
+	 */
+	public long getNominalEnd(long frames){
+		if(index >= count - 1) return -1;
+		return frames * (index + 1) / count;
+	}
+
+	@Override
+	public String toString(){
+		return location + SEGMENT + index + "/" + count;
+	}
+}
@@ -0,0 +1,105 @@
+package nl.tno.stormcv.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.RetryNTimes;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import backtype.storm.Config;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+
+/**
+ * {@link IClaimRegistry} implementation registering claims in the ZooKeeper cluster used by Storm. A claim is an ephemeral node
+ * named after the hash of the source which contains the id of the claiming task. Claims are placed under /stormcv/claims/namespace
+ * where the namespace should contain the storm id of the topology so each run of a topology starts without claims. Ephemeral nodes
+ * are removed by ZooKeeper when the session of the worker ends (also if it crashes or is killed) and {@link #close()} removes the
+ * claims of this task and the namespace nodes that have become empty, hence no claims are left behind once a topology is killed.
+ *
+ * @author Corne Versloot
+ *
+ */
+public class ZookeeperClaimRegistry implements IClaimRegistry {
+
+	private static final String ROOT = "/stormcv/claims";
+	private Logger logger = LoggerFactory.getLogger(getClass());
+	private CuratorFramework client;
+	private String path;
+	private String taskId;
+	private List<String> claimed = new ArrayList<String>();
+
+	/**
+	 * Connects to the ZooKeeper servers configured in the provided storm configuration
+	 * @param stormConf
+	 * @param namespace
+	 * @param taskId the id of the task using this registry
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	public ZookeeperClaimRegistry(Map stormConf, String namespace, int taskId){
+		this.path = ROOT+"/"+namespace;
+		this.taskId = ""+taskId;
+		List<String> servers = (List<String>)stormConf.get(Config.STORM_ZOOKEEPER_SERVERS);
+		Object port = stormConf.get(Config.STORM_ZOOKEEPER_PORT);
+		StringBuilder connect = new StringBuilder();
+		for(String server : servers){
+			if(connect.length() > 0) connect.append(',');
+			connect.append(server).append(':').append(port);
+		}
+		client = CuratorFrameworkFactory.newClient(connect.toString(), new RetryNTimes(5, 1000));
+		client.start();
+	}
+
+	@Override
+	public boolean claim(String source) throws Exception {
+		String node = path+"/"+Hashing.sha1().hashString(source, Charsets.UTF_8).toString();
+		try{
+			client.create().creatingParentsIfNeeded().withMode(CreateMode.EPHEMERAL).forPath(node, taskId.getBytes(Charsets.UTF_8));
+			synchronized(claimed){
+				claimed.add(node);
+			}
+			return true;
+		}catch(KeeperException.NodeExistsException e){
+			return taskId.equals(new String(client.getData().forPath(node), Charsets.UTF_8));
+		}
+	}
+
+	@Override
+	public void close() {
+		try{
+			synchronized(claimed){
+				for(String node : claimed) deleteIfExists(node);
+				claimed.clear();
+			}
+			// remove the namespace (component and topology nodes) if no other task has claims left
+			for(String node = path; node.length() > ROOT.length(); node = node.substring(0, node.lastIndexOf('/'))){
+				if(!client.getChildren().forPath(node).isEmpty()) break;
+				deleteIfExists(node);
+			}
+		}catch(KeeperException.NoNodeException e){
+			// nothing left to remove
+		}catch(Exception e){
+			logger.warn("Unable to remove claims from "+path+": "+e.getMessage());
+		}finally{
+			client.close();
+		}
+	}
+
+	private void deleteIfExists(String node) throws Exception{
+		try{
+			client.delete().forPath(node);
+		}catch(KeeperException.NoNodeException e){
+			// already removed
+		}catch(KeeperException.NotEmptyException e){
+			// another task claimed a source in the meantime
+		}
+	}
+
+}
@@ -15,6 +15,8 @@ import java.util.Map;
 
 import javax.xml.datatype.DatatypeConfigurationException;
 
+import com.google.common.io.ByteStreams;
+
 /**
  * A {@link FileConnector} implementation to read files from the classpath. If a file resides within a jar file it
  * will be copied to the tmp directory before a reference is provided to the caller of the connector. 
@@ -72,6 +74,31 @@ public class ClasspathConnector implements FileConnector {
 		return SCHEMA;
 	}
 
+	@Override
+	public long getSize() {
+		if(location == null) return -1;
+		String path = "/"+location.toString();
+		path = path.substring(path.lastIndexOf('/'));
+		URL url = getClass().getResource(path);
+		if(url == null) return -1;
+		try {
+			return url.openConnection().getContentLengthLong();
+		} catch (IOException e) {
+			return -1;
+		}
+	}
+
+	@Override
+	public InputStream openStream(long offset, long length) throws IOException {
+		if(location == null) throw new FileNotFoundException("No location set, use moveTo first!");
+		String path = "/"+location.toString();
+		path = path.substring(path.lastIndexOf('/'));
+		InputStream in = getClass().getResourceAsStream(path);
+		if(in == null) throw new FileNotFoundException("Unable to locate "+path);
+		ByteStreams.skipFully(in, offset);
+		return length < 0 ? in : ByteStreams.limit(in, length);
+	}
+
 	/**
 	 * Gets the file from the classpath, either as the direct file or extracted from a jar file
 	 */
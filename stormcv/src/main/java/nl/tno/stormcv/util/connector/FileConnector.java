@@ -2,6 +2,7 @@ package nl.tno.stormcv.util.connector;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.Serializable;
 import java.util.List;
 import java.util.Map;
@@ -68,10 +69,28 @@ public interface FileConnector extends Serializable{
 	public String getProtocol();
 	
 	/**
-	 * Gets the current location as a file. If the location is remote this will trigger a download
+	 * Gets the current location as a file. If the location is remote this will trigger a download to a new (unique) temporary
+	 * file so concurrent downloads of the same location do not interfere
 	 * @return
 	 */
 	public File getAsFile() throws IOException;
+	
+	/**
+	 * Returns the size of the file at the current location in bytes without downloading it. This is used 
+	 * to estimate the cost of reading the file.
+	 * @return the size in bytes or -1 if the size is unknown (for example if the location is a directory) 
+	 */
+	public long getSize();
+	
+	/**
+	 * Opens the file at the current location for reading without downloading it to local disk first. The returned
+	 * stream must be closed by the caller.
+	 * @param offset the position in bytes to start reading from
+	 * @param length the maximum number of bytes to read or -1 to read until the end of the file
+	 * @return
+	 * @throws IOException if the file cannot be opened
+	 */
+	public InputStream openStream(long offset, long length) throws IOException;
 	 
 	/**
 	 * Makes a deep copy of this object 
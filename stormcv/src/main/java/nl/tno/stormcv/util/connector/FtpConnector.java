@@ -3,7 +3,9 @@ package nl.tno.stormcv.util.connector;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
 import java.util.ArrayList;
 import java.util.List;
@@ -19,6 +21,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.yaml.snakeyaml.util.UriEncoder;
 
+import com.google.common.io.ByteStreams;
+
 import backtype.storm.utils.Utils;
 import nl.tno.stormcv.StormCVConfig;
 import nl.tno.stormcv.util.connector.FileConnector;
@@ -125,7 +129,7 @@ public class FtpConnector implements FileConnector {
 	@Override
 	public File getAsFile() throws IOException {
 		checkAndConnect();
-		File tmpFile = File.createTempFile(""+location.getPath().hashCode(), location.getPath().substring(location.getPath().lastIndexOf(".")));
+		File tmpFile = File.createTempFile("ftp"+location.getPath().hashCode(), location.getPath().substring(location.getPath().lastIndexOf(".")));
 		FileOutputStream fos;
 		try{
 			fos = new FileOutputStream(tmpFile);
@@ -140,6 +144,48 @@ public class FtpConnector implements FileConnector {
 		return tmpFile;
 	}
 
+	@Override
+	public long getSize() {
+		try{
+			checkAndConnect();
+			FTPFile[] files = client.listFiles(location.getPath());
+			if(files != null && files.length == 1 && files[0].isFile()) return files[0].getSize();
+		}catch(IOException ioe){
+			logger.warn("Unable to get size of "+location+" due to : "+ioe.getMessage());
+		}
+		return -1;
+	}
+
+	/**
+	 * Opens the file using a separate connection because the control connection can only be used for
+	 * a single transfer at a time.
+	 */
+	@Override
+	public InputStream openStream(long offset, long length) throws IOException {
+		final FtpConnector connection = new FtpConnector(username, password);
+		connection.moveTo(location);
+		connection.checkAndConnect();
+		connection.client.enterLocalPassiveMode();
+		connection.client.setRestartOffset(Math.max(0, offset));
+		InputStream in = connection.client.retrieveFileStream(location.getPath());
+		if(in == null){
+			connection.client.disconnect();
+			throw new IOException("Unable to open "+location+": "+connection.client.getReplyString());
+		}
+		InputStream stream = new FilterInputStream(in){
+			@Override
+			public void close() throws IOException{
+				super.close();
+				try{
+					connection.client.abort();
+				}finally{
+					connection.client.disconnect();
+				}
+			}
+		};
+		return length < 0 ? stream : ByteStreams.limit(stream, length);
+	}
+
 	@Override
 	public FileConnector deepCopy() {
 		FtpConnector adaptor = new FtpConnector(username, password);
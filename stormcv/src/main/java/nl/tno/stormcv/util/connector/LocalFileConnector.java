@@ -1,8 +1,11 @@
 package nl.tno.stormcv.util.connector;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.Serializable;
 import java.net.URI;
 import java.net.URISyntaxException;
@@ -12,6 +15,8 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
+import com.google.common.io.ByteStreams;
+
 /**
  * A {@link FileConnector} implementation used to interact with files on the local file system.
  * This connector is used for locations starting with file://
@@ -64,6 +69,20 @@ public class LocalFileConnector implements FileConnector{
 		return localLocation;
 	}
 
+	@Override
+	public long getSize() {
+		if(localLocation == null || !localLocation.isFile()) return -1;
+		return localLocation.length();
+	}
+
+	@Override
+	public InputStream openStream(long offset, long length) throws IOException {
+		if(localLocation == null || !localLocation.isFile()) throw new FileNotFoundException("Unable to open "+localLocation);
+		InputStream in = new FileInputStream(localLocation);
+		ByteStreams.skipFully(in, offset);
+		return length < 0 ? in : ByteStreams.limit(in, length);
+	}
+
 	@Override
 	public LocalFileConnector setExtensions(String[] extensions) {
 		this.filter.setExtensions(extensions);
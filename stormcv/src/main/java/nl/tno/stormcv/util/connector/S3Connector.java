@@ -3,6 +3,7 @@ package nl.tno.stormcv.util.connector;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
@@ -117,12 +118,43 @@ public class S3Connector implements FileConnector {
 		String[] bucketKey = getBucketAndKey();
 		String bucket = bucketKey[0];
 		String key = bucketKey[1];
-		File tmpFile = new File(tmpDir, key.substring(key.lastIndexOf("/")+1));
+		// each download gets a unique file so concurrent downloads of the same key (i.e. segments) do not overwrite each other
+		String name = key.substring(key.lastIndexOf("/")+1);
+		int dot = name.lastIndexOf('.');
+		String prefix = (dot > 0 ? name.substring(0, dot) : name) + "_";
+		File tmpFile = File.createTempFile(prefix.length() < 3 ? "s3_"+prefix : prefix, dot > 0 ? name.substring(dot) : null, tmpDir);
 		tmpFile.deleteOnExit();
 		s3.getObject(new GetObjectRequest(bucket, key), tmpFile);
 		return tmpFile;
 	}
 
+	@Override
+	public long getSize() {
+		if(s3URI == null) return -1;
+		String[] bucketKey = getBucketAndKey();
+		try{
+			return s3.getObjectMetadata(bucketKey[0], bucketKey[1]).getContentLength();
+		}catch(Exception e){
+			return -1;
+		}
+	}
+
+	@Override
+	public InputStream openStream(long offset, long length) throws IOException {
+		if(s3URI == null) throw new FileNotFoundException("No location set, use moveTo first!");
+		String[] bucketKey = getBucketAndKey();
+		GetObjectRequest request = new GetObjectRequest(bucketKey[0], bucketKey[1]);
+		if(offset > 0 || length >= 0){
+			long end = length >= 0 ? offset + length - 1 : getSize() - 1;
+			request.setRange(offset, end);
+		}
+		try{
+			return s3.getObject(request).getObjectContent();
+		}catch(Exception e){
+			throw new IOException("Unable to open "+s3URI, e);
+		}
+	}
+
 	@Override
 	public void copyFile(File localFile, boolean delete) throws IOException {
 		if(s3URI == null) throw new FileNotFoundException("No location set, use moveTo first!");
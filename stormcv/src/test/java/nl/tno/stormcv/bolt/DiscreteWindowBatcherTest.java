@@ -0,0 +1,111 @@
+package nl.tno.stormcv.bolt;
+
+import static org.junit.Assert.assertEquals;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import backtype.storm.task.IOutputCollector;
+import backtype.storm.task.OutputCollector;
+import backtype.storm.tuple.Tuple;
+import nl.tno.stormcv.batcher.DiscreteWindowBatcher;
+import nl.tno.stormcv.model.CVParticle;
+import nl.tno.stormcv.model.Frame;
+
+/**
+ * Tests the incremental (greedy) partitioning of the {@link DiscreteWindowBatcher} on a {@link BatchInputBolt.History}.
+ * Placed in the bolt package because the History can only be created and filled by the bolt.
+ *
+ * @author Corne Versloot
+ *
+ */
+public class DiscreteWindowBatcherTest {
+
+	private static final Object GROUP = Collections.<Object>singletonList("stream");
+	private CountingCollector counter;
+	private BatchInputBolt.History history;
+	private DiscreteWindowBatcher batcher;
+	private List<List<CVParticle>> windows;
+
+	@Before
+	public void setUp() throws Exception{
+		counter = new CountingCollector();
+		BatchInputBolt bolt = new BatchInputBolt(null, null).ttl(30).maxCacheSize(10000);
+		bolt.collector = new OutputCollector(counter);
+		history = bolt.new History();
+		batcher = new DiscreteWindowBatcher(3, 1);
+		batcher.prepare(null);
+		windows = new ArrayList<List<CVParticle>>();
+	}
+
+	@Test
+	public void gapFollowedByInOrderArrivals() throws Exception{
+		add(0);
+		// 1 never arrives
+		for(int s=2; s<=40; s++) add(s);
+
+		assertEquals(13, windows.size());
+		long expected = 2;
+		for(List<CVParticle> window : windows){
+			for(CVParticle particle : window) assertEquals(expected++, particle.getSequenceNr());
+		}
+		// the skipped item is left in the history to expire, nothing has been failed
+		assertEquals(1, history.size(GROUP));
+		assertEquals(0, history.getFirst(GROUP).getSequenceNr());
+		assertEquals(39, counter.acks);
+		assertEquals(0, counter.fails);
+	}
+
+	@Test
+	public void nothingSkippedWithoutCompleteRun() throws Exception{
+		for(int s=0; s<=40; s+=2) add(s);
+		assertEquals(0, windows.size());
+
+		add(1);
+		assertEquals(1, windows.size());
+		assertEquals(0, windows.get(0).get(0).getSequenceNr());
+		assertEquals(19, history.size(GROUP));
+	}
+
+	private void add(long sequenceNr){
+		Frame frame = new Frame("stream", sequenceNr, Frame.NO_IMAGE, (byte[])null, 0, new Rectangle());
+		history.add(GROUP, frame);
+		windows.addAll(batcher.partition(history, GROUP, frame));
+	}
+
+	/**
+	 * Collector counting acks and fails
+	 */
+	private static class CountingCollector implements IOutputCollector {
+
+		private int acks = 0;
+		private int fails = 0;
+
+		@Override
+		public void reportError(Throwable error) { }
+
+		@Override
+		public List<Integer> emit(String streamId, Collection<Tuple> anchors, List<Object> tuple) {
+			return null;
+		}
+
+		@Override
+		public void emitDirect(int taskId, String streamId, Collection<Tuple> anchors, List<Object> tuple) { }
+
+		@Override
+		public void ack(Tuple input) {
+			acks++;
+		}
+
+		@Override
+		public void fail(Tuple input) {
+			fails++;
+		}
+	}
+}
@@ -0,0 +1,147 @@
+package nl.tno.stormcv.bolt;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import backtype.storm.task.IOutputCollector;
+import backtype.storm.task.OutputCollector;
+import backtype.storm.tuple.Tuple;
+import nl.tno.stormcv.batcher.DiscreteWindowBatcher;
+import nl.tno.stormcv.batcher.IBatcher;
+import nl.tno.stormcv.batcher.SlidingWindowBatcher;
+import nl.tno.stormcv.model.CVParticle;
+import nl.tno.stormcv.model.Frame;
+
+/**
+ * JMH benchmark of the {@link BatchInputBolt.History} combined with the batchers. Items of many groups (streams) arrive interleaved
+ * and out of order within each group (items are swapped with one of the next 'disorder' items) which is what the bolt
+ * typically sees behind a shuffled or fields grouped set of bolts. Each invocation feeds all items of all groups (groups * 64 items)
+ * through a fresh History and batcher just like BatchInputBolt.execute does, the score is the time needed to handle all of them.
+ *
+ * Run using: mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=nl.tno.stormcv.bolt.HistoryBenchmark
+ *
+ * @author Corne Versloot
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class HistoryBenchmark {
+
+	private static final int ITEMS_PER_GROUP = 64;
+	private static final int MAX_GROUPS = 512;
+
+	@Param({"128", "512"})
+	public int groups;
+
+	@Param({"1", "8"})
+	public int disorder;
+
+	@Param({"sliding", "discrete"})
+	public String batcherType;
+
+	private List<Object> arrivalGroups;
+	private List<CVParticle> arrivals;
+	private BatchInputBolt bolt;
+	private BatchInputBolt.History history;
+	private IBatcher batcher;
+
+	@Setup(Level.Trial)
+	public void createArrivals(){
+		Random random = new Random(42);
+		List<List<CVParticle>> perGroup = new ArrayList<List<CVParticle>>();
+		for(int g=0; g<groups; g++){
+			List<CVParticle> items = new ArrayList<CVParticle>();
+			for(int s=0; s<ITEMS_PER_GROUP; s++){
+				items.add(new Frame("stream"+g, s, Frame.NO_IMAGE, (byte[])null, 0, new Rectangle()));
+			}
+			// swap each item with one of the next disorder items
+			for(int s=0; s<ITEMS_PER_GROUP - 1; s++){
+				int other = Math.min(ITEMS_PER_GROUP - 1, s + random.nextInt(disorder));
+				Collections.swap(items, s, other);
+			}
+			perGroup.add(items);
+		}
+		arrivals = new ArrayList<CVParticle>();
+		arrivalGroups = new ArrayList<Object>();
+		for(int s=0; s<ITEMS_PER_GROUP; s++){
+			for(int g=0; g<groups; g++){
+				arrivals.add(perGroup.get(g).get(s));
+				// groups are keyed on a list of field values, like BatchInputBolt.generateKey does
+				arrivalGroups.add(Collections.<Object>singletonList("stream"+g));
+			}
+		}
+		bolt = new BatchInputBolt(null, null).ttl(30).maxCacheSize(MAX_GROUPS * ITEMS_PER_GROUP);
+		bolt.collector = new OutputCollector(new NoopCollector());
+	}
+
+	@Setup(Level.Invocation)
+	public void createHistory() throws Exception{
+		history = bolt.new History();
+		batcher = batcherType.equals("sliding") ? new SlidingWindowBatcher(2, 1) : new DiscreteWindowBatcher(5, 1);
+		batcher.prepare(null);
+	}
+
+	@Benchmark
+	public void addAndPartition(Blackhole blackhole){
+		for(int i=0; i<arrivals.size(); i++){
+			Object group = arrivalGroups.get(i);
+			CVParticle particle = arrivals.get(i);
+			history.add(group, particle);
+			blackhole.consume(batcher.partition(history, group, particle));
+		}
+		history.expire();
+	}
+
+	public static void main(String[] args) throws RunnerException{
+		new Runner(new OptionsBuilder().include(HistoryBenchmark.class.getSimpleName()).build()).run();
+	}
+
+	/**
+	 * Collector that ignores all acks, fails and emits
+	 */
+	private static class NoopCollector implements IOutputCollector {
+
+		@Override
+		public void reportError(Throwable error) { }
+
+		@Override
+		public List<Integer> emit(String streamId, Collection<Tuple> anchors, List<Object> tuple) {
+			return null;
+		}
+
+		@Override
+		public void emitDirect(int taskId, String streamId, Collection<Tuple> anchors, List<Object> tuple) { }
+
+		@Override
+		public void ack(Tuple input) { }
+
+		@Override
+		public void fail(Tuple input) { }
+	}
+}
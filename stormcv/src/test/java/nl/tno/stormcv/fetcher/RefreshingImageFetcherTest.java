@@ -0,0 +1,84 @@
+package nl.tno.stormcv.fetcher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import nl.tno.stormcv.model.Frame;
+import nl.tno.stormcv.util.ImageUtils;
+
+/**
+ * Tests the change detection of the {@link RefreshingImageFetcher} against a {@link SimulatedImageServer}: conditional requests
+ * answered with 304 (Not Modified) and the hash comparison used for servers that do not support conditional requests.
+ *
+ * @author Corne Versloot
+ *
+ */
+public class RefreshingImageFetcherTest {
+
+	private static final String PATH = "/camera.png";
+	private SimulatedImageServer server;
+	private LinkedBlockingQueue<Frame> queue;
+	private RefreshingImageFetcher.ImageReader reader;
+
+	@Before
+	public void setUp() throws Exception{
+		server = new SimulatedImageServer(0).image(PATH, image(Color.BLACK));
+		server.start();
+		queue = new LinkedBlockingQueue<Frame>();
+		RefreshingImageFetcher fetcher = new RefreshingImageFetcher(new ArrayList<String>());
+		reader = fetcher.new ImageReader(server.getUrl(PATH), 10, 10, queue);
+	}
+
+	@After
+	public void tearDown(){
+		server.stop();
+	}
+
+	@Test
+	public void unchangedImageIsNotModified() throws Exception{
+		assertTrue(reader.poll());
+		assertFalse(reader.poll());
+		assertEquals(2, server.getRequests());
+		assertEquals(1, server.getNotModified());
+		assertEquals(1, queue.size());
+
+		server.image(PATH, image(Color.WHITE));
+		assertTrue(reader.poll());
+		assertEquals(0, queue.take().getSequenceNr());
+		assertEquals(1, queue.take().getSequenceNr());
+	}
+
+	@Test
+	public void unchangedImageIsSkippedOnHash() throws Exception{
+		server.conditional(false);
+		assertTrue(reader.poll());
+		assertFalse(reader.poll());
+		assertEquals(2, server.getRequests());
+		assertEquals(0, server.getNotModified());
+		assertEquals(1, queue.size());
+
+		server.image(PATH, image(Color.WHITE));
+		assertTrue(reader.poll());
+		assertEquals(2, queue.size());
+	}
+
+	private byte[] image(Color color) throws Exception{
+		BufferedImage image = new BufferedImage(32, 24, BufferedImage.TYPE_INT_RGB);
+		Graphics graphics = image.getGraphics();
+		graphics.setColor(color);
+		graphics.fillRect(0, 0, 32, 24);
+		graphics.dispose();
+		return ImageUtils.imageToBytes(image, "png");
+	}
+}
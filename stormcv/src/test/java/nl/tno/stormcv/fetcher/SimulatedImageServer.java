@@ -0,0 +1,159 @@
+package nl.tno.stormcv.fetcher;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.hash.Hashing;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A small http server that simulates cameras publishing a refreshing image (i.e. a webcam snapshot url) which makes it possible to
+ * test the {@link RefreshingImageFetcher} without network access. Images are kept in memory and can be replaced at any time using
+ * {@link #image(String, byte[])}. By default the server supports conditional requests: each image is served with an ETag and
+ * Last-Modified header and requests with a matching If-None-Match (or If-Modified-Since) header get a 304 (Not Modified) response
+ * without content. With conditional(false) these headers are neither sent nor checked, like many cheap cameras do, in which case
+ * clients have to detect unchanged images themselves. The number of requests and 304 responses is counted.
+ *
+ * @author Corne Versloot
+ *
+ */
+public class SimulatedImageServer {
+
+	private HttpServer server;
+	private Map<String, byte[]> images = new ConcurrentHashMap<String, byte[]>();
+	private Map<String, Long> modified = new ConcurrentHashMap<String, Long>();
+	private volatile boolean conditional = true;
+	private AtomicInteger requests = new AtomicInteger();
+	private AtomicInteger notModified = new AtomicInteger();
+
+	/**
+	 * Creates a server listening on the provided port of the loopback address
+	 * @param port the port to use or 0 to use any free port
+	 * @throws IOException if the server cannot be created
+	 */
+	public SimulatedImageServer(int port) throws IOException{
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+		server.createContext("/", new ImageHandler());
+	}
+
+	/**
+	 * Sets if the server supports conditional requests using the ETag and Last-Modified headers (default = true)
+	 * @param conditional
+	 * @return itself
+	 */
+	public SimulatedImageServer conditional(boolean conditional){
+		this.conditional = conditional;
+		return this;
+	}
+
+	/**
+	 * Sets or replaces the image served at the provided path
+	 * @param path the path of the image, i.e. /camera1.jpg
+	 * @param bytes the encoded image
+	 * @return itself
+	 */
+	public SimulatedImageServer image(String path, byte[] bytes){
+		images.put(path, bytes);
+		modified.put(path, System.currentTimeMillis());
+		return this;
+	}
+
+	public void start(){
+		server.start();
+	}
+
+	public void stop(){
+		server.stop(0);
+	}
+
+	/**
+	 * @param path
+	 * @return the url of the image at the provided path
+	 * @throws IOException
+	 */
+	public URL getUrl(String path) throws IOException{
+		return new URL("http", "127.0.0.1", server.getAddress().getPort(), path);
+	}
+
+	/**
+	 * @return the number of requests received
+	 */
+	public int getRequests(){
+		return requests.get();
+	}
+
+	/**
+	 * @return the number of requests answered with 304 (Not Modified)
+	 */
+	public int getNotModified(){
+		return notModified.get();
+	}
+
+	/**
+	 * Serves the images, conditional requests are answered as described by RFC 7232: If-None-Match takes precedence over
+	 * If-Modified-Since
+	 */
+	private class ImageHandler implements HttpHandler {
+
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			requests.incrementAndGet();
+			try{
+				String path = exchange.getRequestURI().getPath();
+				byte[] bytes = images.get(path);
+				if(bytes == null || !"GET".equals(exchange.getRequestMethod())){
+					exchange.sendResponseHeaders(bytes == null ? 404 : 405, -1);
+					return;
+				}
+				if(conditional){
+					String etag = "\""+Hashing.murmur3_128().hashBytes(bytes).toString()+"\"";
+					long lastModified = modified.get(path) / 1000 * 1000; // http dates have a resolution of seconds
+					exchange.getResponseHeaders().set("ETag", etag);
+					exchange.getResponseHeaders().set("Last-Modified", format().format(new Date(lastModified)));
+					if(isNotModified(exchange, etag, lastModified)){
+						notModified.incrementAndGet();
+						exchange.sendResponseHeaders(304, -1);
+						return;
+					}
+				}
+				exchange.getResponseHeaders().set("Content-Type", "image/"+path.substring(path.lastIndexOf('.')+1));
+				exchange.sendResponseHeaders(200, bytes.length);
+				OutputStream out = exchange.getResponseBody();
+				out.write(bytes);
+				out.close();
+			}finally{
+				exchange.close();
+			}
+		}
+
+		private boolean isNotModified(HttpExchange exchange, String etag, long lastModified){
+			String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+			if(ifNoneMatch != null) return ifNoneMatch.equals(etag);
+			String ifModifiedSince = exchange.getRequestHeaders().getFirst("If-Modified-Since");
+			if(ifModifiedSince == null) return false;
+			try {
+				return lastModified <= format().parse(ifModifiedSince).getTime();
+			} catch (ParseException e) {
+				return false;
+			}
+		}
+
+		private SimpleDateFormat format(){
+			SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+			format.setTimeZone(TimeZone.getTimeZone("GMT"));
+			return format;
+		}
+	}
+}
@@ -0,0 +1,178 @@
+package nl.tno.stormcv.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import backtype.storm.utils.Utils;
+import nl.tno.stormcv.StormCVConfig;
+import nl.tno.stormcv.util.connector.ConnectorHolder;
+import nl.tno.stormcv.util.connector.SimulatedConnector;
+
+/**
+ * Tests the {@link FilePrefetcher} against the {@link SimulatedConnector}: delivery in the order of the assignment while later
+ * (smaller) downloads finish first, the disk budget and restarting the prefetcher while downloads wait for space or for room
+ * in the video list. Files are identified by their size which is unique within each test.
+ *
+ * @author Corne Versloot
+ *
+ */
+public class FilePrefetcherTest {
+
+	private static final long TIMEOUT = 5000;
+	private List<File> sources = new ArrayList<File>();
+	private List<String> delivered = new ArrayList<String>();
+	private FilePrefetcher prefetcher;
+
+	@After
+	public void tearDown(){
+		if(prefetcher != null){
+			prefetcher.stop();
+			for(String file : delivered) prefetcher.release(file);
+		}
+		for(File source : sources) source.delete();
+	}
+
+	@Test
+	public void deliversInOrderOfAssignment() throws Exception{
+		BlockingQueue<String> videoList = new LinkedBlockingQueue<String>();
+		// the largest file is assigned first and takes longest to download
+		prefetcher = new FilePrefetcher(assigner(400000, 200000, 100000, 50000), videoList, connectors(2000000), 4, Long.MAX_VALUE);
+		prefetcher.start();
+
+		assertEquals(400000, length(take(videoList)));
+		assertEquals(200000, length(take(videoList)));
+		assertEquals(100000, length(take(videoList)));
+		assertEquals(50000, length(take(videoList)));
+		assertNull(videoList.poll(300, TimeUnit.MILLISECONDS));
+	}
+
+	@Test
+	public void staysWithinDiskBudget() throws Exception{
+		BlockingQueue<String> videoList = new LinkedBlockingQueue<String>();
+		prefetcher = new FilePrefetcher(assigner(100000, 90000, 80000, 70000), videoList, connectors(100000000), 4, 230000);
+		prefetcher.start();
+
+		String first = take(videoList);
+		String second = take(videoList);
+		assertEquals(100000, length(first));
+		assertEquals(90000, length(second));
+		// the third file does not fit until a file is released
+		assertNull(videoList.poll(500, TimeUnit.MILLISECONDS));
+		assertEquals(190000L, (long)prefetcher.getStats().get("diskBytes"));
+
+		prefetcher.release(first);
+		assertFalse(new File(first).exists());
+		assertEquals(80000, length(take(videoList)));
+		assertNull(videoList.poll(500, TimeUnit.MILLISECONDS));
+		assertEquals(170000L, (long)prefetcher.getStats().get("diskBytes"));
+
+		prefetcher.release(second);
+		assertEquals(70000, length(take(videoList)));
+		assertEquals(150000L, (long)prefetcher.getStats().get("diskBytes"));
+	}
+
+	@Test
+	public void restartContinuesDownloadsWaitingForSpace() throws Exception{
+		BlockingQueue<String> videoList = new LinkedBlockingQueue<String>();
+		prefetcher = new FilePrefetcher(assigner(100000, 90000, 80000), videoList, connectors(100000000), 3, 150000);
+		prefetcher.start();
+		String first = take(videoList);
+		assertEquals(100000, length(first));
+
+		// the waiting downloads are postponed by the stop and taken by the threads of the next start
+		prefetcher.stop();
+		Utils.sleep(300);
+		prefetcher.start();
+		assertNull(videoList.poll(300, TimeUnit.MILLISECONDS));
+
+		prefetcher.release(first);
+		String second = take(videoList);
+		assertEquals(90000, length(second));
+		prefetcher.release(second);
+		assertEquals(80000, length(take(videoList)));
+		assertNull(videoList.poll(300, TimeUnit.MILLISECONDS));
+	}
+
+	@Test
+	public void restartDeliversFilesWaitingForVideoList() throws Exception{
+		BlockingQueue<String> videoList = new ArrayBlockingQueue<String>(1);
+		prefetcher = new FilePrefetcher(assigner(100000, 90000, 80000), videoList, connectors(100000000), 3, Long.MAX_VALUE);
+		prefetcher.start();
+		Utils.sleep(500);
+		assertEquals(1, videoList.size());
+
+		// the file the deliverer of the first start could not put in the list is handed to the deliverer of the next start
+		prefetcher.stop();
+		Utils.sleep(300);
+		prefetcher.start();
+
+		assertEquals(100000, length(take(videoList)));
+		assertEquals(90000, length(take(videoList)));
+		assertEquals(80000, length(take(videoList)));
+		assertNull(videoList.poll(300, TimeUnit.MILLISECONDS));
+	}
+
+	/**
+	 * Takes the next file from the video list, files taken are released after the test
+	 */
+	private String take(BlockingQueue<String> videoList) throws InterruptedException{
+		String file = videoList.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+		assertNotNull(file);
+		delivered.add(file);
+		return file;
+	}
+
+	private long length(String file){
+		return new File(file).length();
+	}
+
+	/**
+	 * Creates a file for each of the provided sizes and an assigner returning them in the provided (decreasing) order
+	 */
+	private SourceAssigner assigner(int... sizes) throws IOException{
+		List<String> locations = new ArrayList<String>();
+		Map<String, Long> costs = new HashMap<String, Long>();
+		for(int size : sizes){
+			File source = File.createTempFile("prefetch", ".mp4");
+			sources.add(source);
+			OutputStream out = new FileOutputStream(source);
+			try{
+				out.write(new byte[size]);
+			}finally{
+				out.close();
+			}
+			String location = SimulatedConnector.SCHEMA+"://"+source.getAbsolutePath();
+			locations.add(location);
+			costs.put(location, (long)size);
+		}
+		SourceAssigner assigner = new SourceAssigner(locations, costs, 1, 0);
+		assertEquals(locations, assigner.getAssigned());
+		return assigner;
+	}
+
+	private ConnectorHolder connectors(long bandwidth){
+		StormCVConfig conf = new StormCVConfig();
+		conf.registerConnector(SimulatedConnector.class);
+		conf.put(SimulatedConnector.SIM_LATENCY, 10);
+		conf.put(SimulatedConnector.SIM_BANDWIDTH, bandwidth);
+		return new ConnectorHolder(conf);
+	}
+}
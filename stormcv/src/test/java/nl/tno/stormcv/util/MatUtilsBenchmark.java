@@ -0,0 +1,121 @@
+package nl.tno.stormcv.util;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import nl.tno.stormcv.model.Descriptor;
+
+/**
+ * JMH benchmark of the {@link MatUtils} conversions on SIFT sized matrices: 'keypoints' rows of 128 float values, which is what the
+ * FeatureExtractionOp gets from the DescriptorExtractor for a single frame. Each conversion is compared with the per element get/put
+ * calls the operations used before, reading a descriptor mat into rows (toRows) and writing a list of descriptors into a mat (toMat).
+ * The OpenCV native library must be available.
+ *
+ * Run using: mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=nl.tno.stormcv.util.MatUtilsBenchmark
+ *
+ * @author Corne Versloot
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class MatUtilsBenchmark {
+
+	private static final int SIFT_LENGTH = 128;
+
+	@Param({"500", "2000"})
+	public int keypoints;
+
+	private Mat descriptors;
+	private List<Descriptor> descriptorList;
+
+	@Setup(Level.Trial)
+	public void createDescriptors() throws Exception{
+		NativeUtils.load();
+		Random random = new Random(42);
+		float[] values = new float[keypoints * SIFT_LENGTH];
+		for(int i=0; i<values.length; i++) values[i] = random.nextInt(256);
+		descriptors = new Mat(keypoints, SIFT_LENGTH, CvType.CV_32F);
+		descriptors.put(0, 0, values);
+		descriptorList = new ArrayList<Descriptor>();
+		for(float[] row : MatUtils.toRows(descriptors)){
+			descriptorList.add(new Descriptor("stream", 0, new Rectangle(), 0, row));
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void release(){
+		descriptors.release();
+	}
+
+	@Benchmark
+	public List<float[]> rowsPerElement(){
+		List<float[]> rows = new ArrayList<float[]>();
+		float[] tmp = new float[1];
+		for(int r=0; r<descriptors.rows(); r++){
+			float[] values = new float[descriptors.cols()];
+			for(int c=0; c<descriptors.cols(); c++){
+				descriptors.get(r, c, tmp);
+				values[c] = tmp[0];
+			}
+			rows.add(values);
+		}
+		return rows;
+	}
+
+	@Benchmark
+	public List<float[]> rowsBulk(){
+		return MatUtils.toRows(descriptors);
+	}
+
+	@Benchmark
+	public int matPerElement(){
+		Mat mat = new Mat(descriptorList.size(), SIFT_LENGTH, CvType.CV_32F);
+		for(int r=0; r<descriptorList.size(); r++){
+			float[] values = descriptorList.get(r).getValues();
+			for(int c=0; c<values.length; c++){
+				mat.put(r, c, values[c]);
+			}
+		}
+		int rows = mat.rows();
+		mat.release();
+		return rows;
+	}
+
+	@Benchmark
+	public int matBulk(){
+		Mat mat = MatUtils.toMat(descriptorList);
+		int rows = mat.rows();
+		mat.release();
+		return rows;
+	}
+
+	public static void main(String[] args) throws RunnerException{
+		new Runner(new OptionsBuilder().include(MatUtilsBenchmark.class.getSimpleName()).build()).run();
+	}
+}
@@ -0,0 +1,195 @@
+package nl.tno.stormcv.util.connector;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.io.ByteStreams;
+
+import backtype.storm.utils.Utils;
+import nl.tno.stormcv.StormCVConfig;
+
+/**
+ * A {@link FileConnector} that simulates a remote location using files on the local file system. Locations start with
+ * <b>sim://</b> followed by the path of a local file or directory (i.e. sim:///data/videos/). Every download waits for a
+ * fixed latency and copies the file to the tmp directory at a limited bandwidth which makes it possible to test the
+ * behavior of fetchers reading from remote locations like S3 or FTP without network access. The latency and bandwidth
+ * are set in the {@link StormCVConfig} using SIM_LATENCY and SIM_BANDWIDTH. This connector is only available to tests,
+ * use StormCVConfig.registerConnector(SimulatedConnector.class) to use it.
+ *
+ * @author Corne Versloot
+ *
+ */
+public class SimulatedConnector implements FileConnector {
+
+	/**
+	 * <b>Integer (default = 100)</b> latency in ms before a download starts
+	 */
+	public static final String SIM_LATENCY = "stormcv.sim.latency";
+
+	/**
+	 * <b>Integer (default = 10000000)</b> download speed in bytes per second
+	 */
+	public static final String SIM_BANDWIDTH = "stormcv.sim.bandwidth";
+
+	private static final long serialVersionUID = -3305919562493911254L;
+	public static final String SCHEMA = "sim";
+	private File file;
+	private String[] extensions;
+	private int latency = 100;
+	private long bandwidth = 10000000;
+
+	@SuppressWarnings("rawtypes")
+	@Override
+	public void prepare(Map stormConf) {
+		if(stormConf.containsKey(SIM_LATENCY)) latency = ((Number)stormConf.get(SIM_LATENCY)).intValue();
+		if(stormConf.containsKey(SIM_BANDWIDTH)) bandwidth = ((Number)stormConf.get(SIM_BANDWIDTH)).longValue();
+	}
+
+	@Override
+	public FileConnector setExtensions(String[] extensions) {
+		this.extensions = extensions;
+		return this;
+	}
+
+	@Override
+	public void moveTo(String location) throws IOException {
+		try {
+			this.file = new File(new URI(location).getPath());
+		} catch (URISyntaxException e) {
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * <b>Does not apply to the simulated connector</b>
+	 */
+	@Override
+	public void copyFile(File localFile, boolean delete) throws IOException {
+		throw new IOException("Unable to copy file to a simulated location");
+	}
+
+	@Override
+	public List<String> list() {
+		List<String> result = new ArrayList<String>();
+		if(file == null) return result;
+		File[] files = file.isDirectory() ? file.listFiles() : new File[]{file};
+		if(files == null) return result;
+		list: for(File f : files){
+			if(!f.isFile()) continue;
+			if(extensions == null){
+				result.add(SCHEMA+"://"+f.getAbsolutePath());
+				continue;
+			}
+			for(String ext : extensions){
+				if(f.getName().endsWith(ext)){
+					result.add(SCHEMA+"://"+f.getAbsolutePath());
+					continue list;
+				}
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public String getProtocol() {
+		return SCHEMA;
+	}
+
+	/**
+	 * Copies the file to the tmp directory after waiting for the configured latency and at the configured bandwidth
+	 */
+	@Override
+	public File getAsFile() throws IOException {
+		if(file == null || !file.isFile()) throw new FileNotFoundException("Unable to locate "+file);
+		Utils.sleep(latency);
+		String name = file.getName();
+		String suffix = name.contains(".") ? name.substring(name.lastIndexOf('.')) : ".tmp";
+		File tmpFile = File.createTempFile(""+file.getAbsolutePath().hashCode(), suffix);
+		InputStream in = new ThrottledInputStream(new FileInputStream(file), bandwidth);
+		OutputStream out = new FileOutputStream(tmpFile);
+		try{
+			ByteStreams.copy(in, out);
+		}finally{
+			in.close();
+			out.close();
+		}
+		return tmpFile;
+	}
+
+	/**
+	 * Opens the file after waiting for the configured latency, the stream is limited to the configured bandwidth 
+	 */
+	@Override
+	public InputStream openStream(long offset, long length) throws IOException {
+		if(file == null || !file.isFile()) throw new FileNotFoundException("Unable to locate "+file);
+		Utils.sleep(latency);
+		InputStream in = new FileInputStream(file);
+		ByteStreams.skipFully(in, offset);
+		if(length >= 0) in = ByteStreams.limit(in, length);
+		return new ThrottledInputStream(in, bandwidth);
+	}
+
+	@Override
+	public long getSize() {
+		if(file == null || !file.isFile()) return -1;
+		return file.length();
+	}
+
+	@Override
+	public FileConnector deepCopy() {
+		SimulatedConnector copy = new SimulatedConnector();
+		copy.file = file;
+		copy.extensions = extensions;
+		copy.latency = latency;
+		copy.bandwidth = bandwidth;
+		return copy;
+	}
+
+	/**
+	 * Limits the number of bytes read per second by sleeping when data is read faster than the bandwidth
+	 */
+	private static class ThrottledInputStream extends FilterInputStream {
+
+		private long bandwidth;
+		private long start = System.currentTimeMillis();
+		private long read = 0;
+
+		private ThrottledInputStream(InputStream in, long bandwidth){
+			super(in);
+			this.bandwidth = Math.max(1, bandwidth);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if(b >= 0) throttle(1);
+			return b;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			int n = super.read(buffer, offset, length);
+			if(n > 0) throttle(n);
+			return n;
+		}
+
+		private void throttle(int bytes){
+			read += bytes;
+			long expected = read * 1000 / bandwidth;
+			long elapsed = System.currentTimeMillis() - start;
+			if(expected > elapsed) Utils.sleep(expected - elapsed);
+		}
+	}
+
+}